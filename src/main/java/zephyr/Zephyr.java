@@ -85,6 +85,11 @@ public class Zephyr {
 
 	public static final Path SESSION_FILE = SETTINGS_DIR.resolve("session.json");
 
+	/**
+	 * The directory of the journals of the unsaved documents.
+	 */
+	public static final Path RECOVERY_DIR = SETTINGS_DIR.resolve("recovery");
+
 	/**
 	 * The splash screen.
 	 */
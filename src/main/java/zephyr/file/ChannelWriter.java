@@ -0,0 +1,152 @@
+package zephyr.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes text to a {@link FileChannel} as it's handed in, in chunks, so text
+ * of any size is written with fixed size buffers. Each '\n' is expanded to
+ * the given line separator on the way into a reusable {@link CharBuffer},
+ * which is encoded into a direct {@link ByteBuffer} and written to the
+ * channel whenever it fills up.
+ *
+ */
+class ChannelWriter {
+
+	/**
+	 * The size, in chars, of the buffer the text is copied into.
+	 */
+	private static final int CHAR_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The size, in bytes, of the buffer the text is encoded into.
+	 */
+	private static final int BYTE_BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+
+	private final CharsetEncoder encoder;
+
+	private final char[] lineSeparator;
+
+	/**
+	 * Whether the line separator is "\n", so the text is copied as is.
+	 */
+	private final boolean unixSeparator;
+
+	private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+
+	private final ByteBuffer bytes = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+
+	/**
+	 * Creates a writer. Malformed characters, like lone surrogates, are
+	 * replaced, like {@link java.io.OutputStreamWriter} does, but characters
+	 * the charset can't encode are reported, throwing an
+	 * {@link java.nio.charset.UnmappableCharacterException}, so text isn't
+	 * silently lost when it's saved.
+	 *
+	 * @param channel
+	 *            the channel written
+	 * @param charset
+	 *            the charset the text is encoded with
+	 * @param lineSeparator
+	 *            the line separator written for each '\n'
+	 */
+	ChannelWriter(FileChannel channel, Charset charset, String lineSeparator) {
+		this.channel = channel;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		this.lineSeparator = lineSeparator.toCharArray();
+		this.unixSeparator = lineSeparator.equals("\n");
+	}
+
+	/**
+	 * Writes a range of an array.
+	 */
+	void write(char[] array, int offset, int count) throws IOException {
+		int end = offset + count;
+		if (unixSeparator) {
+			while (offset < end) {
+				int n = Math.min(end - offset, chars.remaining());
+				chars.put(array, offset, n);
+				offset += n;
+				if (!chars.hasRemaining()) {
+					encode(false);
+				}
+			}
+			return;
+		}
+
+		for (int i = offset; i < end; i++) {
+			if (chars.remaining() < lineSeparator.length) {
+				encode(false);
+			}
+			char c = array[i];
+			if (c == '\n') {
+				chars.put(lineSeparator);
+			} else {
+				chars.put(c);
+			}
+		}
+	}
+
+	/**
+	 * Writes a string, copying it in chunks.
+	 */
+	void write(String text) throws IOException {
+		char[] chunk = new char[Math.min(text.length(), CHAR_BUFFER_SIZE)];
+		for (int start = 0; start < text.length(); start += chunk.length) {
+			int end = Math.min(text.length(), start + chunk.length);
+			text.getChars(start, end, chunk, 0);
+			write(chunk, 0, end - start);
+		}
+	}
+
+	/**
+	 * Encodes and writes what's left on the buffers. Nothing can be written
+	 * afterwards.
+	 */
+	void finish() throws IOException {
+		encode(true);
+		CoderResult result;
+		do {
+			result = encoder.flush(bytes);
+			drain();
+		} while (result.isOverflow());
+	}
+
+	/**
+	 * Encodes the characters buffered, writing the bytes to the channel as
+	 * the byte buffer fills up. A high surrogate ending the characters is
+	 * kept until the next chunk arrives, unless it's the end of the text.
+	 */
+	private void encode(boolean endOfInput) throws IOException {
+		chars.flip();
+		CoderResult result;
+		do {
+			result = encoder.encode(chars, bytes, endOfInput);
+			if (result.isError()) {
+				result.throwException();
+			}
+			drain();
+		} while (result.isOverflow());
+		chars.compact();
+	}
+
+	/**
+	 * Writes the bytes encoded to the channel.
+	 */
+	private void drain() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+	}
+}
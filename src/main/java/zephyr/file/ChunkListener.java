@@ -0,0 +1,23 @@
+package zephyr.file;
+
+/**
+ * Receives the content of a file while it's read, one chunk at a time.
+ *
+ * @see FileManager#readChunks(java.nio.file.Path, ChunkListener)
+ *
+ */
+public interface ChunkListener {
+
+	/**
+	 * Called each time a chunk of the file is decoded, on the reading thread.
+	 * Line separators are already normalized to '\n'.
+	 *
+	 * @param chunk
+	 *            the characters decoded
+	 * @param done
+	 *            the number of bytes read so far
+	 * @param total
+	 *            the size of the file, in bytes
+	 */
+	void chunkRead(String chunk, long done, long total);
+}
@@ -3,17 +3,39 @@ package zephyr.file;
 import static zephyr.Zephyr.PREFERENCES;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Random;
 
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+import zephyr.text.PieceTableContent;
 import zephyr.text.TextDocument;
 
 /**
@@ -25,26 +47,373 @@ import zephyr.text.TextDocument;
  */
 public class FileManager {
 
+	/**
+	 * The text written by {@link FileManager#write(Path, TextFormat, Source)}.
+	 */
+	private interface Source {
+
+		void writeTo(ChannelWriter writer) throws IOException;
+
+		/**
+		 * Stops reading the text from the given file, if it's read from it,
+		 * before the file is overwritten in place.
+		 *
+		 * @return <code>true</code> if the text was read from the file
+		 */
+		boolean release(Path file) throws IOException;
+	}
+
+	/**
+	 * The size of the buffer used to read files.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Generates the names of the temporary files written before a file is
+	 * replaced.
+	 */
+	private static final Random RANDOM = new Random();
+
+	/**
+	 * The byte order mark, written before the content of files that had one.
+	 */
+	private static final String BYTE_ORDER_MARK = "\uFEFF";
+
 	public boolean delete(Path file) throws IOException {
 		return Files.deleteIfExists(file);
 	}
 
 	/**
-	 * Reads a file and returns it's contents (using a {@link BufferedReader}).
+	 * Reads a file and returns it's contents.
 	 * 
 	 * @param file
 	 *            the {@link Path} representing the file to be read
-	 * @return A {@link TextDocument} with the content and metadata retrieved
-	 *         from the file
+	 * @return A string representing file's content
 	 * @throws FileNotFoundException
 	 *             if the file does not exist, is a directory rather than a
 	 *             regular file, or for some other reason cannot be open for
 	 *             reading
 	 * @throws IOException
 	 *             if an I/O error occurs
+	 * 
+	 * @see FileManager#readChars(Path)
 	 */
 	public String read(Path file) throws FileNotFoundException, IOException {
-		return read(new FileReader(file.toFile()));
+		return readChars(file).toString();
+	}
+
+	/**
+	 * Reads a file and returns it's contents on a {@link CharBuffer}, backed
+	 * by an array sized after the file. The file is read through a
+	 * {@link FileChannel} in chunks and decoded straight into that array,
+	 * normalizing line separators to '\n' on the way, so the content is never
+	 * copied. The returned buffer is flipped, ready to be read.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the file to be read
+	 * @return the file's content
+	 * @throws FileNotFoundException
+	 *             if the file does not exist, is a directory rather than a
+	 *             regular file, or for some other reason cannot be open for
+	 *             reading
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public CharBuffer readChars(Path file) throws FileNotFoundException, IOException {
+		return readChars(file, null);
+	}
+
+	/**
+	 * Works like {@link #readChars(Path)}, reporting the progress to the given
+	 * listener. The read can be cancelled by interrupting the reading thread,
+	 * in which case a {@link java.nio.channels.ClosedByInterruptException} is
+	 * thrown.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the file to be read
+	 * @param listener
+	 *            the listener to be notified after each chunk read, or
+	 *            <code>null</code>
+	 * @return the file's content
+	 * @throws FileNotFoundException
+	 *             if the file does not exist, is a directory rather than a
+	 *             regular file, or for some other reason cannot be open for
+	 *             reading
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public CharBuffer readChars(Path file, ProgressListener listener)
+			throws FileNotFoundException, IOException {
+		return readChars(file, listener, null);
+	}
+
+	/**
+	 * Works like {@link #readChars(Path, ProgressListener)}, handing the
+	 * charset and line separators found to the given detector, which is also
+	 * what decides the charset the file is decoded with.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the file to be read
+	 * @param listener
+	 *            the listener to be notified after each chunk read, or
+	 *            <code>null</code>
+	 * @param detector
+	 *            the detector of the file's format, or <code>null</code>
+	 * @return the file's content
+	 * @throws FileNotFoundException
+	 *             if the file does not exist, is a directory rather than a
+	 *             regular file, or for some other reason cannot be open for
+	 *             reading
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public CharBuffer readChars(Path file, ProgressListener listener, FormatDetector detector)
+			throws FileNotFoundException, IOException {
+		return decode(file, listener, null, detector);
+	}
+
+	/**
+	 * Reads a file in chunks, handing each one to the given listener as soon
+	 * as it's decoded, so the content can be shown before the whole file is
+	 * read. Line separators are normalized to '\n'. The read can be cancelled
+	 * by interrupting the reading thread, in which case a
+	 * {@link java.nio.channels.ClosedByInterruptException} is thrown.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the file to be read
+	 * @param listener
+	 *            the listener receiving the chunks, on the reading thread
+	 * @throws FileNotFoundException
+	 *             if the file does not exist, is a directory rather than a
+	 *             regular file, or for some other reason cannot be open for
+	 *             reading
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void readChunks(Path file, ChunkListener listener) throws FileNotFoundException,
+			IOException {
+		readChunks(file, listener, null);
+	}
+
+	/**
+	 * Works like {@link #readChunks(Path, ChunkListener)}, handing the charset
+	 * and line separators found to the given detector.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the file to be read
+	 * @param listener
+	 *            the listener receiving the chunks, on the reading thread
+	 * @param detector
+	 *            the detector of the file's format, or <code>null</code>
+	 * @throws FileNotFoundException
+	 *             if the file does not exist, is a directory rather than a
+	 *             regular file, or for some other reason cannot be open for
+	 *             reading
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void readChunks(Path file, ChunkListener listener, FormatDetector detector)
+			throws FileNotFoundException, IOException {
+		decode(file, null, listener, detector);
+	}
+
+	/**
+	 * Reads and decodes a file through a {@link FileChannel}. If a
+	 * {@link ChunkListener} is given, the characters are handed to it after
+	 * each chunk and nothing is returned; otherwise they're decoded into a
+	 * buffer sized after the file, which is returned. The charset is chosen by
+	 * the {@link FormatDetector} as the bytes go by.
+	 */
+	private CharBuffer decode(Path file, ProgressListener progressListener,
+			ChunkListener chunkListener, FormatDetector detector) throws FileNotFoundException,
+			IOException {
+		if (detector == null) {
+			detector = new FormatDetector();
+		}
+
+		FileInputStream stream = new FileInputStream(file.toFile());
+		try {
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+
+			// The first bytes tell whether there's a byte order mark
+			ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+			boolean endOfInput = false;
+			while (in.position() < 3 && !endOfInput) {
+				endOfInput = channel.read(in) == -1;
+			}
+			in.flip();
+			detector.sniff(in);
+			in.compact();
+			CharsetDecoder decoder = detector.newDecoder();
+
+			CharBuffer out;
+			if (chunkListener != null) {
+				out = CharBuffer.allocate(BUFFER_SIZE);
+			} else {
+				// Room for the fallback charset as well, which decodes a char
+				// per byte
+				float charsPerByte = detector.isValidating() ? Math.max(1,
+						decoder.maxCharsPerByte()) : decoder.maxCharsPerByte();
+				long capacity = (long) Math.ceil(size * (double) charsPerByte);
+				if (capacity >= Integer.MAX_VALUE) {
+					throw new IOException("File too large: " + file);
+				}
+				out = CharBuffer.allocate((int) capacity + 1);
+			}
+
+			boolean flushing = false;
+			while (true) {
+				if (!endOfInput) {
+					endOfInput = channel.read(in) == -1;
+				}
+				in.flip();
+
+				CoderResult result;
+				do {
+					int decoded = out.position();
+					if (flushing) {
+						result = decoder.flush(out);
+					} else {
+						result = decoder.decode(in, out, endOfInput);
+						if (endOfInput && result.isUnderflow()) {
+							flushing = true;
+							result = decoder.flush(out);
+						}
+					}
+					out.position(detector.normalize(out.array(), decoded, out.position()));
+					if (result.isMalformed() && detector.isValidating()) {
+						decoder = detector.malformedInput();
+					}
+
+					if (result.isOverflow()) {
+						if (chunkListener != null) {
+							handChunk(out, chunkListener, channel.position(), size);
+						} else {
+							// Only if the file grew while being read, or isn't
+							// as dense as the charset's estimate
+							CharBuffer larger = CharBuffer.allocate(out.capacity() * 2);
+							out.flip();
+							larger.put(out);
+							out = larger;
+						}
+					}
+				} while (result.isOverflow() || result.isError());
+
+				in.compact();
+				if (chunkListener != null && out.position() > 0) {
+					handChunk(out, chunkListener, channel.position(), size);
+				}
+				if (progressListener != null) {
+					progressListener.progressChanged(channel.position(), size);
+				}
+				if (endOfInput) {
+					break;
+				}
+			}
+
+			if (chunkListener != null) {
+				return null;
+			}
+			out.flip();
+			return out;
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Hands the characters decoded into the buffer to the listener and clears
+	 * the buffer.
+	 */
+	private static void handChunk(CharBuffer out, ChunkListener listener, long done,
+			long total) {
+		out.flip();
+		listener.chunkRead(out.toString(), done, total);
+		out.clear();
+	}
+
+	/**
+	 * Creates an empty file on the same directory of the given file, so it can
+	 * be moved over it atomically. Where the file system supports POSIX
+	 * permissions, only its owner can read it, so the text of a private file
+	 * can't be read while it's written; it gets the permissions of the file it
+	 * replaces later (see {@link #copyAttributes(Path, Path)}).
+	 */
+	private Path createTempSibling(Path file) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		String prefix = "." + file.getFileName() + ".";
+		FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+		if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			attributes = new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(EnumSet
+					.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)) };
+		}
+		while (true) {
+			Path temp = dir.resolve(prefix + Long.toHexString(RANDOM.nextLong()) + ".tmp");
+			try {
+				FileChannel.open(temp,
+						EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+						attributes).close();
+				return temp;
+			} catch (FileAlreadyExistsException e) {
+				// Tries another name
+			}
+		}
+	}
+
+	/**
+	 * Gives the temporary file the group, permissions and owner of the file it
+	 * replaces, if it exists and the file system supports POSIX attributes.
+	 * The group and owner are only kept where the user is allowed to set them.
+	 */
+	private void copyAttributes(Path file, Path temp) throws IOException {
+		if (!Files.exists(file)) {
+			return;
+		}
+		PosixFileAttributeView view = Files.getFileAttributeView(file,
+				PosixFileAttributeView.class);
+		if (view == null) {
+			return;
+		}
+		PosixFileAttributes attributes = view.readAttributes();
+		PosixFileAttributeView tempView = Files.getFileAttributeView(temp,
+				PosixFileAttributeView.class);
+		try {
+			tempView.setGroup(attributes.group());
+		} catch (IOException e) {
+			// Not a member of the group
+		}
+		tempView.setPermissions(attributes.permissions());
+		try {
+			tempView.setOwner(attributes.owner());
+		} catch (IOException e) {
+			// Only the superuser can give files away
+		}
+	}
+
+	/**
+	 * Moves the temporary file over the destination, atomically if the file
+	 * system allows it, and forces the directory entry to the disk where
+	 * that's supported.
+	 */
+	private void move(Path temp, Path file) throws IOException {
+		try {
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		try {
+			FileChannel dir = FileChannel.open(file.toAbsolutePath().getParent(),
+					StandardOpenOption.READ);
+			try {
+				dir.force(true);
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {
+			// Directories can't be open, or forced, on every platform
+		}
 	}
 
 	public String read(Reader reader) throws IOException {
@@ -86,7 +455,13 @@ public class FileManager {
 	}
 
 	/**
-	 * Writes a text file (using a {@link BufferedReader}).
+	 * Writes a text file, atomically. The content is written to a temporary
+	 * file on the same directory, through a {@link FileChannel}, forced to
+	 * the disk and then moved over the destination, so a crash or a full
+	 * disk while saving leaves the original file untouched. The original
+	 * file's permissions are kept. Files that aren't writable are refused, and
+	 * files on directories that aren't writable are overwritten in place
+	 * instead (see {@link #write(Path, TextFormat, Source)}).
 	 * 
 	 * @param content
 	 *            the string to be written
@@ -98,10 +473,266 @@ public class FileManager {
 	 *             file, does not exist but cannot be created, or cannot be
 	 *             opened for any other reason or any other I/O error occurs
 	 */
-	public void write(String content, Path file) throws FileNotFoundException, IOException {
+	public void write(final String content, Path file) throws FileNotFoundException, IOException {
+		write(file, TextFormat.getDefault(), new Source() {
 
-		BufferedWriter bw = new BufferedWriter(new FileWriter(file.toFile()));
-		write(content, bw);
+			@Override
+			public void writeTo(ChannelWriter writer) throws IOException {
+				writer.write(content);
+			}
+
+			@Override
+			public boolean release(Path file) {
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Writes a document to a text file, atomically, like
+	 * {@link #write(String, Path)}. The content is streamed straight from the
+	 * document, in {@link Segment}s, so the document is never copied whole;
+	 * line separators are expanded as it's encoded. The document is read
+	 * locked while it's written.
+	 * 
+	 * @param doc
+	 *            the document to be written
+	 * @param file
+	 *            the destination {@link Path} (if it does not exists, it will
+	 *            be created)
+	 * @throws IOException
+	 *             if the file exists but is a directory rather than a regular
+	 *             file, does not exist but cannot be created, or cannot be
+	 *             opened for any other reason or any other I/O error occurs
+	 */
+	public void write(Document doc, Path file) throws IOException {
+		write(doc, file, TextFormat.getDefault());
+	}
+
+	/**
+	 * Works like {@link #write(Document, Path)}, laying the file out in the
+	 * given format, usually the one it was read with.
+	 * 
+	 * @param doc
+	 *            the document to be written
+	 * @param file
+	 *            the destination {@link Path} (if it does not exists, it will
+	 *            be created)
+	 * @param format
+	 *            the charset, byte order mark and line separator written
+	 * @throws IOException
+	 *             if the file exists but is a directory rather than a regular
+	 *             file, does not exist but cannot be created, or cannot be
+	 *             opened for any other reason or any other I/O error occurs
+	 */
+	public void write(final Document doc, Path file, TextFormat format) throws IOException {
+		write(file, format, new Source() {
+
+			@Override
+			public void writeTo(ChannelWriter writer) throws IOException {
+				write(doc, writer);
+			}
+
+			@Override
+			public boolean release(Path file) throws IOException {
+				return doc instanceof TextDocument && ((TextDocument) doc).release(file);
+			}
+		});
+	}
+
+	/**
+	 * Works like {@link #write(Document, Path, TextFormat)}, writing a
+	 * document's content, usually a snapshot taken so the document can be
+	 * edited while it's written. The implied break ending the content isn't
+	 * written.
+	 * 
+	 * @param content
+	 *            the content to be written
+	 * @param file
+	 *            the destination {@link Path} (if it does not exists, it will
+	 *            be created)
+	 * @param format
+	 *            the charset, byte order mark and line separator written
+	 * @throws IOException
+	 *             if the file exists but is a directory rather than a regular
+	 *             file, does not exist but cannot be created, or cannot be
+	 *             opened for any other reason or any other I/O error occurs
+	 */
+	public void write(final AbstractDocument.Content content, Path file, TextFormat format)
+			throws IOException {
+		write(file, format, new Source() {
+
+			@Override
+			public void writeTo(ChannelWriter writer) throws IOException {
+				try {
+					Segment segment = new Segment();
+					segment.setPartialReturn(true);
+					int length = content.length() - 1;
+					int offset = 0;
+					while (offset < length) {
+						content.getChars(offset, length - offset, segment);
+						writer.write(segment.array, segment.offset, segment.count);
+						offset += segment.count;
+					}
+				} catch (BadLocationException e) {
+					throw new IOException(e);
+				}
+			}
+
+			@Override
+			public boolean release(Path file) throws IOException {
+				return content instanceof PieceTableContent
+						&& ((PieceTableContent) content).release(file);
+			}
+		});
+	}
+
+	/**
+	 * Writes the text of a {@link Source} to a temporary file and moves it
+	 * over the destination. Replacing a file only takes the directory to be
+	 * writable, so files that aren't writable themselves are refused first.
+	 * Where the temporary file can't be created, as on directories that aren't
+	 * writable, or the move is refused, as Windows does with files in use, the
+	 * destination is overwritten in place instead, which isn't atomic.
+	 * <p>
+	 * A file replaced by the move is a new file: its permissions, owner and
+	 * group are copied, where allowed, but its other metadata, like ACLs and
+	 * extended attributes, isn't, and other hard links to the old file keep
+	 * its old content. Files overwritten in place keep all of it.
+	 */
+	private void write(Path file, TextFormat format, Source source) throws IOException {
+		if (Files.isSymbolicLink(file)) {
+			// Replaces the link's target, not the link
+			file = file.toRealPath();
+		}
+		if (Files.exists(file) && !Files.isWritable(file)) {
+			throw new AccessDeniedException(file.toString(), null, "File is not writable");
+		}
+		if (!Files.isWritable(file.toAbsolutePath().getParent())) {
+			overwrite(file, format, source);
+			return;
+		}
+
+		Path temp = createTempSibling(file);
+		boolean moved = false;
+		try {
+			FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+			try {
+				// Before any text is written, but once the file is open, in
+				// case its owner can't write it anymore
+				copyAttributes(file, temp);
+				encode(channel, format, source);
+			} finally {
+				channel.close();
+			}
+
+			try {
+				move(temp, file);
+				moved = true;
+			} catch (IOException e) {
+				if (!Files.exists(file)) {
+					throw e;
+				}
+				// Some platforms, like Windows, don't let a mapped file be
+				// replaced, or truncated, until the old mapping is garbage
+				// collected
+				if (source.release(file)) {
+					System.gc();
+				}
+				transfer(temp, file);
+			}
+		} finally {
+			if (!moved) {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	/**
+	 * Writes the text of a {@link Source} straight over the destination,
+	 * truncating it.
+	 */
+	private void overwrite(Path file, TextFormat format, Source source) throws IOException {
+		// The text may be read from the very file overwritten
+		source.release(file);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			encode(channel, format, source);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Copies the temporary file over the destination, truncating it.
+	 */
+	private void transfer(Path temp, Path file) throws IOException {
+		FileChannel in = FileChannel.open(temp, StandardOpenOption.READ);
+		try {
+			FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+				out.force(true);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Encodes the text of a {@link Source} to the channel, in the given
+	 * format, and forces it to the disk.
+	 */
+	private void encode(FileChannel channel, TextFormat format, Source source)
+			throws IOException {
+		String lineSeparator = format.getLineSeparator();
+		if (lineSeparator == null) {
+			lineSeparator = PREFERENCES.lineSeparator();
+		}
+		ChannelWriter writer = new ChannelWriter(channel, format.getCharset(), lineSeparator);
+		if (format.hasByteOrderMark()) {
+			writer.write(BYTE_ORDER_MARK);
+		}
+		source.writeTo(writer);
+		writer.finish();
+		channel.force(true);
+	}
+
+	/**
+	 * Hands the document's content to the writer, one {@link Segment} at a
+	 * time.
+	 */
+	private void write(Document doc, ChannelWriter writer) throws IOException {
+		AbstractDocument lockable = doc instanceof AbstractDocument ? (AbstractDocument) doc
+				: null;
+		if (lockable != null) {
+			lockable.readLock();
+		}
+		try {
+			Segment segment = new Segment();
+			segment.setPartialReturn(true);
+			int length = doc.getLength();
+			int offset = 0;
+			while (offset < length) {
+				doc.getText(offset, length - offset, segment);
+				writer.write(segment.array, segment.offset, segment.count);
+				offset += segment.count;
+			}
+		} catch (BadLocationException e) {
+			throw new IOException(e);
+		} finally {
+			if (lockable != null) {
+				lockable.readUnlock();
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,256 @@
+package zephyr.file;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Detects the {@link TextFormat} of a file while it's decoded, so the file is
+ * read only once.
+ * <p>
+ * A byte order mark on the first bytes selects UTF-8, UTF-16LE or UTF-16BE.
+ * Otherwise the file is decoded as UTF-8, reporting malformed input: if
+ * malformed bytes come before any non-ASCII character, everything decoded so
+ * far is plain ASCII and the rest of the file is decoded with the fallback
+ * charset, which decodes ASCII the same way; if they come after, the file is
+ * taken as UTF-8 with a few invalid bytes, which are replaced.
+ * <p>
+ * The line separators are counted as they're normalized to '\n', and the most
+ * frequent one is taken as the file's.
+ *
+ */
+public class FormatDetector {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The charset used when a file isn't valid UTF-8: the platform's default
+	 * one, unless it's UTF-8 itself or it doesn't give back every byte it
+	 * decodes, in which case it's ISO-8859-1, which does. A file that wasn't
+	 * edited is then saved with the very same bytes, where windows-1252, for
+	 * instance, would replace the five bytes it leaves undefined.
+	 */
+	private static final Charset DEFAULT_FALLBACK = defaultFallback();
+
+	private static Charset defaultFallback() {
+		Charset charset = Charset.defaultCharset();
+		if (!charset.equals(UTF_8) && roundTrips(charset)) {
+			return charset;
+		}
+		return Charset.forName("ISO-8859-1");
+	}
+
+	/**
+	 * Indicates whether every byte is decoded by the charset to a character
+	 * it encodes back to the same byte.
+	 */
+	private static boolean roundTrips(Charset charset) {
+		byte[] bytes = new byte[256];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		try {
+			CharBuffer chars = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(bytes));
+			return charset.newEncoder().encode(chars).equals(ByteBuffer.wrap(bytes));
+		} catch (CharacterCodingException e) {
+			return false;
+		}
+	}
+
+	private final Charset fallback;
+
+	private Charset charset = UTF_8;
+
+	private boolean byteOrderMark;
+
+	/**
+	 * Whether the file is still being checked as UTF-8.
+	 */
+	private boolean validating = true;
+
+	private boolean nonAscii;
+
+	private boolean afterCarriageReturn;
+
+	private long lineFeeds;
+
+	private long carriageReturns;
+
+	private long carriageReturnLineFeeds;
+
+	/**
+	 * Creates a detector falling back to the platform's default charset, or
+	 * to ISO-8859-1 if the default one is UTF-8 or can't give back every
+	 * byte.
+	 */
+	public FormatDetector() {
+		this(DEFAULT_FALLBACK);
+	}
+
+	/**
+	 * Creates a detector falling back to the given charset.
+	 */
+	FormatDetector(Charset fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Returns the format detected so far.
+	 */
+	public TextFormat getFormat() {
+		String lineSeparator = null;
+		if (lineFeeds > 0 || carriageReturns > 0 || carriageReturnLineFeeds > 0) {
+			if (carriageReturnLineFeeds >= lineFeeds && carriageReturnLineFeeds >= carriageReturns) {
+				lineSeparator = "\r\n";
+			} else if (lineFeeds >= carriageReturns) {
+				lineSeparator = "\n";
+			} else {
+				lineSeparator = "\r";
+			}
+		}
+		return new TextFormat(charset, byteOrderMark, lineSeparator);
+	}
+
+	/**
+	 * Checks the first bytes of the file for a byte order mark, skipping it.
+	 *
+	 * @param bytes
+	 *            a buffer with the first bytes of the file, ready to be read
+	 * @return the number of bytes of the byte order mark, if any
+	 */
+	int sniff(ByteBuffer bytes) {
+		int start = bytes.position();
+		int remaining = bytes.remaining();
+		int b0 = remaining > 0 ? bytes.get(start) & 0xFF : -1;
+		int b1 = remaining > 1 ? bytes.get(start + 1) & 0xFF : -1;
+		int b2 = remaining > 2 ? bytes.get(start + 2) & 0xFF : -1;
+
+		int length = 0;
+		if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+			length = 3;
+		} else if (b0 == 0xFF && b1 == 0xFE) {
+			charset = Charset.forName("UTF-16LE");
+			length = 2;
+		} else if (b0 == 0xFE && b1 == 0xFF) {
+			charset = Charset.forName("UTF-16BE");
+			length = 2;
+		}
+
+		if (length > 0) {
+			byteOrderMark = true;
+			validating = false;
+			bytes.position(start + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Takes the given charset as the file's, without checking it.
+	 */
+	void setCharset(Charset charset) {
+		this.charset = charset;
+		this.validating = false;
+	}
+
+	Charset getCharset() {
+		return charset;
+	}
+
+	Charset getFallback() {
+		return fallback;
+	}
+
+	/**
+	 * Whether the file is still being checked as UTF-8, in which case the
+	 * decoder reports malformed input, which must be handed to
+	 * {@link #malformedInput()}.
+	 */
+	boolean isValidating() {
+		return validating;
+	}
+
+	/**
+	 * Creates a decoder for the charset detected so far.
+	 */
+	CharsetDecoder newDecoder() {
+		CodingErrorAction action = validating ? CodingErrorAction.REPORT
+				: CodingErrorAction.REPLACE;
+		return charset.newDecoder().onMalformedInput(action).onUnmappableCharacter(
+				CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Decides the charset once a UTF-8 check fails, as described on the class
+	 * comment.
+	 *
+	 * @return a decoder for the rest of the file, starting at the malformed
+	 *         bytes
+	 */
+	CharsetDecoder malformedInput() {
+		if (!nonAscii) {
+			charset = fallback;
+		}
+		validating = false;
+		return newDecoder();
+	}
+
+	/**
+	 * Replaces "\r\n" and "\r" by "\n" on the given characters, counting the
+	 * separators replaced and compacting the characters in place.
+	 *
+	 * @return the new end of the characters
+	 */
+	int normalize(char[] chars, int start, int end) {
+		int n = start;
+		boolean ascii = !nonAscii;
+		for (int i = start; i < end; i++) {
+			char c = chars[i];
+			if (c == '\n') {
+				if (afterCarriageReturn) {
+					afterCarriageReturn = false;
+					carriageReturns--;
+					carriageReturnLineFeeds++;
+					continue;
+				}
+				lineFeeds++;
+			} else if (c == '\r') {
+				afterCarriageReturn = true;
+				carriageReturns++;
+				chars[n++] = '\n';
+				continue;
+			} else if (ascii && c >= 0x80) {
+				ascii = false;
+			}
+			afterCarriageReturn = false;
+			chars[n++] = c;
+		}
+		nonAscii = !ascii;
+		return n;
+	}
+
+	/**
+	 * Records the separators of a text normalized elsewhere.
+	 */
+	void separatorsFound(int lineFeeds, int carriageReturns, int carriageReturnLineFeeds) {
+		this.lineFeeds += lineFeeds;
+		this.carriageReturns += carriageReturns;
+		this.carriageReturnLineFeeds += carriageReturnLineFeeds;
+	}
+
+	/**
+	 * Records that a non-ASCII character was decoded.
+	 */
+	void nonAsciiFound() {
+		nonAscii = true;
+	}
+
+	boolean hasNonAscii() {
+		return nonAscii;
+	}
+}
@@ -0,0 +1,651 @@
+package zephyr.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only view of a text file, mapped to memory through a
+ * {@link FileChannel}. The file is decoded in pages, on demand, and only a few
+ * decoded pages are kept on the heap, so the memory used doesn't depend on the
+ * file's size. Line separators are normalized to '\n', just like
+ * {@link FileManager#read(Path)} does.
+ * <p>
+ * The file is decoded once when it's open, to index where each page starts,
+ * both in bytes and in characters, and how many lines come before it. Unless
+ * a charset is given, it's detected on that same pass by a
+ * {@link FormatDetector}. The file must not be changed by other programs
+ * while it's mapped; before Zephyr itself overwrites it in place, the text is
+ * detached from it (see {@link #detach()}).
+ *
+ */
+public class MappedText implements CharSequence {
+
+	/**
+	 * A decoded page, with the offsets of its line feeds.
+	 */
+	private static final class Page {
+
+		private final char[] chars;
+
+		private final int length;
+
+		private final int[] breaks;
+
+		private final int breakCount;
+
+		private Page(char[] chars, int length, int[] breaks, int breakCount) {
+			this.chars = chars;
+			this.length = length;
+			this.breaks = breaks;
+			this.breakCount = breakCount;
+		}
+	}
+
+	/**
+	 * The nominal size of a page, in bytes.
+	 */
+	private static final int PAGE_SIZE = 1 << 16;
+
+	/**
+	 * The size of each mapped region of the file, in bytes.
+	 */
+	private static final int REGION_SIZE = 1 << 30;
+
+	/**
+	 * The number of decoded pages kept on the heap.
+	 */
+	private static final int CACHED_PAGES = 16;
+
+	private final Path file;
+
+	/**
+	 * The key of the file when it was mapped, like its inode, or
+	 * <code>null</code> if the file system has none.
+	 */
+	private final Object fileKey;
+
+	/**
+	 * Whether the text is read from a copy of the file (see {@link #detach()}
+	 * ).
+	 */
+	private boolean detached;
+
+	private Charset charset;
+
+	private boolean utf8;
+
+	private final long size;
+
+	private MappedByteBuffer[] regions;
+
+	private CharsetDecoder decoder;
+
+	/**
+	 * The format detected while the file was indexed.
+	 */
+	private TextFormat format;
+
+	/**
+	 * Buffer used to read the bytes of a page.
+	 */
+	private final byte[] bytes = new byte[PAGE_SIZE + 1];
+
+	private int pageCount;
+
+	/**
+	 * The offset of each page on the file, plus the file's size.
+	 */
+	private long[] pageBytes;
+
+	/**
+	 * The character offset where each page starts, plus the text's length.
+	 */
+	private int[] pageChars;
+
+	/**
+	 * The number of line feeds before each page, plus the total.
+	 */
+	private int[] pageBreaks;
+
+	private final Map<Integer, Page> cache = new LinkedHashMap<Integer, Page>(CACHED_PAGES, 0.75f,
+			true) {
+
+		private static final long serialVersionUID = 5027357425316286839L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+			return size() > CACHED_PAGES;
+		}
+	};
+
+	/**
+	 * Maps and indexes a text file.
+	 *
+	 * @param file
+	 *            the {@link Path} representing the file
+	 * @param charset
+	 *            the file's charset. Only UTF-8 and single byte charsets are
+	 *            supported
+	 * @throws IOException
+	 *             if an I/O error occurs, if the charset is not supported or if
+	 *             the text is too long to be held by a document
+	 */
+	public MappedText(Path file, Charset charset) throws IOException {
+		this(file, charset, null);
+	}
+
+	/**
+	 * Maps and indexes a text file, reporting the indexing progress to the
+	 * given listener. The indexing can be cancelled by interrupting the
+	 * thread, in which case an {@link InterruptedIOException} is thrown.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the file
+	 * @param charset
+	 *            the file's charset, or <code>null</code> to detect it
+	 * @param listener
+	 *            the listener to be notified after each page indexed, or
+	 *            <code>null</code>
+	 * @throws IOException
+	 *             if an I/O error occurs, if the charset is not supported or if
+	 *             the text is too long to be held by a document
+	 * @see #MappedText(Path, Charset)
+	 */
+	public MappedText(Path file, Charset charset, ProgressListener listener) throws IOException {
+		this.file = file;
+		this.fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			this.size = channel.size();
+			int regionCount = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+			this.regions = new MappedByteBuffer[regionCount];
+			for (int i = 0; i < regionCount; i++) {
+				long start = (long) i * REGION_SIZE;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(REGION_SIZE, size - start));
+			}
+		} finally {
+			channel.close();
+		}
+
+		FormatDetector detector = new FormatDetector();
+		if (!isSupported(detector.getFallback())) {
+			detector = new FormatDetector(Charset.forName("ISO-8859-1"));
+		}
+		int byteOrderMark = 0;
+		if (charset != null) {
+			detector.setCharset(charset);
+		} else if (size > 0) {
+			byteOrderMark = detector.sniff(regions[0].duplicate());
+		}
+		if (!isSupported(detector.getCharset())) {
+			throw new IOException("Charset not supported on mapped files: "
+					+ detector.getCharset());
+		}
+		setCharset(detector.getCharset(), detector.newDecoder());
+
+		index(byteOrderMark, listener, detector);
+		// Pages decoded again aren't checked anymore
+		decoder = this.charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		format = detector.getFormat();
+	}
+
+	/**
+	 * Maps and indexes a text file, detecting its charset.
+	 *
+	 * @see #MappedText(Path, Charset, ProgressListener)
+	 */
+	public MappedText(Path file) throws IOException {
+		this(file, null, null);
+	}
+
+	/**
+	 * Returns whether a charset can be mapped: UTF-8 and single byte ones can,
+	 * as they never decode to more chars than bytes.
+	 */
+	private static boolean isSupported(Charset charset) {
+		return charset.name().equals("UTF-8") || charset.newEncoder().maxBytesPerChar() == 1;
+	}
+
+	/**
+	 * Returns whether a file is large enough to be mapped instead of read.
+	 *
+	 * @param file
+	 *            the file
+	 * @param threshold
+	 *            the size threshold, in megabytes
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public static boolean isLarge(Path file, int threshold) throws IOException {
+		return threshold > 0 && Files.size(file) >= (long) threshold << 20;
+	}
+
+	@Override
+	public synchronized char charAt(int index) {
+		if (index < 0 || index >= length()) {
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+		int p = pageOf(index);
+		return page(p).chars[index - pageChars[p]];
+	}
+
+	/**
+	 * Returns the charset used to decode the file.
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Returns the charset, byte order mark and line separator of the file.
+	 */
+	public TextFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * Copies characters from this text into the destination array, like
+	 * {@link String#getChars(int, int, char[], int)}.
+	 */
+	public synchronized void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+		if (srcBegin < 0 || srcBegin > srcEnd || srcEnd > length()) {
+			throw new IndexOutOfBoundsException(srcBegin + ", " + srcEnd);
+		}
+
+		int index = srcBegin;
+		while (index < srcEnd) {
+			int p = pageOf(index);
+			Page page = page(p);
+			int offset = index - pageChars[p];
+			int count = Math.min(srcEnd - index, page.length - offset);
+			System.arraycopy(page.chars, offset, dst, dstBegin, count);
+			dstBegin += count;
+			index += count;
+		}
+	}
+
+	/**
+	 * Returns the mapped file.
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Indicates whether the text is still read from the given file, so
+	 * overwriting the file in place would change the text. A file moved over
+	 * the mapped one doesn't count, where the file system tells files apart
+	 * by their keys, as the mapping keeps reading the replaced one.
+	 *
+	 * @param target
+	 *            the file about to be overwritten
+	 * @return <code>true</code> if the file is the one mapped
+	 */
+	public synchronized boolean isMapping(Path target) {
+		if (detached || !Files.exists(target)) {
+			return false;
+		}
+		try {
+			if (fileKey != null) {
+				return fileKey.equals(Files.readAttributes(target, BasicFileAttributes.class)
+						.fileKey());
+			}
+			return Files.isSameFile(file, target);
+		} catch (IOException e) {
+			// Can't tell them apart: better safe than sorry
+			return true;
+		}
+	}
+
+	/**
+	 * Copies the mapped bytes to a temporary file and maps it instead, so the
+	 * file can be overwritten in place while the text is still read. The text,
+	 * and the offsets of its pages, don't change. The copy is deleted right
+	 * away where mapped files can be, or when the virtual machine exits
+	 * otherwise. Nothing is done if the text was already detached.
+	 * <p>
+	 * The file itself stays mapped until the old regions are garbage
+	 * collected, which some platforms, like Windows, wait for before letting
+	 * it be truncated or replaced.
+	 *
+	 * @throws IOException
+	 *             if the copy can't be written
+	 */
+	public synchronized void detach() throws IOException {
+		if (detached) {
+			return;
+		}
+
+		Path copy = Files.createTempFile("zephyr", ".mapped");
+		MappedByteBuffer[] copied = new MappedByteBuffer[regions.length];
+		boolean copiedAll = false;
+		FileChannel channel = FileChannel.open(copy, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			for (MappedByteBuffer region : regions) {
+				ByteBuffer bytes = region.duplicate();
+				bytes.clear();
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			}
+			for (int i = 0; i < regions.length; i++) {
+				copied[i] = channel.map(FileChannel.MapMode.READ_ONLY, (long) i * REGION_SIZE,
+						regions[i].capacity());
+			}
+			copiedAll = true;
+		} finally {
+			channel.close();
+			if (!copiedAll) {
+				Files.deleteIfExists(copy);
+			}
+		}
+
+		try {
+			Files.delete(copy);
+		} catch (IOException e) {
+			// Mapped files can't be deleted on some platforms, like Windows
+			copy.toFile().deleteOnExit();
+		}
+
+		regions = copied;
+		detached = true;
+	}
+
+	/**
+	 * Returns the number of lines of the text, which is the number of line
+	 * feeds plus one.
+	 */
+	public int getLineCount() {
+		return pageBreaks[pageCount] + 1;
+	}
+
+	/**
+	 * Returns the line containing the given offset, which is the number of
+	 * line feeds before it.
+	 *
+	 * @param offset
+	 *            an offset, from zero to the text's length
+	 */
+	public synchronized int getLineOfOffset(int offset) {
+		if (offset <= 0) {
+			return 0;
+		}
+		if (offset >= length()) {
+			return pageBreaks[pageCount];
+		}
+
+		int p = pageOf(offset);
+		Page page = page(p);
+		int breaks = Arrays.binarySearch(page.breaks, 0, page.breakCount, offset - pageChars[p]);
+		if (breaks < 0) {
+			breaks = -breaks - 1;
+		}
+		return pageBreaks[p] + breaks;
+	}
+
+	/**
+	 * Returns the offset where the given line starts.
+	 *
+	 * @param line
+	 *            a line, from zero to the number of lines
+	 * @return the offset of the line's first character, or the text's length
+	 *         plus one for the line after the last one
+	 */
+	public synchronized int getLineStartOffset(int line) {
+		if (line <= 0) {
+			return 0;
+		}
+		if (line >= getLineCount()) {
+			return length() + 1;
+		}
+
+		// The page holding the line feed ending the previous line
+		int lineFeed = line - 1;
+		int low = 0;
+		int high = pageCount - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (pageBreaks[middle] <= lineFeed) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		return pageChars[low] + page(low).breaks[lineFeed - pageBreaks[low]] + 1;
+	}
+
+	@Override
+	public int length() {
+		return pageChars[pageCount];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		char[] chars = new char[end - start];
+		getChars(start, end, chars, 0);
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+
+	/**
+	 * Returns the byte at the given position of the file.
+	 */
+	private byte byteAt(long position) {
+		return regions[(int) (position / REGION_SIZE)].get((int) (position % REGION_SIZE));
+	}
+
+	/**
+	 * Decodes the bytes from <code>start</code> to <code>end</code>,
+	 * normalizing line separators. While the file is indexed, the detector
+	 * is handed the separators found and may change the charset.
+	 */
+	private Page decode(long start, long end, FormatDetector detector) {
+		int length = (int) (end - start);
+		int read = 0;
+		while (read < length) {
+			long position = start + read;
+			MappedByteBuffer region = regions[(int) (position / REGION_SIZE)];
+			int offset = (int) (position % REGION_SIZE);
+			int count = Math.min(length - read, region.capacity() - offset);
+			region.position(offset);
+			region.get(bytes, read, count);
+			read += count;
+		}
+
+		// Neither UTF-8 nor single byte charsets decode to more chars than bytes
+		CharBuffer out = CharBuffer.allocate(length);
+		decoder.reset();
+		CoderResult result = decoder.decode(ByteBuffer.wrap(bytes, 0, length), out, true);
+		if (result.isError() && detector != null && detector.isValidating()) {
+			for (int i = 0; i < out.position() && !detector.hasNonAscii(); i++) {
+				if (out.get(i) >= 0x80) {
+					detector.nonAsciiFound();
+				}
+			}
+			CharsetDecoder newDecoder = detector.malformedInput();
+			setCharset(detector.getCharset(), newDecoder);
+			return decode(start, end, detector);
+		}
+		decoder.flush(out);
+
+		char[] chars = out.array();
+		int count = out.position();
+
+		int[] breaks = new int[16];
+		int breakCount = 0;
+		int carriageReturns = 0;
+		int carriageReturnLineFeeds = 0;
+		boolean nonAscii = false;
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			char c = chars[i];
+			if (c == '\r') {
+				if (i + 1 < count && chars[i + 1] == '\n') {
+					carriageReturnLineFeeds++;
+					continue;
+				}
+				carriageReturns++;
+				c = '\n';
+			} else if (c >= 0x80) {
+				nonAscii = true;
+			}
+			if (c == '\n') {
+				if (breakCount == breaks.length) {
+					breaks = Arrays.copyOf(breaks, breakCount * 2);
+				}
+				breaks[breakCount++] = n;
+			}
+			chars[n++] = c;
+		}
+
+		if (detector != null) {
+			detector.separatorsFound(breakCount - carriageReturns - carriageReturnLineFeeds,
+					carriageReturns, carriageReturnLineFeeds);
+			if (nonAscii) {
+				detector.nonAsciiFound();
+			}
+		}
+		return new Page(chars, n, breaks, breakCount);
+	}
+
+	/**
+	 * Splits the file in pages, from the end of its byte order mark, and
+	 * records where each one starts.
+	 */
+	private void index(long start, ProgressListener listener, FormatDetector detector)
+			throws IOException {
+		int capacity = (int) (size / PAGE_SIZE) + 2;
+		pageBytes = new long[capacity];
+		pageChars = new int[capacity];
+		pageBreaks = new int[capacity];
+
+		long chars = 0;
+		long breaks = 0;
+		while (start < size) {
+			long end = pageEnd(start);
+
+			if (pageCount + 1 >= pageBytes.length) {
+				int newCapacity = pageBytes.length * 2;
+				pageBytes = Arrays.copyOf(pageBytes, newCapacity);
+				pageChars = Arrays.copyOf(pageChars, newCapacity);
+				pageBreaks = Arrays.copyOf(pageBreaks, newCapacity);
+			}
+
+			Page page = decode(start, end, detector);
+			pageBytes[pageCount] = start;
+			pageChars[pageCount] = (int) chars;
+			pageBreaks[pageCount] = (int) breaks;
+			pageCount++;
+
+			chars += page.length;
+			breaks += page.breakCount;
+			// A document can't hold more than Integer.MAX_VALUE chars, counting
+			// the implied break
+			if (chars >= Integer.MAX_VALUE) {
+				throw new IOException("File too large: " + file);
+			}
+
+			start = end;
+
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("Indexing interrupted: " + file);
+			}
+			if (listener != null) {
+				listener.progressChanged(start, size);
+			}
+		}
+
+		pageBytes[pageCount] = size;
+		pageChars[pageCount] = (int) chars;
+		pageBreaks[pageCount] = (int) breaks;
+	}
+
+	/**
+	 * Returns the decoded page, from the cache if possible.
+	 */
+	private Page page(int p) {
+		Page page = cache.get(p);
+		if (page == null) {
+			page = decode(pageBytes[p], pageBytes[p + 1], null);
+			cache.put(p, page);
+		}
+		return page;
+	}
+
+	/**
+	 * Sets the charset the file is decoded with.
+	 */
+	private void setCharset(Charset charset, CharsetDecoder decoder) {
+		this.charset = charset;
+		this.utf8 = charset.name().equals("UTF-8");
+		this.decoder = decoder;
+	}
+
+	/**
+	 * Chooses where the page starting at <code>start</code> ends, never
+	 * splitting a character or a "\r\n" sequence.
+	 */
+	private long pageEnd(long start) {
+		long end = start + PAGE_SIZE;
+		if (end >= size) {
+			return size;
+		}
+
+		if (utf8) {
+			// Steps back out of continuation bytes (10xxxxxx)
+			long lead = end;
+			while (lead > end - 4 && lead > start && (byteAt(lead) & 0xC0) == 0x80) {
+				lead--;
+			}
+			if (lead > start && (byteAt(lead) & 0xC0) != 0x80) {
+				end = lead;
+			}
+		}
+
+		if (byteAt(end - 1) == '\r' && byteAt(end) == '\n') {
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Binary searches the page containing the given character offset.
+	 */
+	private int pageOf(int index) {
+		int low = 0;
+		int high = pageCount - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (pageChars[middle] <= index) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,24 @@
+package zephyr.file;
+
+/**
+ * Receives the progress of a long running file operation, such as reading a
+ * large file.
+ *
+ * @see FileManager#readChars(java.nio.file.Path, ProgressListener)
+ * @see MappedText#MappedText(java.nio.file.Path, java.nio.charset.Charset,
+ *      ProgressListener)
+ *
+ */
+public interface ProgressListener {
+
+	/**
+	 * Called each time a chunk of the file is processed, on the thread doing
+	 * the work.
+	 *
+	 * @param done
+	 *            the number of bytes processed so far
+	 * @param total
+	 *            the size of the file, in bytes
+	 */
+	void progressChanged(long done, long total);
+}
@@ -0,0 +1,65 @@
+package zephyr.file;
+
+import java.nio.charset.Charset;
+
+/**
+ * How a text file is laid out on the disk: its charset, whether it starts
+ * with a byte order mark and which line separator it uses. It's detected
+ * while the file is read (see {@link FormatDetector}) and used again when the
+ * file is written, so saving a file doesn't change more than what was edited.
+ *
+ */
+public class TextFormat {
+
+	private final Charset charset;
+
+	private final boolean byteOrderMark;
+
+	private final String lineSeparator;
+
+	/**
+	 * Creates a format.
+	 *
+	 * @param charset
+	 *            the charset
+	 * @param byteOrderMark
+	 *            whether the text starts with a byte order mark
+	 * @param lineSeparator
+	 *            the line separator, or <code>null</code> if the text has a
+	 *            single line, in which case the preferred one is used
+	 */
+	public TextFormat(Charset charset, boolean byteOrderMark, String lineSeparator) {
+		this.charset = charset;
+		this.byteOrderMark = byteOrderMark;
+		this.lineSeparator = lineSeparator;
+	}
+
+	/**
+	 * Returns the format of new files: the platform's default charset, with
+	 * no byte order mark and the preferred line separator.
+	 */
+	public static TextFormat getDefault() {
+		return new TextFormat(Charset.defaultCharset(), false, null);
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Returns the line separator, or <code>null</code> if the preferred one
+	 * should be used.
+	 */
+	public String getLineSeparator() {
+		return lineSeparator;
+	}
+
+	public boolean hasByteOrderMark() {
+		return byteOrderMark;
+	}
+
+	@Override
+	public String toString() {
+		return charset + (byteOrderMark ? " (BOM)" : "");
+	}
+}
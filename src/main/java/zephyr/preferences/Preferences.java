@@ -35,6 +35,17 @@ public class Preferences implements Serializable {
 
 	public static final boolean LINE_WRAP = true;
 
+	/**
+	 * The size, in megabytes, from which files are mapped to memory instead of
+	 * read.
+	 */
+	public static final int LARGE_FILE_THRESHOLD = 100;
+
+	/**
+	 * The memory, in megabytes, the undo history of each document can take.
+	 */
+	public static final int UNDO_MEMORY_LIMIT = 16;
+
 	public static final Color BACKGROUND_COLOR = Color.WHITE;
 
 	public static final boolean REMEMBER_CURRENT_SESSION = true;
@@ -73,6 +84,10 @@ public class Preferences implements Serializable {
 
 	private Boolean lineWrap;
 
+	private Integer largeFileThreshold;
+
+	private Integer undoMemoryLimit;
+
 	private Color backgroundColor;
 
 	private Boolean rememberCurrentSession;
@@ -98,6 +113,8 @@ public class Preferences implements Serializable {
 		fontSize = FONT_SIZE;
 		tabSize = TAB_SIZE;
 		lineWrap = LINE_WRAP;
+		largeFileThreshold = LARGE_FILE_THRESHOLD;
+		undoMemoryLimit = UNDO_MEMORY_LIMIT;
 		backgroundColor = BACKGROUND_COLOR;
 
 		rememberCurrentSession = REMEMBER_CURRENT_SESSION;
@@ -150,6 +167,10 @@ public class Preferences implements Serializable {
 		return alwaysOnTop;
 	}
 
+	public Integer getLargeFileThreshold() {
+		return largeFileThreshold;
+	}
+
 	public String getLanguage() {
 		return language;
 	}
@@ -190,6 +211,10 @@ public class Preferences implements Serializable {
 		return tabSize;
 	}
 
+	public Integer getUndoMemoryLimit() {
+		return undoMemoryLimit;
+	}
+
 	public Boolean alwaysOnTop() {
 		return alwaysOnTop;
 	}
@@ -206,6 +231,14 @@ public class Preferences implements Serializable {
 		this.language = language;
 	}
 
+	public Integer largeFileThreshold() {
+		return largeFileThreshold;
+	}
+
+	public void largeFileThreshold(Integer largeFileThreshold) {
+		this.largeFileThreshold = largeFileThreshold;
+	}
+
 	public String lineSeparator() {
 		return lineSeparator;
 	}
@@ -282,6 +315,10 @@ public class Preferences implements Serializable {
 		this.language = language;
 	}
 
+	public void setLargeFileThreshold(Integer largeFileThreshold) {
+		this.largeFileThreshold = largeFileThreshold;
+	}
+
 	public void setLineSeparator(String lineSeparator) {
 		this.lineSeparator = lineSeparator;
 	}
@@ -318,6 +355,10 @@ public class Preferences implements Serializable {
 		this.tabSize = tabSize;
 	}
 
+	public void setUndoMemoryLimit(Integer undoMemoryLimit) {
+		this.undoMemoryLimit = undoMemoryLimit;
+	}
+
 	public Boolean showSplashScreen() {
 		return showSplashScreen;
 	}
@@ -333,4 +374,12 @@ public class Preferences implements Serializable {
 	public void tabSize(Integer tabSize) {
 		this.tabSize = tabSize;
 	}
+
+	public Integer undoMemoryLimit() {
+		return undoMemoryLimit;
+	}
+
+	public void undoMemoryLimit(Integer undoMemoryLimit) {
+		this.undoMemoryLimit = undoMemoryLimit;
+	}
 }
@@ -0,0 +1,164 @@
+package zephyr.text;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+import zephyr.text.exceptions.SearchInterruptedException;
+
+/**
+ * A read only {@link CharSequence} view of a {@link Document}'s content, so
+ * it can be matched by {@link java.util.regex.Matcher} without copying the
+ * whole text to a {@link String}. Characters are copied a small window at a
+ * time, with the document locked for reading, so the view can be read by a
+ * thread other than the event dispatch thread without holding the lock for
+ * the whole match. If the document changes while it's read, a
+ * {@link IndexOutOfBoundsException} may be thrown.
+ * <p>
+ * A regular expression may take exponential time on some inputs, so the view
+ * checks, every few thousand characters read, whether the reading thread was
+ * interrupted or a deadline was passed, and throws a
+ * {@link SearchInterruptedException} if so.
+ * 
+ */
+class DocumentCharSequence implements CharSequence {
+
+	/**
+	 * The number of characters read between checks for interruption.
+	 */
+	private static final int CHECK_INTERVAL = 1 << 12;
+
+	/**
+	 * The number of characters copied at a time.
+	 */
+	private static final int WINDOW_SIZE = 1 << 14;
+
+	/**
+	 * Throws a {@link SearchInterruptedException} if the current thread was
+	 * interrupted or the deadline, given by {@link System#nanoTime()}, was
+	 * passed.
+	 */
+	static void checkInterrupted(long deadline) {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new SearchInterruptedException("Search interrupted");
+		}
+		if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+			throw new SearchInterruptedException("Search timed out");
+		}
+	}
+
+	private final Document doc;
+
+	private final int start;
+
+	private final int length;
+
+	/**
+	 * The time, as given by {@link System#nanoTime()}, after which reading is
+	 * interrupted, or <code>Long.MAX_VALUE</code> if there's no deadline.
+	 */
+	private final long deadline;
+
+	private final char[] window = new char[WINDOW_SIZE];
+
+	/**
+	 * The index of the window's first character.
+	 */
+	private int windowStart;
+
+	private int windowLength;
+
+	private final Segment segment = new Segment();
+
+	private BadLocationException fetchException;
+
+	private int reads;
+
+	/**
+	 * Creates a view of the whole document.
+	 * 
+	 * @param doc
+	 *            the document to be viewed
+	 * @param deadline
+	 *            the {@link System#nanoTime()} after which reading is
+	 *            interrupted, or <code>Long.MAX_VALUE</code> for none
+	 */
+	DocumentCharSequence(Document doc, long deadline) {
+		this(doc, 0, doc.getLength(), deadline);
+	}
+
+	private DocumentCharSequence(Document doc, int start, int length, long deadline) {
+		this.doc = doc;
+		this.start = start;
+		this.length = length;
+		this.deadline = deadline;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length);
+		}
+
+		if (++reads == CHECK_INTERVAL) {
+			reads = 0;
+			checkInterrupted(deadline);
+		}
+
+		if (index < windowStart || index >= windowStart + windowLength) {
+			// Matchers step back now and then, so the window starts a bit
+			// before the character read
+			fetch(Math.max(0, index - (WINDOW_SIZE >> 2)));
+		}
+		return window[index - windowStart];
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Start: " + start + ", End: " + end);
+		}
+		return new DocumentCharSequence(doc, this.start + start, end - start, deadline);
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return doc.getText(start, length);
+		} catch (BadLocationException e) {
+			throw new IndexOutOfBoundsException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Copies the characters from <code>index</code> on to the window.
+	 */
+	private void fetch(final int index) {
+		windowStart = index;
+		windowLength = Math.min(WINDOW_SIZE, length - index);
+		doc.render(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					doc.getText(start + windowStart, windowLength, segment);
+					System.arraycopy(segment.array, segment.offset, window, 0, windowLength);
+				} catch (BadLocationException e) {
+					fetchException = e;
+				}
+			}
+		});
+
+		if (fetchException != null) {
+			windowLength = 0;
+			BadLocationException e = fetchException;
+			fetchException = null;
+			throw new IndexOutOfBoundsException(e.getMessage());
+		}
+	}
+}
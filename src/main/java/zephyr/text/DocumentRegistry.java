@@ -0,0 +1,124 @@
+package zephyr.text;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The open documents, by the files they're stored in, so telling whether a
+ * file is already open doesn't take checking every document. A file is found
+ * by its real path, so paths that differ only by being relative, having
+ * redundant elements or going through symbolic links match the same file,
+ * and by its file key (like its inode), where the file system has one, which
+ * matches hard links too.
+ * <p>
+ * The keys of a document are taken when it's registered, so it must be
+ * registered again once its path changes, or its file is written, as saving
+ * may replace the file by a new one, with a new file key. A file key found
+ * is confirmed against the document's file anyway, as file systems reuse the
+ * keys of deleted files. Documents without a path aren't registered.
+ *
+ */
+public class DocumentRegistry {
+
+	private final Map<Object, TextDocument> documents = new HashMap<Object, TextDocument>();
+
+	private final Map<TextDocument, List<Object>> keys = new IdentityHashMap<TextDocument, List<Object>>();
+
+	/**
+	 * Registers a document under the keys of its path, replacing the ones it
+	 * was registered under, if any.
+	 *
+	 * @param doc
+	 *            the document
+	 */
+	public void register(TextDocument doc) {
+		unregister(doc);
+		if (doc.getPath() == null) {
+			return;
+		}
+		List<Object> docKeys = keysOf(doc.getPath());
+		for (Object key : docKeys) {
+			documents.put(key, doc);
+		}
+		keys.put(doc, docKeys);
+	}
+
+	/**
+	 * Removes a document from the registry.
+	 *
+	 * @param doc
+	 *            the document
+	 */
+	public void unregister(TextDocument doc) {
+		List<Object> docKeys = keys.remove(doc);
+		if (docKeys == null) {
+			return;
+		}
+		for (Object key : docKeys) {
+			// The key may have been taken by another document since
+			if (documents.get(key) == doc) {
+				documents.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Returns the open document stored in a file.
+	 *
+	 * @param path
+	 *            the path of the file
+	 * @return the document, or <code>null</code> if the file isn't open
+	 */
+	public TextDocument get(String path) {
+		for (Object key : keysOf(path)) {
+			TextDocument doc = documents.get(key);
+			if (doc == null) {
+				continue;
+			}
+			if (key instanceof Path) {
+				return doc;
+			}
+			// The file key may be left from a file replaced since
+			register(doc);
+			if (keys.get(doc).contains(key)) {
+				return doc;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The keys of a file: its real path, or its absolute normalized path if it
+	 * doesn't exist, and its file key, if there's one.
+	 */
+	private static List<Object> keysOf(String path) {
+		List<Object> fileKeys = new ArrayList<Object>(2);
+		Path file;
+		try {
+			file = Paths.get(path).toAbsolutePath().normalize();
+		} catch (InvalidPathException e) {
+			fileKeys.add(path);
+			return fileKeys;
+		}
+		try {
+			file = file.toRealPath();
+			Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+			if (fileKey != null) {
+				fileKeys.add(fileKey);
+			}
+		} catch (IOException e) {
+			// Not written yet, or unreadable: only its path is known
+		}
+		fileKeys.add(file);
+		return fileKeys;
+	}
+}
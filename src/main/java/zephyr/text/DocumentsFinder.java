@@ -0,0 +1,102 @@
+package zephyr.text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import javax.swing.text.Document;
+
+/**
+ * Searches several documents at once, like every document open on the
+ * editor. The documents are split between the tasks of a
+ * {@link ForkJoinPool}, so they're searched in parallel, each one locked for
+ * reading while it's searched so its results are consistent.
+ * 
+ * @see SearchPattern
+ * 
+ */
+public class DocumentsFinder {
+
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	/**
+	 * Searches a range of the documents, splitting it in halves until a
+	 * single document is left.
+	 */
+	private static class SearchTask<D extends Document> extends
+			RecursiveTask<List<SearchResults<D>>> {
+
+		private static final long serialVersionUID = 6350384290163416417L;
+
+		private final List<D> documents;
+
+		private final SearchPattern pattern;
+
+		private final int from;
+
+		private final int to;
+
+		SearchTask(List<D> documents, SearchPattern pattern, int from, int to) {
+			this.documents = documents;
+			this.pattern = pattern;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<SearchResults<D>> compute() {
+			if (to - from == 1) {
+				List<SearchResults<D>> results = new ArrayList<SearchResults<D>>(1);
+				results.add(search(documents.get(from), pattern));
+				return results;
+			}
+
+			int middle = (from + to) >>> 1;
+			SearchTask<D> right = new SearchTask<D>(documents, pattern, middle, to);
+			right.fork();
+			List<SearchResults<D>> results = new SearchTask<D>(documents, pattern, from, middle)
+					.compute();
+			results.addAll(right.join());
+			return results;
+		}
+	}
+
+	/**
+	 * Searches the documents in parallel, blocking until all of them are
+	 * searched.
+	 * 
+	 * @param documents
+	 *            the documents to be searched
+	 * @param pattern
+	 *            the pattern to be found
+	 * @return the results of each document, in the order the documents were
+	 *         given
+	 */
+	public static <D extends Document> List<SearchResults<D>> findAll(List<D> documents,
+			SearchPattern pattern) {
+		if (documents.isEmpty()) {
+			return new ArrayList<SearchResults<D>>();
+		}
+		return POOL.invoke(new SearchTask<D>(documents, pattern, 0, documents.size()));
+	}
+
+	/**
+	 * Searches a document, locked for reading.
+	 */
+	private static <D extends Document> SearchResults<D> search(final D doc,
+			final SearchPattern pattern) {
+		final List<SearchResults<D>> results = new ArrayList<SearchResults<D>>(1);
+		doc.render(new Runnable() {
+
+			@Override
+			public void run() {
+				results.add(SearchResults.of(doc, doc, pattern.findAll(doc)));
+			}
+		});
+		return results.get(0);
+	}
+
+	private DocumentsFinder() {
+	}
+}
@@ -0,0 +1,32 @@
+package zephyr.text;
+
+import java.nio.file.Path;
+
+/**
+ * The listener notified by a {@link FilesFinder} as the files of a directory
+ * are searched. It's called on the searching threads, so implementations
+ * updating Swing components must hand the results to the Event Dispatch
+ * Thread.
+ *
+ */
+public interface FileSearchListener {
+
+	/**
+	 * Called after a file with matches is searched.
+	 *
+	 * @param results
+	 *            the results of the file, never empty
+	 */
+	void resultsFound(SearchResults<Path> results);
+
+	/**
+	 * Called once, after every file is searched or the search is cancelled.
+	 *
+	 * @param files
+	 *            the number of files searched, leaving out the binary ones
+	 * @param cancelled
+	 *            whether the search was cancelled before every file was
+	 *            searched
+	 */
+	void searchFinished(int files, boolean cancelled);
+}
@@ -0,0 +1,366 @@
+package zephyr.text;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import zephyr.file.FileManager;
+import zephyr.file.MappedText;
+import zephyr.text.exceptions.SearchInterruptedException;
+
+/**
+ * Searches the files of a directory tree, like a 'grep' on the editor. The
+ * tree is walked on a thread of its own, which hands each file accepted by
+ * the filters to a pool of searching threads, so files are read and searched
+ * in parallel. The pool's queue is bounded, so walking a tree with hundreds of
+ * thousands of files doesn't queue all of them at once.
+ * <p>
+ * Small files are read in bulk through {@link FileManager#readChars(Path)};
+ * large ones are mapped to memory by a {@link MappedText}, so no file is
+ * loaded whole on the heap. Files with a NUL byte on their first bytes are
+ * taken as binary and skipped. Results are handed to a
+ * {@link FileSearchListener} as soon as each file is searched.
+ *
+ * @see SearchPattern#findAll(CharSequence)
+ *
+ */
+public class FilesFinder {
+
+	/**
+	 * The size, in megabytes, from which files are mapped instead of read.
+	 */
+	private static final int MAPPED_THRESHOLD = 1;
+
+	/**
+	 * The number of bytes read from the start of a file to check whether it's
+	 * binary.
+	 */
+	private static final int SNIFF_SIZE = 1 << 13;
+
+	/**
+	 * The number of files searched at the same time.
+	 */
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The number of files waiting to be searched after which the walking
+	 * thread searches the files it finds by itself.
+	 */
+	private static final int QUEUE_SIZE = 1 << 10;
+
+	/**
+	 * Compiles a list of globs, separated by commas or semicolons, to
+	 * {@link PathMatcher}s.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a glob is invalid
+	 */
+	private static List<PathMatcher> compileGlobs(String globs) {
+		List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+		if (globs != null) {
+			for (String glob : globs.split("[,;]")) {
+				glob = glob.trim();
+				if (!glob.isEmpty()) {
+					matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+				}
+			}
+		}
+		return matchers;
+	}
+
+	/**
+	 * Checks whether any of the matchers matches the path, relative to the
+	 * searched directory, or its file name.
+	 */
+	private static boolean matches(List<PathMatcher> matchers, Path relative) {
+		Path name = relative.getFileName();
+		for (PathMatcher matcher : matchers) {
+			if (matcher.matches(relative) || (name != null && matcher.matches(name))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a file is binary, by looking for a NUL byte on its first
+	 * bytes.
+	 */
+	private static boolean isBinary(Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SNIFF_SIZE);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+				// Reads until the buffer is full or the file ends
+			}
+		} finally {
+			channel.close();
+		}
+
+		for (int i = 0; i < buffer.position(); i++) {
+			if (buffer.get(i) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private final Path root;
+
+	private final SearchPattern pattern;
+
+	/**
+	 * The lower case extensions of the files searched, or an empty set to
+	 * search files with any extension.
+	 */
+	private final Set<String> extensions = new HashSet<String>();
+
+	private final List<PathMatcher> includes;
+
+	private final List<PathMatcher> excludes;
+
+	private final FileManager fileManager = new FileManager();
+
+	private final AtomicInteger searchedFiles = new AtomicInteger();
+
+	private volatile boolean cancelled;
+
+	private ThreadPoolExecutor executor;
+
+	private Thread walker;
+
+	/**
+	 * Creates a finder for the files of a directory tree.
+	 *
+	 * @param root
+	 *            the directory to be searched, with its subdirectories
+	 * @param pattern
+	 *            the pattern to be found
+	 * @param extensions
+	 *            the extensions of the files searched, like the ones of a
+	 *            {@link javax.swing.filechooser.FileNameExtensionFilter}, or
+	 *            <code>null</code> for any
+	 * @param includes
+	 *            globs, separated by commas, matching the files searched, or
+	 *            <code>null</code> for any; globs are matched against the path
+	 *            relative to <code>root</code> and against the file's name
+	 * @param excludes
+	 *            globs, separated by commas, matching the files and
+	 *            directories left out, or <code>null</code> for none
+	 * @throws IllegalArgumentException
+	 *             if <code>root</code> is not a directory or a glob is invalid
+	 */
+	public FilesFinder(Path root, SearchPattern pattern, String[] extensions, String includes,
+			String excludes) {
+		if (!Files.isDirectory(root)) {
+			throw new IllegalArgumentException("Not a directory: " + root);
+		}
+
+		this.root = root;
+		this.pattern = pattern;
+		if (extensions != null) {
+			for (String extension : extensions) {
+				this.extensions.add(extension.toLowerCase());
+			}
+		}
+		this.includes = compileGlobs(includes);
+		this.excludes = compileGlobs(excludes);
+	}
+
+	/**
+	 * Stops the search. The files being searched are interrupted and the
+	 * remaining ones are left out; the listener is still notified when the
+	 * search finishes.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		if (executor != null) {
+			executor.shutdownNow();
+			walker.interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of files searched so far, leaving out the binary
+	 * ones.
+	 */
+	public int getSearchedFiles() {
+		return searchedFiles.get();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Starts searching the files, in background. It can be called only once.
+	 *
+	 * @param listener
+	 *            the listener notified of the results, on the searching threads
+	 * @throws IllegalStateException
+	 *             if the search was already started
+	 */
+	public synchronized void start(final FileSearchListener listener) {
+		if (executor != null) {
+			throw new IllegalStateException("Search already started");
+		}
+
+		executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Zephyr file searcher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+		walker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					walk(listener);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+
+				executor.shutdown();
+				boolean terminated = false;
+				while (!terminated) {
+					try {
+						terminated = executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+					} catch (InterruptedException e) {
+						// Cancelled: waits for the interrupted files to stop
+					}
+				}
+				listener.searchFinished(searchedFiles.get(), cancelled);
+			}
+		}, "Zephyr file walker");
+		walker.setDaemon(true);
+		walker.start();
+	}
+
+	/**
+	 * Checks whether a file is accepted by the extensions and the globs.
+	 */
+	private boolean accept(Path file) {
+		Path relative = root.relativize(file);
+		if (!extensions.isEmpty()) {
+			String name = file.getFileName().toString();
+			int dot = name.lastIndexOf('.');
+			if (dot == -1 || !extensions.contains(name.substring(dot + 1).toLowerCase())) {
+				return false;
+			}
+		}
+		if (!includes.isEmpty() && !matches(includes, relative)) {
+			return false;
+		}
+		return !matches(excludes, relative);
+	}
+
+	/**
+	 * Reads a file, mapping it to memory if it's large.
+	 */
+	private CharSequence read(Path file) throws IOException {
+		if (MappedText.isLarge(file, MAPPED_THRESHOLD)) {
+			try {
+				return new MappedText(file);
+			} catch (IOException e) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				// The platform's charset can't be mapped; reads the file
+				// instead
+			}
+		}
+		return fileManager.readChars(file);
+	}
+
+	/**
+	 * Searches a file, notifying the listener if there are matches.
+	 */
+	private void search(Path file, FileSearchListener listener) {
+		if (cancelled) {
+			return;
+		}
+
+		try {
+			if (isBinary(file)) {
+				return;
+			}
+			CharSequence text = read(file);
+			MatchList matches = pattern.findAll(text);
+			searchedFiles.incrementAndGet();
+			if (!matches.isEmpty() && !cancelled) {
+				listener.resultsFound(SearchResults.of(file, text, matches));
+			}
+		} catch (SearchInterruptedException e) {
+			// Cancelled
+		} catch (IOException e) {
+			if (!cancelled) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Walks the tree, handing the files accepted to the searching threads.
+	 */
+	private void walk(final FileSearchListener listener) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if (cancelled) {
+					return FileVisitResult.TERMINATE;
+				}
+				if (!dir.equals(root) && matches(excludes, root.relativize(dir))) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) {
+				if (cancelled) {
+					return FileVisitResult.TERMINATE;
+				}
+				if (attrs.isRegularFile() && attrs.size() > 0 && accept(file)) {
+					executor.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							search(file, listener);
+						}
+					});
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// Unreadable files and directories are left out
+				return cancelled ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -1,16 +1,33 @@
 package zephyr.text;
 
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.ArrayList;
-
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Document;
+import javax.swing.text.Highlighter;
 
 import zephyr.text.exceptions.NoMatchesFoundException;
+import zephyr.text.exceptions.SearchInterruptedException;
 import zephyr.ui.components.TextArea;
 
 /**
  * @author Fuad Saud
- * 
+ *
  */
 public class Finder {
 
@@ -24,23 +41,82 @@ public class Finder {
 
 	public static final int REGULAR_EXPRESSION = 1 << 3;
 
+	/**
+	 * The time, in milliseconds, after which a search is given up, so a
+	 * regular expression with catastrophic backtracking can't hang the UI.
+	 */
+	public static final long TIMEOUT = 5000;
+
+	/**
+	 * The number of characters searched on each batch of a background search.
+	 */
+	private static final int BATCH_SIZE = 1 << 18;
+
+	private static final Color HIGHLIGHT_COLOR = new Color(255, 230, 110);
+
+	private static final Highlighter.HighlightPainter HIGHLIGHT_PAINTER = new DefaultHighlighter.DefaultHighlightPainter(
+			HIGHLIGHT_COLOR);
+
+	/**
+	 * Runs the background searches. Only the latest one matters, so a single
+	 * thread is enough.
+	 */
+	private static final ExecutorService SEARCH_EXECUTOR = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Zephyr searcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
 	private final TextArea textArea;
 
 	private String search;
 
-	private ArrayList<Integer> results;
+	/**
+	 * The compiled <code>search</code>, reused while the search and the
+	 * modifiers don't change.
+	 */
+	private SearchPattern pattern;
+
+	private MatchList results;
 
 	private int modifiers;
 
-	private int currentIndex = 0;
+	private boolean updated;
 
-	private boolean wrapEnd = false;
+	/**
+	 * Whether a background search is filling the results.
+	 */
+	private boolean searching;
 
-	private boolean wrapBegin = false;
+	/**
+	 * The offset up to which the background search has gone. The results
+	 * hold every match starting before it.
+	 */
+	private int searched;
 
-	private boolean updated;
+	/**
+	 * Incremented each time a background search is started or cancelled, so
+	 * batches of an outdated search are ignored.
+	 */
+	private int generation;
+
+	private Future<?> worker;
 
-	private NoMatchesFoundException lastException;
+	private SearchListener listener;
+
+	/**
+	 * The tags of the highlights currently painted.
+	 */
+	private final List<Object> highlights = new ArrayList<Object>();
+
+	private final DocumentListener documentListener;
+
+	private final ChangeListener viewportListener;
 
 	public Finder(TextArea textArea) {
 		this.textArea = textArea;
@@ -50,7 +126,7 @@ public class Finder {
 
 		this.updated = false;
 
-		textArea.getDocument().addDocumentListener(new DocumentListener() {
+		documentListener = new DocumentListener() {
 
 			@Override
 			public void changedUpdate(DocumentEvent e) {
@@ -59,33 +135,72 @@ public class Finder {
 
 			@Override
 			public void insertUpdate(DocumentEvent e) {
-				updated = false;
+				update(e.getOffset(), e.getLength());
 			}
 
 			@Override
 			public void removeUpdate(DocumentEvent e) {
-				updated = false;
+				update(e.getOffset(), -e.getLength());
+			}
+		};
+		textArea.getDocument().addDocumentListener(documentListener);
 
+		viewportListener = new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				highlight();
 			}
-		});
+		};
+		JViewport viewport = getViewport();
+		if (viewport != null) {
+			viewport.addChangeListener(viewportListener);
+		}
 	}
 
+	/**
+	 * Cancels the background search, if any, and removes the highlights of the
+	 * matches.
+	 */
+	public void cancel() {
+		stopSearching();
+		search = null;
+		results = null;
+		listener = null;
+		removeHighlights();
+	}
+
+	/**
+	 * Cancels any search and stops listening to the text area. The finder
+	 * must not be used afterwards.
+	 */
+	public void dispose() {
+		cancel();
+		textArea.getDocument().removeDocumentListener(documentListener);
+		JViewport viewport = getViewport();
+		if (viewport != null) {
+			viewport.removeChangeListener(viewportListener);
+		}
+	}
+
+	/**
+	 * Searches the text area's document and selects the next or the previous
+	 * match, relative to the caret or to the current selection. If a
+	 * background search for the same string is running, it's finished here.
+	 *
+	 * @throws NoMatchesFoundException
+	 *             if there are no matches
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             if <code>search</code> is not a valid regular expression
+	 * @throws zephyr.text.exceptions.SearchInterruptedException
+	 *             if the search takes longer than {@link #TIMEOUT}
+	 */
 	public void find(String search, byte direction, int modifiers) throws NoMatchesFoundException {
 		textArea.requestFocus();
-		if (this.search == null || !this.search.equals(search) || this.modifiers != modifiers
-				|| !updated || lastException != null) {
-			this.search = search;
-			this.modifiers = modifiers;
-			TextDocument doc = textArea.getTextDocument();
-			results = doc.find(search, wholeWord(), matchCase());
-			this.updated = true;
-			this.currentIndex = 0;
-			if (results.size() == 0) {
-
-				throw lastException = new NoMatchesFoundException();
-			}
+		findAll(search, modifiers);
 
-			lastException = null;
+		if (results.isEmpty()) {
+			throw new NoMatchesFoundException();
 		}
 
 		if (direction == FIND_PREVIOUS) {
@@ -96,90 +211,385 @@ public class Finder {
 
 	}
 
-	private void findNext() {
-		int caretPos = textArea.getCaretPosition();
-		if (wrapEnd) {
-			caretPos = 0;
-			wrapEnd = false;
-			wrapBegin = true;
+	/**
+	 * Replaces the selected text, if it's a match, and selects the next
+	 * match.
+	 *
+	 * @param replacement
+	 *            the replacement of the match, which may refer to the groups
+	 *            of a regular expression
+	 * @throws NoMatchesFoundException
+	 *             if there are no matches
+	 * @throws IllegalArgumentException
+	 *             if the replacement refers to a group that doesn't exist
+	 * @see SearchPattern#expand(Document, int, int, String)
+	 */
+	public void replace(String search, String replacement, int modifiers)
+			throws NoMatchesFoundException {
+		textArea.requestFocus();
+		findAll(search, modifiers);
+
+		int start = textArea.getSelectionStart();
+		int end = textArea.getSelectionEnd();
+		int i = results.indexAtOrAfter(start);
+		if (start != end && i < results.size() && results.get(i) == start
+				&& results.getEnd(i) == end) {
+			TextDocument doc = textArea.getTextDocument();
+			String text = pattern.expand(doc, start, end, replacement);
+			if (text != null) {
+				try {
+					doc.replace(start, end - start, text, null);
+					textArea.setCaretPosition(start + text.length());
+				} catch (BadLocationException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 
-		caretPos = caretPos - search.length() + 1;
+		find(search, FIND_NEXT, modifiers);
+	}
 
-		// Finds the next result to be selected
-		for (int i = 0; i < results.size(); i++) {
-			if (currentIndex == results.size() - 1) {
-				currentIndex = 0;
+	/**
+	 * Replaces every match on the document. The replaced text is built in a
+	 * single pass and applied as a single edit, so it's undone at once and
+	 * the document's listeners are notified once, instead of once per match.
+	 *
+	 * @param replacement
+	 *            the replacement of each match, which may refer to the groups
+	 *            of a regular expression
+	 * @return the number of matches replaced
+	 * @throws IllegalArgumentException
+	 *             if the replacement refers to a group that doesn't exist
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             if <code>search</code> is not a valid regular expression
+	 * @throws zephyr.text.exceptions.SearchInterruptedException
+	 *             if the search takes longer than {@link #TIMEOUT}
+	 * @see SearchPattern#replaceAll(Document, String, StringBuilder, long)
+	 */
+	public int replaceAll(String search, String replacement, int modifiers) {
+		// The results would be updated on each edit: they're searched again
+		// afterwards
+		compile(search, modifiers);
+
+		TextDocument doc = textArea.getTextDocument();
+		StringBuilder text = new StringBuilder();
+		MatchList replaced = pattern.replaceAll(doc, replacement, text, TIMEOUT);
+		if (!replaced.isEmpty()) {
+			int start = replaced.get(0);
+			int end = replaced.getEnd(replaced.size() - 1);
+			try {
+				doc.replace(start, end - start, text.toString(), null);
+			} catch (BadLocationException e) {
+				e.printStackTrace();
 			}
+		}
 
-			if (results.get(i) >= caretPos) {
-				currentIndex = i;
-				textArea.setCaretPosition(results.get(currentIndex));
-				if (i != 0) {
-					wrapBegin = false;
-				}
-				break;
-			} else if (i == results.size() - 1) {
-				// If there's no more matches ahead, return to begin.
-				wrapEnd = true;
-				wrapBegin = false;
-				findNext();
-				return;
+		if (listener != null) {
+			startSearch();
+		}
+		return replaced.size();
+	}
+
+	/**
+	 * Returns the number of matches found by the last search.
+	 *
+	 * @return the number of matches, or 0 if there was no search
+	 */
+	public int getMatchCount() {
+		return results == null ? 0 : results.size();
+	}
+
+	/**
+	 * Starts searching the text area's document in background, cancelling the
+	 * search running before, if any. The matches are sent to the event
+	 * dispatch thread in batches, as they're found, and the ones on the
+	 * visible part of the text area are highlighted.
+	 *
+	 * @param search
+	 *            the string to be found
+	 * @param modifiers
+	 *            the modifiers of the search, like {@link #MATCH_CASE}
+	 * @param listener
+	 *            the listener notified of the matches found
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             if <code>search</code> is not a valid regular expression
+	 */
+	public void search(String search, int modifiers, SearchListener listener) {
+		this.listener = listener;
+		if (search.equals(this.search) && this.modifiers == modifiers && (updated || searching)) {
+			if (updated) {
+				listener.matchesFound(results.size(), true);
 			}
+			return;
 		}
-		caretPos = textArea.getCaretPosition();
-		textArea.setSelectionStart(caretPos);
-		textArea.setSelectionEnd(caretPos + search.length());
+
+		compile(search, modifiers);
+		startSearch();
 	}
 
-	private void findPrevious() {
-		int caretPos = textArea.getCaretPosition();
-		if (wrapBegin) {
-			caretPos = textArea.getText().length();
-			wrapBegin = false;
-			wrapEnd = true;
+	/**
+	 * Compiles a new search, discarding the results of the previous one.
+	 */
+	private void compile(String search, int modifiers) {
+		if (pattern == null
+				|| !pattern.isCompiledFrom(search, matchCase(modifiers), wholeWord(modifiers),
+						regularExpression(modifiers))) {
+			pattern = SearchPattern.compile(search, matchCase(modifiers), wholeWord(modifiers),
+					regularExpression(modifiers));
+		}
+		stopSearching();
+		this.search = search;
+		this.modifiers = modifiers;
+		this.updated = false;
+		this.results = null;
+		removeHighlights();
+	}
+
+	/**
+	 * Makes sure every match of the search is on the results, searching the
+	 * rest of the document on the current thread if needed.
+	 */
+	private void findAll(String search, int modifiers) {
+		if (this.search == null || !this.search.equals(search) || this.modifiers != modifiers) {
+			compile(search, modifiers);
 		}
 
-		boolean shouldInvertSelectionCaretPos = true;
-		for (int i = results.size() - 1; i >= 0; i--) {
-			if (currentIndex == 0) {
-				currentIndex = results.size() - 1;
+		if (searching) {
+			finishSearch();
+		} else if (!updated) {
+			TextDocument doc = textArea.getTextDocument();
+			results = pattern.findAll(doc, TIMEOUT);
+			this.updated = true;
+			highlight();
+			if (listener != null) {
+				listener.matchesFound(results.size(), true);
 			}
+		}
+	}
+
+	/**
+	 * Searches the document in background, from the beginning, handing the
+	 * matches to the event dispatch thread in batches.
+	 */
+	private void startSearch() {
+		stopSearching();
+		results = new MatchList();
+		searched = 0;
+		searching = true;
+		removeHighlights();
+
+		final int searchGeneration = generation;
+		final SearchPattern searchPattern = pattern;
+		final Document doc = textArea.getDocument();
 
-			String selectedText = textArea.getSelectedText();
+		worker = SEARCH_EXECUTOR.submit(new Runnable() {
 
-			if (shouldInvertSelectionCaretPos && selectedText != null
-					&& selectedText.equals(search)
-					&& caretPos == results.get(currentIndex) + search.length()) {
-				caretPos = caretPos - search.length();
-				shouldInvertSelectionCaretPos = false;
+			@Override
+			public void run() {
+				try {
+					searchPattern.findInBatches(doc, BATCH_SIZE, new MatchListener() {
+
+						@Override
+						public void matchesFound(MatchList batch, int searched, int length) {
+							publish(searchGeneration, batch, searched, searched >= length);
+						}
+					});
+				} catch (SearchInterruptedException e) {
+					// Cancelled
+				} catch (IndexOutOfBoundsException e) {
+					// The document changed while it was read: the search is
+					// started over by the edit
+				}
 			}
+		});
+	}
+
+	/**
+	 * Searches the rest of the document on the current thread, after
+	 * cancelling the background search.
+	 */
+	private void finishSearch() {
+		stopSearching();
+		TextDocument doc = textArea.getTextDocument();
+		MatchList rest = pattern.findAll(doc, searched, doc.getLength(), TIMEOUT);
+		for (int i = 0; i < rest.size(); i++) {
+			results.add(rest.get(i), rest.getEnd(i));
+		}
+		updated = true;
+		highlight();
+		if (listener != null) {
+			listener.matchesFound(results.size(), true);
+		}
+	}
+
+	/**
+	 * Hands a batch of matches found in background to the event dispatch
+	 * thread.
+	 */
+	private void publish(final int searchGeneration, final MatchList batch, final int position,
+			final boolean done) {
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				if (searchGeneration != generation) {
+					return;
+				}
+
+				for (int i = 0; i < batch.size(); i++) {
+					results.add(batch.get(i), batch.getEnd(i));
+				}
+				searched = position;
+				if (done) {
+					searching = false;
+					updated = true;
+					worker = null;
+				}
 
-			if (results.get(i) < caretPos) {
-				currentIndex = i;
-				textArea.setCaretPosition(results.get(currentIndex));
-				if (i != results.size() - 1) {
-					wrapEnd = false;
+				highlight();
+				if (listener != null) {
+					listener.matchesFound(results.size(), done);
 				}
-				break;
-			} else if (i == 0) {
-				// If there's no more matches back, return to end.
-				wrapBegin = true;
-				wrapEnd = false;
-				findPrevious();
-				return;
 			}
+		});
+	}
+
+	/**
+	 * Cancels the background search, if any. Batches already sent to the
+	 * event dispatch thread are ignored.
+	 */
+	private void stopSearching() {
+		generation++;
+		if (worker != null) {
+			worker.cancel(true);
+			worker = null;
+		}
+		searching = false;
+	}
+
+	private void findNext() {
+		int from = textArea.getCaretPosition();
+		if (textArea.getSelectionStart() != textArea.getSelectionEnd()) {
+			// Matches may overlap: the next one may start inside the selection
+			from = textArea.getSelectionStart() + 1;
+		}
+
+		int i = results.indexAtOrAfter(from);
+		if (i == results.size()) {
+			// If there's no more matches ahead, return to begin.
+			i = 0;
+		}
+		select(i);
+	}
+
+	private void findPrevious() {
+		int i = results.indexBefore(textArea.getSelectionStart());
+		if (i < 0) {
+			// If there's no more matches back, return to end.
+			i = results.size() - 1;
+		}
+		select(i);
+	}
+
+	/**
+	 * Selects the match at <code>index</code> on the results.
+	 */
+	private void select(int index) {
+		textArea.setCaretPosition(results.get(index));
+		textArea.moveCaretPosition(results.getEnd(index));
+	}
+
+	/**
+	 * Highlights the matches on the visible part of the text area, replacing
+	 * the previous highlights. Highlighting every match of a large document
+	 * would make the highlighter keep a position for each one.
+	 */
+	private void highlight() {
+		removeHighlights();
+		if (results == null || results.isEmpty()) {
+			return;
+		}
+
+		Rectangle visible = textArea.getVisibleRect();
+		int start = textArea.viewToModel(visible.getLocation());
+		int end = textArea.viewToModel(new Point(visible.x + visible.width, visible.y
+				+ visible.height));
+
+		Highlighter highlighter = textArea.getHighlighter();
+		try {
+			// Starts from the match before the visible part, which may end
+			// inside it
+			for (int i = Math.max(results.indexBefore(start), 0); i < results.size()
+					&& results.get(i) <= end; i++) {
+				highlights.add(highlighter.addHighlight(results.get(i), results.getEnd(i),
+						HIGHLIGHT_PAINTER));
+			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void removeHighlights() {
+		Highlighter highlighter = textArea.getHighlighter();
+		for (Object highlight : highlights) {
+			highlighter.removeHighlight(highlight);
+		}
+		highlights.clear();
+	}
+
+	private JViewport getViewport() {
+		return (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, textArea);
+	}
+
+	/**
+	 * Updates the results after an edit, instead of searching the whole
+	 * document again: the matches after the edit are moved, and only the
+	 * matches starting around it are searched. Regular expressions can match
+	 * text far from the edit, so their results are searched again. A
+	 * background search is started over.
+	 *
+	 * @param offset
+	 *            the offset of the edit
+	 * @param delta
+	 *            the number of characters inserted, or minus the number of
+	 *            characters removed
+	 */
+	private void update(int offset, int delta) {
+		if (searching || (updated && pattern.isRegularExpression())) {
+			if (listener != null) {
+				startSearch();
+			} else {
+				stopSearching();
+				updated = false;
+			}
+			return;
 		}
-		caretPos = textArea.getCaretPosition();
-		textArea.setSelectionStart(caretPos);
-		textArea.setSelectionEnd(caretPos + search.length());
+		if (!updated) {
+			return;
+		}
+
+		// Starts from a match ending right before the edit, which may be no
+		// longer a whole word, to a match starting right after it
+		int from = offset - pattern.getLength();
+		int to = offset + Math.max(delta, 0) + 1;
+		int oldTo = offset + Math.max(-delta, 0) + 1;
+		results.replace(from, oldTo, delta, pattern.findAll(textArea.getDocument(), from, to));
+
+		highlight();
+		if (listener != null) {
+			listener.matchesFound(results.size(), true);
+		}
+	}
+
+	private static boolean matchCase(int modifiers) {
+		return (modifiers & MATCH_CASE) != 0;
 	}
 
-	private boolean matchCase() {
-		return (this.modifiers & MATCH_CASE) != 0;
+	private static boolean regularExpression(int modifiers) {
+		return (modifiers & REGULAR_EXPRESSION) != 0;
 	}
 
-	private boolean wholeWord() {
-		return (this.modifiers & WHOLE_WORD) != 0;
+	private static boolean wholeWord(int modifiers) {
+		return (modifiers & WHOLE_WORD) != 0;
 	}
 }
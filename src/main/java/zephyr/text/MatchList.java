@@ -0,0 +1,242 @@
+package zephyr.text;
+
+import java.util.Arrays;
+
+/**
+ * The offsets where the matches of a search start and end, kept in ascending
+ * order on growable <code>int</code> arrays. Offsets are never boxed, so
+ * searching for a frequent string on a large document doesn't fill the heap
+ * with {@link Integer}s, and the match next to a position is found by binary
+ * search.
+ * <p>
+ * The arrays have a gap, like {@link javax.swing.text.GapContent}'s, placed
+ * where the matches were last replaced. The offsets after the gap are stored
+ * relative to a shared shift, so the matches following an edit are moved by
+ * changing the shift, instead of each of them. Edits made close to each other
+ * cost only the matches they touch.
+ *
+ * @see SearchPattern#findAll(javax.swing.text.Document)
+ *
+ */
+public class MatchList {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] starts;
+
+	private int[] ends;
+
+	private int size;
+
+	/**
+	 * The index of the first slot of the gap.
+	 */
+	private int gapStart;
+
+	/**
+	 * The index of the first slot after the gap.
+	 */
+	private int gapEnd;
+
+	/**
+	 * The value added to the offsets stored after the gap.
+	 */
+	private int shift;
+
+	public MatchList() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public MatchList(int initialCapacity) {
+		starts = new int[Math.max(initialCapacity, 1)];
+		ends = new int[starts.length];
+		gapEnd = starts.length;
+	}
+
+	/**
+	 * Appends a match. Matches must be added in ascending order of their
+	 * starts.
+	 *
+	 * @param start
+	 *            the offset where the match starts
+	 * @param end
+	 *            the offset after the last character of the match
+	 * @throws IllegalArgumentException
+	 *             if <code>start</code> is lower than the last start added, or
+	 *             if <code>end</code> is lower than <code>start</code>
+	 */
+	public void add(int start, int end) {
+		if (size > 0 && start < get(size - 1)) {
+			throw new IllegalArgumentException("Matches must be added in order");
+		}
+		if (end < start) {
+			throw new IllegalArgumentException("Match ends before its start");
+		}
+		moveGap(size);
+		insert(start, end);
+	}
+
+	/**
+	 * Returns the offset where the match at <code>index</code> starts.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if there's no match at <code>index</code>
+	 */
+	public int get(int index) {
+		checkIndex(index);
+		return index < gapStart ? starts[index] : starts[index - gapStart + gapEnd] + shift;
+	}
+
+	/**
+	 * Returns the offset after the last character of the match at
+	 * <code>index</code>.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if there's no match at <code>index</code>
+	 */
+	public int getEnd(int index) {
+		checkIndex(index);
+		return index < gapStart ? ends[index] : ends[index - gapStart + gapEnd] + shift;
+	}
+
+	/**
+	 * Finds the first match starting at or after <code>offset</code>.
+	 *
+	 * @return the index of the match, or {@link #size()} if there's none
+	 */
+	public int indexAtOrAfter(int offset) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (get(middle) < offset) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Finds the last match starting before <code>offset</code>.
+	 *
+	 * @return the index of the match, or -1 if there's none
+	 */
+	public int indexBefore(int offset) {
+		return indexAtOrAfter(offset) - 1;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Updates the matches after an edit of the text they were found on. The
+	 * matches starting from <code>from</code> to <code>to</code> are
+	 * replaced by the given ones, and the matches starting after them are
+	 * moved by <code>delta</code>.
+	 *
+	 * @param from
+	 *            the first start of the replaced matches
+	 * @param to
+	 *            the start after the last one of the replaced matches, before
+	 *            the edit
+	 * @param delta
+	 *            the number of characters inserted by the edit, or minus the
+	 *            number of characters removed
+	 * @param replacement
+	 *            the matches found on the edited range, with starts from
+	 *            <code>from</code> to <code>to + delta</code>
+	 */
+	public void replace(int from, int to, int delta, MatchList replacement) {
+		int first = indexAtOrAfter(from);
+		moveGap(indexAtOrAfter(to));
+		// Drops the replaced matches, right before the gap
+		size -= gapStart - first;
+		gapStart = first;
+		shift += delta;
+
+		for (int i = 0; i < replacement.size(); i++) {
+			insert(replacement.get(i), replacement.getEnd(i));
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a copy of the offsets where the matches start.
+	 */
+	public int[] toArray() {
+		int[] array = new int[size];
+		for (int i = 0; i < size; i++) {
+			array[i] = get(i);
+		}
+		return array;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append(get(i));
+		}
+		return builder.append(']').toString();
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	/**
+	 * Puts a match on the start of the gap, growing the arrays if the gap is
+	 * empty.
+	 */
+	private void insert(int start, int end) {
+		if (gapStart == gapEnd) {
+			int capacity = starts.length + (starts.length >> 1) + 1;
+			int tail = starts.length - gapEnd;
+			int newGapEnd = capacity - tail;
+
+			int[] newStarts = Arrays.copyOf(starts, capacity);
+			int[] newEnds = Arrays.copyOf(ends, capacity);
+			System.arraycopy(starts, gapEnd, newStarts, newGapEnd, tail);
+			System.arraycopy(ends, gapEnd, newEnds, newGapEnd, tail);
+
+			starts = newStarts;
+			ends = newEnds;
+			gapEnd = newGapEnd;
+		}
+		starts[gapStart] = start;
+		ends[gapStart] = end;
+		gapStart++;
+		size++;
+	}
+
+	/**
+	 * Moves the gap so it starts right before the match at
+	 * <code>index</code>, turning the offsets crossed by it from absolute to
+	 * relative to the shift, or the other way around.
+	 */
+	private void moveGap(int index) {
+		while (gapStart > index) {
+			gapStart--;
+			gapEnd--;
+			starts[gapEnd] = starts[gapStart] - shift;
+			ends[gapEnd] = ends[gapStart] - shift;
+		}
+		while (gapStart < index) {
+			starts[gapStart] = starts[gapEnd] + shift;
+			ends[gapStart] = ends[gapEnd] + shift;
+			gapStart++;
+			gapEnd++;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package zephyr.text;
+
+/**
+ * Receives the matches of a search in batches, as they're found.
+ * 
+ * @see SearchPattern#findInBatches(javax.swing.text.Document, int,
+ *      MatchListener)
+ * 
+ */
+public interface MatchListener {
+
+	/**
+	 * Called on the searching thread each time a batch of matches is found.
+	 * 
+	 * @param batch
+	 *            the matches found since the last batch
+	 * @param searched
+	 *            the offset up to which the document was searched; every
+	 *            match starting before it was handed
+	 * @param length
+	 *            the length of the document
+	 */
+	void matchesFound(MatchList batch, int searched, int length);
+}
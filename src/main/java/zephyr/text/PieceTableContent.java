@@ -0,0 +1,1160 @@
+package zephyr.text;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.GapContent;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+import zephyr.file.MappedText;
+
+/**
+ * An implementation of {@link AbstractDocument.Content} based on a piece table.
+ * The text is kept in two buffers: the original one, holding the content the
+ * document was created with (usually a file just read), which is never
+ * modified nor copied, and an append-only buffer that receives every inserted
+ * string. The document is described by a list of pieces, each one referencing
+ * a span of one of those buffers, so inserting and removing text costs
+ * proportionally to the number of pieces instead of the document's length.
+ * <p>
+ * When the original buffer is a {@link MappedText}, the table also counts the
+ * line breaks of each piece, so lines can be looked up without a line map
+ * holding a {@link Position} for each line.
+ *
+ * @see AbstractDocument.Content
+ * @see GapContent
+ *
+ */
+public class PieceTableContent implements AbstractDocument.Content {
+
+	/**
+	 * A span of one of the buffers.
+	 */
+	private static final class Piece {
+
+		/**
+		 * <code>true</code> if the piece references the add buffer;
+		 * <code>false</code> if it references the original one.
+		 */
+		private final boolean added;
+
+		private final int start;
+
+		private final int length;
+
+		/**
+		 * The number of line breaks in the piece, only counted when the
+		 * content is line indexed.
+		 */
+		private final int breaks;
+
+		private Piece(boolean added, int start, int length, int breaks) {
+			this.added = added;
+			this.start = start;
+			this.length = length;
+			this.breaks = breaks;
+		}
+	}
+
+	/**
+	 * Keeps the offset of a {@link Position}. The marks are kept sorted and
+	 * the ones after <code>shiftIndex</code> are stored relative to
+	 * <code>shift</code>, so consecutive edits on the same region don't need
+	 * to update every mark of the document.
+	 */
+	private final class Mark extends WeakReference<StickyPosition> {
+
+		private int offset;
+
+		private boolean shifted;
+
+		/**
+		 * Flags the mark while it's being restored by an undo.
+		 */
+		private boolean restoring;
+
+		private Mark(StickyPosition position, int offset) {
+			super(position, queue);
+			this.offset = offset;
+		}
+
+		private int getOffset() {
+			return shifted ? offset + shift : offset;
+		}
+	}
+
+	/**
+	 * The {@link Position} handed to the document. It is only weakly
+	 * referenced by its {@link Mark}, so marks of discarded positions can be
+	 * purged.
+	 */
+	private final class StickyPosition implements Position {
+
+		private Mark mark;
+
+		@Override
+		public int getOffset() {
+			return mark.getOffset();
+		}
+
+		@Override
+		public String toString() {
+			return Integer.toString(getOffset());
+		}
+	}
+
+	/**
+	 * Keeps the location of a mark inside a range about to be removed, so it
+	 * can be restored when the removal is undone.
+	 */
+	private static final class UndoPosRef {
+
+		private final Mark mark;
+
+		private final int offset;
+
+		private UndoPosRef(Mark mark, int offset) {
+			this.mark = mark;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * A piece visited by a line lookup: its index, its offset and the number
+	 * of line breaks before it.
+	 */
+	private static final class LineCursor {
+
+		private static final LineCursor START = new LineCursor(0, 0, 0);
+
+		private final int index;
+
+		private final int offset;
+
+		private final int breaks;
+
+		private LineCursor(int index, int offset, int breaks) {
+			this.index = index;
+			this.offset = offset;
+			this.breaks = breaks;
+		}
+	}
+
+	/**
+	 * The sorted marks, on an array with a gap at the last insertion, like
+	 * {@link GapContent}'s. Marks created one after the other, like the ones
+	 * of the lines of a long text just inserted, are added right at the gap,
+	 * instead of shifting every mark after them each time.
+	 */
+	private static final class MarkVector {
+
+		private Mark[] array = new Mark[16];
+
+		private int gapStart;
+
+		private int gapEnd = array.length;
+
+		private void add(int index, Mark mark) {
+			if (gapStart == gapEnd) {
+				Mark[] newArray = new Mark[array.length * 2];
+				int tail = array.length - gapEnd;
+				System.arraycopy(array, 0, newArray, 0, gapStart);
+				System.arraycopy(array, gapEnd, newArray, newArray.length - tail, tail);
+				array = newArray;
+				gapEnd = newArray.length - tail;
+			}
+			moveGap(index);
+			array[gapStart++] = mark;
+		}
+
+		private Mark get(int index) {
+			return array[index < gapStart ? index : index + gapEnd - gapStart];
+		}
+
+		/**
+		 * Removes the marks from <code>from</code> to <code>to</code>,
+		 * exclusive.
+		 */
+		private void removeRange(int from, int to) {
+			moveGap(to);
+			Arrays.fill(array, from, to, null);
+			gapStart = from;
+		}
+
+		private void set(int index, Mark mark) {
+			array[index < gapStart ? index : index + gapEnd - gapStart] = mark;
+		}
+
+		private int size() {
+			return array.length - (gapEnd - gapStart);
+		}
+
+		/**
+		 * Moves the gap so it starts at <code>index</code>.
+		 */
+		private void moveGap(int index) {
+			if (index < gapStart) {
+				int count = gapStart - index;
+				System.arraycopy(array, index, array, gapEnd - count, count);
+				gapStart = index;
+				gapEnd -= count;
+			} else if (index > gapStart) {
+				int count = index - gapStart;
+				System.arraycopy(array, gapEnd, array, gapStart, count);
+				gapStart += count;
+				gapEnd += count;
+			}
+		}
+	}
+
+	/**
+	 * Undoable edit for insertions. The inserted text stays on the add buffer,
+	 * so undoing and redoing only moves pieces around.
+	 */
+	private final class InsertUndo extends AbstractUndoableEdit {
+
+		private static final long serialVersionUID = -3263254016398934087L;
+
+		private final int offset;
+
+		private final int length;
+
+		private List<Piece> pieces;
+
+		private List<UndoPosRef> positions;
+
+		private InsertUndo(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public void undo() throws CannotUndoException {
+			super.undo();
+			positions = getPositionsInRange(offset, length);
+			pieces = cut(offset, length);
+			updateMarksForRemove(offset, length);
+		}
+
+		@Override
+		public void redo() throws CannotRedoException {
+			super.redo();
+			paste(offset, pieces);
+			updateMarksForInsert(offset, length);
+			updateUndoPositions(positions, offset, length);
+			pieces = null;
+			positions = null;
+		}
+	}
+
+	/**
+	 * Undoable edit for removals. Keeps the removed pieces, not the removed
+	 * text.
+	 */
+	private final class RemoveUndo extends AbstractUndoableEdit {
+
+		private static final long serialVersionUID = 6393282440733618389L;
+
+		private final int offset;
+
+		private final int length;
+
+		private List<Piece> pieces;
+
+		private List<UndoPosRef> positions;
+
+		private RemoveUndo(int offset, int length, List<Piece> pieces, List<UndoPosRef> positions) {
+			this.offset = offset;
+			this.length = length;
+			this.pieces = pieces;
+			this.positions = positions;
+		}
+
+		@Override
+		public void undo() throws CannotUndoException {
+			super.undo();
+			paste(offset, pieces);
+			updateMarksForInsert(offset, length);
+			updateUndoPositions(positions, offset, length);
+			pieces = null;
+			positions = null;
+		}
+
+		@Override
+		public void redo() throws CannotRedoException {
+			super.redo();
+			positions = getPositionsInRange(offset, length);
+			pieces = cut(offset, length);
+			updateMarksForRemove(offset, length);
+		}
+	}
+
+	/**
+	 * The minimum number of collected positions before the marks are purged.
+	 */
+	private static final int PURGE_THRESHOLD = 64;
+
+	/**
+	 * The maximum number of characters copied from a mapped file when a
+	 * partial return is allowed.
+	 */
+	private static final int PARTIAL_COPY_LIMIT = 1 << 16;
+
+	/**
+	 * The content the table was created with.
+	 */
+	private final CharSequence original;
+
+	/**
+	 * The array backing <code>original</code>, if there is one accessible.
+	 */
+	private final char[] originalArray;
+
+	private final int originalArrayOffset;
+
+	/**
+	 * The original buffer, if it's a mapped file. Lines are only indexed in
+	 * that case.
+	 */
+	private final MappedText mapped;
+
+	/**
+	 * The append-only buffer.
+	 */
+	private char[] add;
+
+	/**
+	 * Whether the add buffer, and the offsets of its breaks, are shared with
+	 * the content this one is a snapshot of, in which case they're copied
+	 * before anything is appended.
+	 */
+	private boolean addShared;
+
+	private int addLength;
+
+	/**
+	 * The offsets of the line breaks on the add buffer, when the content is
+	 * line indexed.
+	 */
+	private int[] addBreaks;
+
+	private int addBreakCount;
+
+	/**
+	 * The number of line breaks of the whole content.
+	 */
+	private int breakCount;
+
+	private final ArrayList<Piece> pieces = new ArrayList<Piece>();
+
+	/**
+	 * The content's length, including the implied break.
+	 */
+	private int length;
+
+	/**
+	 * The last piece looked up, making sequential accesses cheap: its index on
+	 * the high half and its offset on the low half. It's only a hint, as
+	 * several threads may read at once under the document's read lock: each
+	 * lookup works on its own copy and stores it back whole, so a reader never
+	 * sees another one's half updated state.
+	 */
+	private volatile long cursor;
+
+	/**
+	 * The last piece visited by a line lookup, kept like {@link #cursor}.
+	 */
+	private volatile LineCursor lineCursor = LineCursor.START;
+
+	private final MarkVector marks = new MarkVector();
+
+	private final ReferenceQueue<StickyPosition> queue = new ReferenceQueue<StickyPosition>();
+
+	private int collectedMarks;
+
+	private int shiftIndex;
+
+	private int shift;
+
+	/**
+	 * Creates an empty content.
+	 */
+	public PieceTableContent() {
+		this("");
+	}
+
+	/**
+	 * Creates a content whose original buffer is the given
+	 * {@link CharSequence}, which must not be modified afterwards. If it's a
+	 * {@link CharBuffer} backed by an array, segments of the original text
+	 * are returned pointing straight to that array. If it's a
+	 * {@link MappedText}, the content is line indexed.
+	 *
+	 * @param original
+	 *            the initial text
+	 */
+	public PieceTableContent(CharSequence original) {
+		if (original == null) {
+			throw new IllegalArgumentException("Parameter cannot be null");
+		}
+		this.original = original;
+
+		if (original instanceof CharBuffer && ((CharBuffer) original).hasArray()) {
+			CharBuffer buffer = (CharBuffer) original;
+			this.originalArray = buffer.array();
+			this.originalArrayOffset = buffer.arrayOffset() + buffer.position();
+		} else {
+			this.originalArray = null;
+			this.originalArrayOffset = 0;
+		}
+
+		if (original instanceof MappedText) {
+			this.mapped = (MappedText) original;
+			this.addBreaks = new int[16];
+		} else {
+			this.mapped = null;
+		}
+
+		add = new char[16];
+		if (original.length() > 0) {
+			pieces.add(newPiece(false, 0, original.length()));
+		}
+
+		// The implied break, as in GapContent
+		append("\n");
+		pieces.add(newPiece(true, 0, 1));
+
+		length = original.length() + 1;
+		for (Piece piece : pieces) {
+			breakCount += piece.breaks;
+		}
+	}
+
+	/**
+	 * Creates a content sharing the buffers of the given one, as it is now.
+	 */
+	private PieceTableContent(PieceTableContent source) {
+		this.original = source.original;
+		this.originalArray = source.originalArray;
+		this.originalArrayOffset = source.originalArrayOffset;
+		this.mapped = source.mapped;
+		this.add = source.add;
+		this.addLength = source.addLength;
+		this.addBreaks = source.addBreaks;
+		this.addBreakCount = source.addBreakCount;
+		this.addShared = true;
+		this.breakCount = source.breakCount;
+		this.pieces.addAll(source.pieces);
+		this.length = source.length;
+	}
+
+	/**
+	 * Returns a snapshot of this content, which can be read on other threads
+	 * while this one keeps being edited. Taking it only copies the list of
+	 * pieces: the buffers are shared, as the text already appended to the add
+	 * buffer never changes, and the snapshot copies the add buffer only if
+	 * something is inserted on it. It must be taken while the document is
+	 * locked, like any read.
+	 *
+	 * @return a copy of this content
+	 */
+	public PieceTableContent snapshot() {
+		return new PieceTableContent(this);
+	}
+
+	/**
+	 * Makes the content stop reading its original buffer from the given file,
+	 * if it's mapped from it, so the file can be overwritten in place without
+	 * changing the content. Its snapshots stop reading from it as well.
+	 *
+	 * @param file
+	 *            the file about to be overwritten
+	 * @return <code>true</code> if the content was read from the file
+	 * @throws IOException
+	 *             if the mapped text can't be detached from the file
+	 * @see MappedText#detach()
+	 */
+	public boolean release(Path file) throws IOException {
+		if (mapped == null || !mapped.isMapping(file)) {
+			return false;
+		}
+		mapped.detach();
+		return true;
+	}
+
+	@Override
+	public Position createPosition(int offset) throws BadLocationException {
+		purgeMarks();
+
+		int index = firstMarkAtOrAfter(offset);
+		if (index < marks.size()) {
+			Mark mark = marks.get(index);
+			StickyPosition position = mark.get();
+			if (position != null && mark.getOffset() == offset) {
+				return position;
+			}
+		}
+
+		StickyPosition position = new StickyPosition();
+		Mark mark = new Mark(position, offset);
+		position.mark = mark;
+		insertMark(index, mark, offset);
+
+		return position;
+	}
+
+	/**
+	 * Returns whether lines can be looked up on this content, which happens
+	 * when its original buffer is a {@link MappedText}.
+	 */
+	public boolean isLineIndexed() {
+		return mapped != null;
+	}
+
+	/**
+	 * Returns the number of lines, counting the implied break. Only available
+	 * if the content is line indexed.
+	 *
+	 * @see #isLineIndexed()
+	 */
+	public int getLineCount() {
+		checkLineIndexed();
+		return breakCount;
+	}
+
+	/**
+	 * Returns the line containing the given offset, as the index of
+	 * {@link javax.swing.text.PlainDocument}'s line elements. Only available
+	 * if the content is line indexed.
+	 *
+	 * @see #isLineIndexed()
+	 */
+	public int getLineOfOffset(int offset) {
+		checkLineIndexed();
+		if (offset <= 0) {
+			return 0;
+		}
+		if (offset >= length) {
+			return breakCount - 1;
+		}
+
+		LineCursor line = locateLine(offset);
+		Piece piece = pieces.get(line.index);
+		int breaks = line.breaks + countBreaks(piece.added, piece.start, offset - line.offset);
+		return Math.min(breaks, breakCount - 1);
+	}
+
+	/**
+	 * Returns the offset where the given line starts. The line after the last
+	 * one starts at the content's length. Only available if the content is
+	 * line indexed.
+	 *
+	 * @see #isLineIndexed()
+	 */
+	public int getLineStartOffset(int line) {
+		checkLineIndexed();
+		if (line <= 0) {
+			return 0;
+		}
+		if (line >= breakCount) {
+			return length;
+		}
+
+		// The line starts right after the break ending the previous one
+		int lineFeed = line - 1;
+		LineCursor found = locateBreak(lineFeed);
+		Piece piece = pieces.get(found.index);
+		int k = lineFeed - found.breaks;
+
+		int position;
+		if (piece.added) {
+			position = addBreaks[firstAddBreakAtOrAfter(piece.start) + k];
+		} else {
+			int before = mapped.getLineOfOffset(piece.start);
+			position = mapped.getLineStartOffset(before + k + 1) - 1;
+		}
+		return found.offset + position - piece.start + 1;
+	}
+
+	@Override
+	public void getChars(int where, int len, Segment txt) throws BadLocationException {
+		checkBounds(where, len);
+		if (len == 0) {
+			// Like GapContent, even at the end, where there's no piece
+			txt.array = add;
+			txt.offset = 0;
+			txt.count = 0;
+			return;
+		}
+
+		long found = locate(where);
+		Piece piece = pieces.get(indexOf(found));
+		int pieceOffset = where - offsetOf(found);
+		int available = piece.length - pieceOffset;
+
+		if (len <= available || txt.isPartialReturn()) {
+			int count = Math.min(len, available);
+			if (piece.added) {
+				txt.array = add;
+				txt.offset = piece.start + pieceOffset;
+				txt.count = count;
+				return;
+			} else if (originalArray != null) {
+				txt.array = originalArray;
+				txt.offset = originalArrayOffset + piece.start + pieceOffset;
+				txt.count = count;
+				return;
+			}
+			len = count;
+		}
+
+		if (txt.isPartialReturn() && mapped != null) {
+			len = Math.min(len, PARTIAL_COPY_LIMIT);
+		}
+
+		char[] chars = new char[len];
+		copy(where, len, chars, 0);
+		txt.array = chars;
+		txt.offset = 0;
+		txt.count = len;
+	}
+
+	@Override
+	public String getString(int where, int len) throws BadLocationException {
+		checkBounds(where, len);
+
+		char[] chars = new char[len];
+		copy(where, len, chars, 0);
+		return new String(chars);
+	}
+
+	@Override
+	public UndoableEdit insertString(int where, String str) throws BadLocationException {
+		if (where > length || where < 0) {
+			throw new BadLocationException("Invalid insert", length);
+		}
+
+		int n = str.length();
+		if (n == 0) {
+			return null;
+		}
+
+		int start = append(str);
+		long found = locate(where);
+		int index = indexOf(found);
+
+		if (where == offsetOf(found) && index > 0) {
+			// Typing right after the last inserted string just grows its piece
+			Piece previous = pieces.get(index - 1);
+			if (previous.added && previous.start + previous.length == start) {
+				pieces.set(index - 1, newPiece(true, previous.start, previous.length + n));
+				cursor = pack(index - 1, where - previous.length);
+				length += n;
+				breakCount += pieces.get(index - 1).breaks - previous.breaks;
+				resetLineCache();
+				updateMarksForInsert(where, n);
+				return new InsertUndo(where, n);
+			}
+		}
+
+		List<Piece> inserted = new ArrayList<Piece>(1);
+		inserted.add(newPiece(true, start, n));
+		paste(where, inserted);
+		updateMarksForInsert(where, n);
+
+		return new InsertUndo(where, n);
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+		if (where + nitems >= length || where < 0 || nitems < 0) {
+			throw new BadLocationException("Invalid remove", length + 1);
+		}
+
+		if (nitems == 0) {
+			return null;
+		}
+
+		List<UndoPosRef> positions = getPositionsInRange(where, nitems);
+		List<Piece> removed = cut(where, nitems);
+		updateMarksForRemove(where, nitems);
+
+		return new RemoveUndo(where, nitems, removed, positions);
+	}
+
+	/**
+	 * Appends a string to the add buffer.
+	 *
+	 * @return the index where the string starts on the add buffer
+	 */
+	private int append(String str) {
+		int n = str.length();
+		if (addShared) {
+			add = Arrays.copyOf(add, Math.max(add.length, addLength + n));
+			if (addBreaks != null) {
+				addBreaks = addBreaks.clone();
+			}
+			addShared = false;
+		}
+		if (addLength + n > add.length) {
+			int capacity = Math.max(add.length * 2, addLength + n);
+			char[] newAdd = new char[capacity];
+			System.arraycopy(add, 0, newAdd, 0, addLength);
+			add = newAdd;
+		}
+		str.getChars(0, n, add, addLength);
+		int start = addLength;
+		addLength += n;
+
+		if (mapped != null) {
+			for (int i = start; i < addLength; i++) {
+				if (add[i] == '\n') {
+					if (addBreakCount == addBreaks.length) {
+						addBreaks = Arrays.copyOf(addBreaks, addBreakCount * 2);
+					}
+					addBreaks[addBreakCount++] = i;
+				}
+			}
+		}
+		return start;
+	}
+
+	private void checkBounds(int where, int len) throws BadLocationException {
+		int end = where + len;
+		if (where < 0 || end < 0 || len < 0) {
+			throw new BadLocationException("Invalid location", -1);
+		}
+		if (end > length || where > length) {
+			throw new BadLocationException("Invalid location", length + 1);
+		}
+	}
+
+	/**
+	 * Copies <code>len</code> characters starting at <code>where</code> to
+	 * the destination array.
+	 */
+	private void copy(int where, int len, char[] dst, int dstOffset) {
+		long found = locate(where);
+		int index = indexOf(found);
+		int pieceOffset = where - offsetOf(found);
+
+		while (len > 0) {
+			Piece piece = pieces.get(index);
+			int count = Math.min(len, piece.length - pieceOffset);
+			int start = piece.start + pieceOffset;
+
+			if (piece.added) {
+				System.arraycopy(add, start, dst, dstOffset, count);
+			} else {
+				copyOriginal(start, count, dst, dstOffset);
+			}
+
+			dstOffset += count;
+			len -= count;
+			pieceOffset = 0;
+			index++;
+		}
+	}
+
+	private void checkLineIndexed() {
+		if (mapped == null) {
+			throw new IllegalStateException("Content is not line indexed");
+		}
+	}
+
+	private void copyOriginal(int start, int count, char[] dst, int dstOffset) {
+		if (originalArray != null) {
+			System.arraycopy(originalArray, originalArrayOffset + start, dst, dstOffset, count);
+		} else if (mapped != null) {
+			mapped.getChars(start, start + count, dst, dstOffset);
+		} else if (original instanceof String) {
+			((String) original).getChars(start, start + count, dst, dstOffset);
+		} else {
+			for (int i = 0; i < count; i++) {
+				dst[dstOffset + i] = original.charAt(start + i);
+			}
+		}
+	}
+
+	/**
+	 * Counts the line breaks in a span of one of the buffers. Returns zero if
+	 * the content is not line indexed.
+	 */
+	private int countBreaks(boolean added, int start, int len) {
+		if (mapped == null || len == 0) {
+			return 0;
+		}
+		if (added) {
+			return firstAddBreakAtOrAfter(start + len) - firstAddBreakAtOrAfter(start);
+		}
+		return mapped.getLineOfOffset(start + len) - mapped.getLineOfOffset(start);
+	}
+
+	/**
+	 * Binary searches the first line break on the add buffer whose offset is
+	 * greater than or equal to the given one.
+	 */
+	private int firstAddBreakAtOrAfter(int offset) {
+		int index = Arrays.binarySearch(addBreaks, 0, addBreakCount, offset);
+		return index < 0 ? -index - 1 : index;
+	}
+
+	private Piece newPiece(boolean added, int start, int len) {
+		return new Piece(added, start, len, countBreaks(added, start, len));
+	}
+
+	/**
+	 * Removes the pieces covering the given range from the table.
+	 *
+	 * @return the removed pieces
+	 */
+	private List<Piece> cut(int where, int len) {
+		int first = split(where);
+		int last = split(where + len);
+
+		List<Piece> subList = pieces.subList(first, last);
+		List<Piece> removed = new ArrayList<Piece>(subList);
+		subList.clear();
+
+		length -= len;
+		for (Piece piece : removed) {
+			breakCount -= piece.breaks;
+		}
+		resetCache(first, where);
+		resetLineCache();
+		return removed;
+	}
+
+	/**
+	 * Inserts the given pieces at <code>where</code>.
+	 */
+	private void paste(int where, List<Piece> inserted) {
+		int index = split(where);
+		pieces.addAll(index, inserted);
+
+		for (Piece piece : inserted) {
+			length += piece.length;
+			breakCount += piece.breaks;
+		}
+		resetCache(index, where);
+		resetLineCache();
+	}
+
+	/**
+	 * Splits the piece containing the given offset, so a piece starts there.
+	 *
+	 * @return the index of the piece starting at the offset
+	 */
+	private int split(int offset) {
+		long found = locate(offset);
+		int index = indexOf(found);
+		if (offset == offsetOf(found)) {
+			return index;
+		}
+
+		Piece piece = pieces.get(index);
+		int leftLength = offset - offsetOf(found);
+		Piece left = newPiece(piece.added, piece.start, leftLength);
+		pieces.set(index, left);
+		pieces.add(index + 1, new Piece(piece.added, piece.start + leftLength, piece.length
+				- leftLength, piece.breaks - left.breaks));
+
+		cursor = pack(index + 1, offset);
+		resetLineCache();
+		return index + 1;
+	}
+
+	/**
+	 * Finds the piece containing the given offset, starting from the last
+	 * piece looked up.
+	 *
+	 * @return the index of the piece, or the number of pieces if
+	 *         <code>offset</code> is the content's length, along with the
+	 *         offset where it starts, as packed by {@link #pack(int, int)}
+	 */
+	private long locate(int offset) {
+		long last = cursor;
+		int index = indexOf(last);
+		int start = offsetOf(last);
+
+		if (index >= pieces.size()) {
+			index = 0;
+			start = 0;
+		}
+
+		while (index > 0 && start > offset) {
+			index--;
+			start -= pieces.get(index).length;
+		}
+
+		while (index < pieces.size() && start + pieces.get(index).length <= offset) {
+			start += pieces.get(index).length;
+			index++;
+		}
+
+		long found = pack(index, start);
+		cursor = found;
+		return found;
+	}
+
+	/**
+	 * Finds the piece containing the given offset, like
+	 * {@link #locate(int)}, along with the number of line breaks before it.
+	 */
+	private LineCursor locateLine(int offset) {
+		LineCursor last = lineCursor;
+		int index = last.index;
+		int start = last.offset;
+		int breaks = last.breaks;
+
+		while (index > 0 && start > offset) {
+			index--;
+			start -= pieces.get(index).length;
+			breaks -= pieces.get(index).breaks;
+		}
+
+		while (index < pieces.size() && start + pieces.get(index).length <= offset) {
+			start += pieces.get(index).length;
+			breaks += pieces.get(index).breaks;
+			index++;
+		}
+
+		return visitLine(last, index, start, breaks);
+	}
+
+	/**
+	 * Finds the piece holding the line break of the given index, along with
+	 * its offset and the number of line breaks before it.
+	 */
+	private LineCursor locateBreak(int lineFeed) {
+		LineCursor last = lineCursor;
+		int index = last.index;
+		int start = last.offset;
+		int breaks = last.breaks;
+
+		while (index > 0 && breaks > lineFeed) {
+			index--;
+			start -= pieces.get(index).length;
+			breaks -= pieces.get(index).breaks;
+		}
+
+		while (breaks + pieces.get(index).breaks <= lineFeed) {
+			start += pieces.get(index).length;
+			breaks += pieces.get(index).breaks;
+			index++;
+		}
+
+		return visitLine(last, index, start, breaks);
+	}
+
+	/**
+	 * Keeps the piece found by a line lookup as the next one's starting
+	 * point, unless it's the one it already started from.
+	 */
+	private LineCursor visitLine(LineCursor last, int index, int offset, int breaks) {
+		if (index == last.index) {
+			return last;
+		}
+		LineCursor found = new LineCursor(index, offset, breaks);
+		lineCursor = found;
+		return found;
+	}
+
+	private static long pack(int index, int offset) {
+		return (long) index << 32 | offset & 0xFFFFFFFFL;
+	}
+
+	private static int indexOf(long found) {
+		return (int) (found >>> 32);
+	}
+
+	private static int offsetOf(long found) {
+		return (int) found;
+	}
+
+	private void resetCache(int index, int offset) {
+		cursor = pack(index, offset);
+	}
+
+	private void resetLineCache() {
+		lineCursor = LineCursor.START;
+	}
+
+	/**
+	 * Binary searches the first mark whose offset is greater than or equal to
+	 * the given offset.
+	 */
+	private int firstMarkAtOrAfter(int offset) {
+		int low = 0;
+		int high = marks.size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (marks.get(middle).getOffset() < offset) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Inserts a mark on the sorted marks list.
+	 */
+	private void insertMark(int index, Mark mark, int offset) {
+		if (index <= shiftIndex) {
+			mark.offset = offset;
+			mark.shifted = false;
+			shiftIndex++;
+		} else {
+			mark.offset = offset - shift;
+			mark.shifted = true;
+		}
+		marks.add(index, mark);
+	}
+
+	/**
+	 * Returns the marks in the range from <code>offset</code> to
+	 * <code>offset + len</code>, inclusive, with their offsets relative to the
+	 * range's start.
+	 */
+	private List<UndoPosRef> getPositionsInRange(int offset, int len) {
+		int first = firstMarkAtOrAfter(offset);
+		int last = firstMarkAtOrAfter(offset + len + 1);
+
+		List<UndoPosRef> positions = new ArrayList<UndoPosRef>(last - first);
+		for (int i = first; i < last; i++) {
+			Mark mark = marks.get(i);
+			if (mark.get() != null) {
+				positions.add(new UndoPosRef(mark, mark.getOffset() - offset));
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * Puts the marks collected by {@link #getPositionsInRange(int, int)} back
+	 * on the locations they had before the range was removed. The range must
+	 * have been just reinserted.
+	 */
+	private void updateUndoPositions(List<UndoPosRef> positions, int offset, int len) {
+		if (positions == null || positions.isEmpty()) {
+			return;
+		}
+
+		int first = firstMarkAtOrAfter(offset);
+		int last = firstMarkAtOrAfter(offset + len + 1);
+		moveShiftIndex(last);
+
+		for (UndoPosRef ref : positions) {
+			ref.mark.restoring = true;
+		}
+
+		int kept = first;
+		for (int i = first; i < last; i++) {
+			Mark mark = marks.get(i);
+			if (!mark.restoring) {
+				marks.set(kept++, mark);
+			}
+		}
+		marks.removeRange(kept, last);
+		shiftIndex = kept;
+
+		for (UndoPosRef ref : positions) {
+			ref.mark.restoring = false;
+			if (ref.mark.get() != null) {
+				int location = offset + ref.offset;
+				insertMark(firstMarkAtOrAfter(location), ref.mark, location);
+			}
+		}
+	}
+
+	/**
+	 * Moves the index after which marks are stored relative to
+	 * <code>shift</code>, normalizing the marks in between.
+	 */
+	private void moveShiftIndex(int index) {
+		if (index > shiftIndex) {
+			for (int i = shiftIndex; i < index; i++) {
+				Mark mark = marks.get(i);
+				mark.offset += shift;
+				mark.shifted = false;
+			}
+		} else {
+			for (int i = index; i < shiftIndex; i++) {
+				Mark mark = marks.get(i);
+				mark.offset -= shift;
+				mark.shifted = true;
+			}
+		}
+		shiftIndex = index;
+
+		if (shiftIndex == marks.size()) {
+			shift = 0;
+		}
+	}
+
+	private void updateMarksForInsert(int offset, int len) {
+		// Marks at the beginning of the document stay there
+		int index = firstMarkAtOrAfter(offset == 0 ? 1 : offset);
+		moveShiftIndex(index);
+		shift += len;
+	}
+
+	private void updateMarksForRemove(int offset, int len) {
+		int first = firstMarkAtOrAfter(offset);
+		int last = firstMarkAtOrAfter(offset + len);
+		moveShiftIndex(last);
+		shift -= len;
+
+		for (int i = first; i < last; i++) {
+			marks.get(i).offset = offset;
+		}
+	}
+
+	/**
+	 * Drops the marks whose positions were garbage collected, once there are
+	 * enough of them.
+	 */
+	private void purgeMarks() {
+		while (queue.poll() != null) {
+			collectedMarks++;
+		}
+
+		if (collectedMarks < PURGE_THRESHOLD || collectedMarks < marks.size() / 2) {
+			return;
+		}
+
+		moveShiftIndex(marks.size());
+
+		int live = 0;
+		for (int i = 0; i < marks.size(); i++) {
+			Mark mark = marks.get(i);
+			if (mark.get() != null) {
+				marks.set(live++, mark);
+			}
+		}
+		marks.removeRange(live, marks.size());
+
+		shiftIndex = marks.size();
+		collectedMarks = 0;
+	}
+}
@@ -0,0 +1,899 @@
+package zephyr.text;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AbstractDocument.Content;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+
+import zephyr.file.TextFormat;
+
+/**
+ * Keeps a journal of the unsaved changes of each open document, so they can
+ * be recovered if Zephyr doesn't exit properly.
+ * <p>
+ * A document's journal starts on its first change after it was opened or
+ * saved. Its first record is the base the changes apply to: the document's
+ * file, which must be unchanged to be recovered, or an empty document, if
+ * the document is new; or, if the document can't be rebuilt from those, a
+ * snapshot of its content. Each insert or remove is then appended as an edit
+ * record, with its offset, the length removed and the text inserted. Once the
+ * edits outgrow the document, the journal is compacted into a new snapshot.
+ * The journal is deleted when the document is saved or closed.
+ * <p>
+ * The records are collected on the Event Dispatch Thread and written, and
+ * forced to the disk, in batches by a background thread, so typing doesn't
+ * wait for the disk. A journal is always started or compacted on a temporary
+ * file moved over the old one, so it can only lose the batch being written.
+ * <p>
+ * Several instances of Zephyr may share the directory. Each one holds a lock
+ * on a lock file of its own, named after it, as do its journals, and only
+ * recovers, or deletes, the journals of instances whose locks it can take,
+ * which are the ones that didn't exit properly. It keeps their locks till it
+ * exits, as it journals their documents again on the same files.
+ * <p>
+ * The methods of this class must be called on the Event Dispatch Thread.
+ *
+ */
+public class RecoveryJournal {
+
+	/**
+	 * The journal of a document, which is also the listener recording its
+	 * changes.
+	 */
+	private final class Journal implements DocumentListener {
+
+		private final TextDocument doc;
+
+		private final Path file;
+
+		/**
+		 * Whether the journal has records; only used on the EDT.
+		 */
+		private boolean started;
+
+		/**
+		 * Whether the document's content can be rebuilt from its file, or is
+		 * empty if <code>baseFile</code> is <code>null</code>; only used on the
+		 * EDT.
+		 */
+		private boolean hasBase;
+
+		private Path baseFile;
+
+		private long baseSize;
+
+		private long baseModified;
+
+		/**
+		 * The bytes of the edit records appended since the last snapshot; only
+		 * used on the EDT.
+		 */
+		private long logged;
+
+		/**
+		 * The records not written yet; guarded by this journal.
+		 */
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+		/**
+		 * The first record of a journal to be started or compacted, and the
+		 * snapshot it holds, if any; guarded by this journal.
+		 */
+		private byte[] head;
+
+		private Content body;
+
+		/**
+		 * Whether the journal's file must be deleted; guarded by this journal.
+		 */
+		private boolean delete;
+
+		/**
+		 * Set when a batch couldn't be written, so the journal is compacted on
+		 * the next change.
+		 */
+		private volatile boolean broken;
+
+		/**
+		 * The journal's file, open for appending; only used on the journal
+		 * thread.
+		 */
+		private FileChannel channel;
+
+		private Journal(TextDocument doc, Path file) {
+			this.doc = doc;
+			this.file = file;
+		}
+
+		@Override
+		public void changedUpdate(DocumentEvent e) {
+		}
+
+		@Override
+		public void insertUpdate(DocumentEvent e) {
+			if (doc.isLoading()) {
+				return;
+			}
+			if (!start() || e.getLength() > COMPACTION_THRESHOLD) {
+				compact();
+				return;
+			}
+			try {
+				record(e.getOffset(), 0, doc.getText(e.getOffset(), e.getLength()));
+			} catch (BadLocationException ex) {
+				ex.printStackTrace();
+			}
+		}
+
+		@Override
+		public void removeUpdate(DocumentEvent e) {
+			if (doc.isLoading()) {
+				return;
+			}
+			if (!start()) {
+				compact();
+				return;
+			}
+			record(e.getOffset(), e.getLength(), "");
+		}
+
+		/**
+		 * Takes the document's current content as the base of its next
+		 * journal, deleting the current one.
+		 */
+		private void reset() {
+			discard();
+			hasBase = false;
+			baseFile = null;
+			if (doc.getPath() != null && doc.isSavedOnDisk()) {
+				try {
+					Path path = Paths.get(doc.getPath());
+					baseSize = Files.size(path);
+					baseModified = Files.getLastModifiedTime(path).toMillis();
+					baseFile = path;
+					hasBase = true;
+				} catch (IOException e) {
+					// Journaled from a snapshot instead
+				}
+			} else {
+				hasBase = doc.getLength() == 0;
+			}
+		}
+
+		/**
+		 * Deletes the journal, if it was started.
+		 */
+		private void discard() {
+			if (started) {
+				synchronized (this) {
+					pending.reset();
+					head = null;
+					body = null;
+					delete = true;
+				}
+				changed(this);
+			}
+			started = false;
+			logged = 0;
+		}
+
+		/**
+		 * Starts the journal from its base, if it wasn't started.
+		 *
+		 * @return <code>false</code> if the journal must be started from a
+		 *         snapshot instead, since the document has no base or the last
+		 *         batch couldn't be written
+		 */
+		private boolean start() {
+			if (broken) {
+				broken = false;
+				return false;
+			}
+			if (started) {
+				return true;
+			}
+			if (!hasBase) {
+				return false;
+			}
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				writeHeader(out, BASE, doc);
+				out.writeBoolean(baseFile != null);
+				if (baseFile != null) {
+					out.writeLong(baseSize);
+					out.writeLong(baseModified);
+				}
+				synchronized (this) {
+					head = bytes.toByteArray();
+					body = null;
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			started = true;
+			return true;
+		}
+
+		/**
+		 * Replaces the journal by a snapshot of the document's content.
+		 */
+		private void compact() {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				writeHeader(new DataOutputStream(bytes), SNAPSHOT, doc);
+				Content snapshot = doc.snapshot();
+				synchronized (this) {
+					pending.reset();
+					head = bytes.toByteArray();
+					body = snapshot;
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			started = true;
+			logged = 0;
+			changed(this);
+		}
+
+		/**
+		 * Appends an edit record, compacting the journal once the edits are
+		 * larger than the document.
+		 */
+		private void record(int offset, int removed, String inserted) {
+			int size;
+			synchronized (this) {
+				size = pending.size();
+				DataOutputStream out = new DataOutputStream(pending);
+				try {
+					out.writeByte(EDIT);
+					out.writeInt(offset);
+					out.writeInt(removed);
+					char[] chars = inserted.toCharArray();
+					writeText(out, chars, 0, chars.length);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				size = pending.size() - size;
+			}
+			logged += size;
+			if (logged > Math.max(COMPACTION_THRESHOLD, 2L * doc.getLength())) {
+				compact();
+			} else {
+				changed(this);
+			}
+		}
+	}
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String EXTENSION = ".journal";
+
+	private static final String LOCK_EXTENSION = ".lock";
+
+	/**
+	 * The first record of a journal whose base is the document's file, or an
+	 * empty document.
+	 */
+	private static final int BASE = 'B';
+
+	/**
+	 * The first record of a journal whose base is a snapshot of the document.
+	 */
+	private static final int SNAPSHOT = 'S';
+
+	private static final int EDIT = 'E';
+
+	/**
+	 * The interval between the batches written, in milliseconds.
+	 */
+	private static final long FLUSH_INTERVAL = 1000;
+
+	/**
+	 * The size of the edits, in bytes, a journal can always take before it's
+	 * compacted. Inserts larger than that are taken as snapshots.
+	 */
+	private static final int COMPACTION_THRESHOLD = 1 << 20;
+
+	/**
+	 * The number of characters encoded at a time.
+	 */
+	private static final int CHUNK_SIZE = 1 << 14;
+
+	private final Path dir;
+
+	/**
+	 * The name of this instance, starting the names of its journals.
+	 */
+	private final String owner = UUID.randomUUID().toString();
+
+	/**
+	 * The locks held, by the instances they're named after: this instance's
+	 * own, taken before its first journal is written, and the ones of the
+	 * instances whose journals were recovered; guarded by itself.
+	 */
+	private final Map<String, FileLock> locks = new HashMap<String, FileLock>();
+
+	private final TextDocumentStreamer textDocumentStreamer = new TextDocumentStreamer();
+
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Zephyr journal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Runnable flush = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * The journals of the open documents; only used on the EDT.
+	 */
+	private final Map<TextDocument, Journal> journals = new HashMap<TextDocument, Journal>();
+
+	/**
+	 * The files of the journals recovered, kept by the documents rebuilt from
+	 * them; only used on the EDT.
+	 */
+	private final Map<TextDocument, Path> recovered = new HashMap<TextDocument, Path>();
+
+	/**
+	 * The journals with something to be written; guarded by itself.
+	 */
+	private final Set<Journal> changed = new LinkedHashSet<Journal>();
+
+	/**
+	 * Creates a journal keeping its files on the given directory, which is
+	 * created when the first one is written.
+	 *
+	 * @param dir
+	 *            the directory
+	 */
+	public RecoveryJournal(Path dir) {
+		this.dir = dir;
+		executor.scheduleWithFixedDelay(flush, FLUSH_INTERVAL, FLUSH_INTERVAL,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts journaling a document's changes. If the document isn't saved,
+	 * like a recovered one, a snapshot of it is journaled at once.
+	 *
+	 * @param doc
+	 *            the document
+	 */
+	public void track(TextDocument doc) {
+		if (journals.containsKey(doc)) {
+			return;
+		}
+		Path file = recovered.remove(doc);
+		if (file == null) {
+			file = dir.resolve(owner + "." + UUID.randomUUID() + EXTENSION);
+		}
+		Journal journal = new Journal(doc, file);
+		journals.put(doc, journal);
+		doc.addDocumentListener(journal);
+		if (doc.isSaved()) {
+			journal.reset();
+		} else {
+			journal.compact();
+		}
+	}
+
+	/**
+	 * Stops journaling a document, deleting its journal.
+	 *
+	 * @param doc
+	 *            the document
+	 */
+	public void untrack(TextDocument doc) {
+		Journal journal = journals.remove(doc);
+		if (journal != null) {
+			doc.removeDocumentListener(journal);
+			journal.discard();
+		}
+	}
+
+	/**
+	 * Called after a document was written to its file. If it wasn't changed
+	 * since, its journal is deleted; otherwise, the journal is compacted, as
+	 * its base file was replaced.
+	 *
+	 * @param doc
+	 *            the document
+	 * @param upToDate
+	 *            whether the document's current content was written
+	 */
+	public void saved(TextDocument doc, boolean upToDate) {
+		Journal journal = journals.get(doc);
+		if (journal == null) {
+			return;
+		}
+		if (upToDate) {
+			journal.reset();
+		} else if (journal.started) {
+			journal.compact();
+		}
+	}
+
+	/**
+	 * Stops journaling every document, deleting the journals, and waits until
+	 * they're deleted. The locks held are then released, and their files
+	 * deleted. Called when Zephyr exits properly.
+	 */
+	public void close() {
+		for (TextDocument doc : new ArrayList<TextDocument>(journals.keySet())) {
+			untrack(doc);
+		}
+		try {
+			executor.submit(flush).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		synchronized (locks) {
+			for (Map.Entry<String, FileLock> entry : locks.entrySet()) {
+				try {
+					entry.getValue().channel().close();
+					Files.deleteIfExists(dir.resolve(entry.getKey() + LOCK_EXTENSION));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			locks.clear();
+		}
+	}
+
+	/**
+	 * Rebuilds the documents left on the journals by a previous run. They're
+	 * not saved, and are journaled again, on the same files, once tracked.
+	 * Journals that can't be recovered, like the ones whose base file changed,
+	 * are deleted. The journals of instances still running are left alone.
+	 *
+	 * @return the documents recovered
+	 */
+	public List<TextDocument> recover() {
+		List<TextDocument> docs = new ArrayList<TextDocument>();
+		if (!Files.isDirectory(dir)) {
+			return docs;
+		}
+		try {
+			DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+			try {
+				for (Path file : stream) {
+					String name = file.getFileName().toString();
+					if (!adopt(ownerOf(name)) || name.endsWith(LOCK_EXTENSION)) {
+						continue;
+					}
+					if (!name.endsWith(EXTENSION)) {
+						// A journal being started or compacted
+						Files.deleteIfExists(file);
+						continue;
+					}
+					TextDocument doc = null;
+					try {
+						doc = read(file);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					if (doc == null) {
+						Files.deleteIfExists(file);
+					} else {
+						docs.add(doc);
+						recovered.put(doc, file);
+					}
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return docs;
+	}
+
+	/**
+	 * Returns the name of the instance a file of the directory belongs to.
+	 * The journals left by versions that didn't name them after their
+	 * instances belong to instances of their own, which aren't running.
+	 */
+	private static String ownerOf(String name) {
+		int dot = name.indexOf('.');
+		return dot == -1 ? name : name.substring(0, dot);
+	}
+
+	/**
+	 * Takes the lock of another instance, so its journals can be recovered.
+	 *
+	 * @return <code>false</code> if the instance is still running, or is this
+	 *         one
+	 */
+	private boolean adopt(String instance) throws IOException {
+		if (instance.equals(owner)) {
+			return false;
+		}
+		synchronized (locks) {
+			if (locks.containsKey(instance)) {
+				return true;
+			}
+			FileLock lock = tryLock(dir.resolve(instance + LOCK_EXTENSION));
+			if (lock == null) {
+				return false;
+			}
+			locks.put(instance, lock);
+			return true;
+		}
+	}
+
+	/**
+	 * Takes this instance's lock, if it wasn't taken, before its first journal
+	 * is written.
+	 *
+	 * @throws IOException
+	 *             if the lock can't be taken
+	 */
+	private void lock() throws IOException {
+		synchronized (locks) {
+			if (locks.containsKey(owner)) {
+				return;
+			}
+			Files.createDirectories(dir);
+			FileLock lock = tryLock(dir.resolve(owner + LOCK_EXTENSION));
+			if (lock == null) {
+				throw new IOException("The journals' lock is held by another instance: " + owner);
+			}
+			locks.put(owner, lock);
+		}
+	}
+
+	/**
+	 * Locks a file, creating it if it doesn't exist.
+	 *
+	 * @return the lock, or <code>null</code> if it's held by another instance
+	 */
+	private static FileLock tryLock(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		FileLock lock = null;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Held by this virtual machine
+		} finally {
+			if (lock == null) {
+				channel.close();
+			}
+		}
+		return lock;
+	}
+
+	/**
+	 * Rebuilds a document from its journal, applying the edits to its base.
+	 * A truncated last record, from a batch being written, is ignored.
+	 *
+	 * @return the document, or <code>null</code> if it has no change
+	 */
+	private TextDocument read(Path file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file)));
+		try {
+			int type = in.read();
+			if (type == -1) {
+				return null;
+			}
+			String name = in.readUTF();
+			String path = in.readUTF();
+			if (path.isEmpty()) {
+				path = null;
+			}
+			Charset charset = Charset.forName(in.readUTF());
+			boolean byteOrderMark = in.readBoolean();
+			String lineSeparator = in.readUTF();
+			TextFormat format = new TextFormat(charset, byteOrderMark,
+					lineSeparator.isEmpty() ? null : lineSeparator);
+
+			TextDocument doc;
+			if (type == BASE) {
+				if (in.readBoolean()) {
+					Path base = Paths.get(path);
+					long size = in.readLong();
+					long modified = in.readLong();
+					if (!Files.exists(base) || Files.size(base) != size
+							|| Files.getLastModifiedTime(base).toMillis() != modified) {
+						throw new IOException("The file changed since its journal was started: "
+								+ base);
+					}
+					doc = textDocumentStreamer.read(base);
+				} else {
+					doc = new TextDocument(name, path, new PieceTableContent());
+				}
+			} else if (type == SNAPSHOT) {
+				StringBuilder text = new StringBuilder();
+				readText(in, text);
+				doc = new TextDocument(name, path, new PieceTableContent(text));
+			} else {
+				throw new IOException("Not a journal: " + file);
+			}
+
+			int edits = replay(in, doc);
+			if (type == BASE && edits == 0) {
+				return null;
+			}
+			doc.setName(name);
+			doc.setPath(path);
+			doc.setFormat(format);
+			doc.setSaved(false);
+			doc.setSavedOnDisk(path != null);
+			return doc;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Applies the edit records to the document, without making them undoable.
+	 *
+	 * @return the number of edits applied
+	 */
+	private int replay(DataInputStream in, TextDocument doc) throws IOException {
+		int edits = 0;
+		doc.setLoading(true);
+		try {
+			while (in.read() == EDIT) {
+				int offset = in.readInt();
+				int removed = in.readInt();
+				StringBuilder inserted = new StringBuilder();
+				readText(in, inserted);
+
+				if (removed > 0) {
+					doc.remove(offset, removed);
+				}
+				if (inserted.length() > 0) {
+					doc.insertString(offset, inserted.toString(), null);
+				}
+				edits++;
+			}
+		} catch (EOFException e) {
+			// The last batch wasn't written completely
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		} finally {
+			doc.setLoading(false);
+		}
+		return edits;
+	}
+
+	/**
+	 * Marks a journal to be written on the next batch.
+	 */
+	private void changed(Journal journal) {
+		synchronized (changed) {
+			changed.add(journal);
+		}
+	}
+
+	/**
+	 * Writes the pending records of every journal changed since the last
+	 * batch, on the journal thread.
+	 */
+	private void flush() {
+		List<Journal> batch;
+		synchronized (changed) {
+			batch = new ArrayList<Journal>(changed);
+			changed.clear();
+		}
+		for (Journal journal : batch) {
+			try {
+				write(journal);
+			} catch (IOException e) {
+				e.printStackTrace();
+				// The journal misses this batch; it's replaced by a snapshot
+				journal.broken = true;
+				try {
+					closeChannel(journal);
+					Files.deleteIfExists(journal.file);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes, starts or appends to a journal's file, as its pending records
+	 * require, forcing the changes to the disk.
+	 */
+	private void write(Journal journal) throws IOException {
+		boolean delete;
+		byte[] head;
+		Content body;
+		byte[] records;
+		synchronized (journal) {
+			delete = journal.delete;
+			head = journal.head;
+			body = journal.body;
+			records = journal.pending.toByteArray();
+			journal.delete = false;
+			journal.head = null;
+			journal.body = null;
+			journal.pending.reset();
+		}
+
+		if (delete) {
+			closeChannel(journal);
+			Files.deleteIfExists(journal.file);
+		}
+		if (head != null) {
+			closeChannel(journal);
+			rewrite(journal.file, head, body, records);
+			journal.channel = FileChannel.open(journal.file, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		} else if (records.length > 0 && journal.channel != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(records);
+			while (buffer.hasRemaining()) {
+				journal.channel.write(buffer);
+			}
+			journal.channel.force(false);
+		}
+	}
+
+	private void closeChannel(Journal journal) throws IOException {
+		if (journal.channel != null) {
+			journal.channel.close();
+			journal.channel = null;
+		}
+	}
+
+	/**
+	 * Writes a journal on a temporary file and moves it over the journal's
+	 * file.
+	 */
+	private void rewrite(Path file, byte[] head, Content body, byte[] records) throws IOException {
+		lock();
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					Channels.newOutputStream(channel), 1 << 16));
+			out.write(head);
+			if (body != null) {
+				writeText(out, body);
+			}
+			out.write(records);
+			out.flush();
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+
+		try {
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Writes the type of a journal's first record and the document's
+	 * metadata.
+	 */
+	private static void writeHeader(DataOutputStream out, int type, TextDocument doc)
+			throws IOException {
+		TextFormat format = doc.getFormat();
+		out.writeByte(type);
+		out.writeUTF(doc.getName());
+		out.writeUTF(doc.getPath() != null ? doc.getPath() : "");
+		out.writeUTF(format.getCharset().name());
+		out.writeBoolean(format.hasByteOrderMark());
+		out.writeUTF(format.getLineSeparator() != null ? format.getLineSeparator() : "");
+	}
+
+	/**
+	 * Writes a snapshot's text, without the implied break at its end.
+	 */
+	private static void writeText(DataOutputStream out, Content content) throws IOException {
+		Segment segment = new Segment();
+		segment.setPartialReturn(true);
+		int length = content.length() - 1;
+		int offset = 0;
+		try {
+			while (offset < length) {
+				content.getChars(offset, length - offset, segment);
+				int count = segment.count;
+				if (count > 1 && offset + count < length
+						&& Character.isHighSurrogate(segment.array[segment.offset + count - 1])) {
+					// Leaves the pair to the next segment
+					count--;
+				}
+				writeChunks(out, segment.array, segment.offset, count);
+				offset += count;
+			}
+		} catch (BadLocationException e) {
+			throw new IOException(e);
+		}
+		out.writeInt(0);
+	}
+
+	/**
+	 * Writes a text as UTF-8 chunks, each one preceded by its length in
+	 * bytes, and followed by an empty chunk.
+	 */
+	private static void writeText(DataOutputStream out, char[] chars, int offset, int count)
+			throws IOException {
+		writeChunks(out, chars, offset, count);
+		out.writeInt(0);
+	}
+
+	private static void writeChunks(DataOutputStream out, char[] chars, int offset, int count)
+			throws IOException {
+		int end = offset + count;
+		while (offset < end) {
+			int n = Math.min(CHUNK_SIZE, end - offset);
+			if (offset + n < end && Character.isHighSurrogate(chars[offset + n - 1])) {
+				// Keeps the pair on the same chunk
+				n--;
+			}
+			byte[] bytes = new String(chars, offset, n).getBytes(UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			offset += n;
+		}
+	}
+
+	private static void readText(DataInputStream in, StringBuilder text) throws IOException {
+		int length;
+		while ((length = in.readInt()) > 0) {
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			text.append(new String(bytes, UTF_8));
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package zephyr.text;
+
+import java.io.IOException;
+
+/**
+ * The listener notified by a {@link SaveService} when a document is written.
+ * It's called on the Event Dispatch Thread.
+ *
+ */
+public interface SaveListener {
+
+	/**
+	 * Called after a snapshot of the document is written to its file.
+	 *
+	 * @param doc
+	 *            the document
+	 * @param modificationCount
+	 *            the document's modification count when the snapshot was
+	 *            taken; if it's still the current one, the document is saved
+	 * @see TextDocument#getModificationCount()
+	 */
+	void saveSucceeded(TextDocument doc, int modificationCount);
+
+	/**
+	 * Called if the document couldn't be written.
+	 *
+	 * @param doc
+	 *            the document
+	 * @param e
+	 *            the error
+	 */
+	void saveFailed(TextDocument doc, IOException e);
+}
@@ -0,0 +1,246 @@
+package zephyr.text;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.AbstractDocument.Content;
+
+import zephyr.file.FileManager;
+import zephyr.file.TextFormat;
+
+/**
+ * Saves documents on a background thread, so writing a large file, or many of
+ * them, doesn't block the Event Dispatch Thread. A snapshot of each document
+ * is taken when it's queued (see {@link TextDocument#snapshot()}), so it can
+ * be edited while it's written; the {@link SaveListener} is notified on the
+ * EDT once it's done. Files are written one at a time, in the order they're
+ * queued. Saving a document again before its previous save started only
+ * replaces the snapshot queued, so the file is written once.
+ * <p>
+ * The methods of this class must be called on the Event Dispatch Thread.
+ *
+ */
+public class SaveService {
+
+	/**
+	 * A queued save of a document.
+	 */
+	private static final class Save {
+
+		private final TextDocument doc;
+
+		private final Path file;
+
+		private final List<SaveListener> listeners = new ArrayList<SaveListener>();
+
+		private Content content;
+
+		private TextFormat format;
+
+		private int modificationCount;
+
+		/**
+		 * Whether the file is being, or was, written, so the save can't take
+		 * newer snapshots anymore.
+		 */
+		private boolean started;
+
+		private volatile boolean failed;
+
+		/**
+		 * Whether the file was written, or couldn't be.
+		 */
+		private volatile boolean done;
+
+		private Save(TextDocument doc, Path file) {
+			this.doc = doc;
+			this.file = file;
+		}
+
+		private void update(Content content, TextFormat format, int modificationCount,
+				SaveListener listener) {
+			this.content = content;
+			this.format = format;
+			this.modificationCount = modificationCount;
+			if (!listeners.contains(listener)) {
+				listeners.add(listener);
+			}
+		}
+	}
+
+	private final FileManager fileManager = new FileManager();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Zephyr saver");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The saves not started yet, by file; guarded by itself.
+	 */
+	private final Map<Path, Save> queued = new HashMap<Path, Save>();
+
+	/**
+	 * The saves whose listeners weren't notified yet; only used on the EDT.
+	 */
+	private final List<Save> unfinished = new ArrayList<Save>();
+
+	/**
+	 * Waits until every save queued so far is written. The listeners are still
+	 * notified later, on the EDT.
+	 *
+	 * @return the documents that couldn't be written, or whose saves weren't
+	 *         done because waiting was interrupted
+	 */
+	public List<TextDocument> awaitSaves() {
+		try {
+			executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					// Runs after the saves queued before it
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+
+		List<TextDocument> failed = new ArrayList<TextDocument>();
+		for (Save save : unfinished) {
+			if ((save.failed || !save.done) && !failed.contains(save.doc)) {
+				failed.add(save.doc);
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Indicates whether the document's current content is being saved, in
+	 * which case it doesn't need to be saved again.
+	 *
+	 * @param doc
+	 *            the document
+	 * @return <code>true</code> if a save of the document, taken after its
+	 *         last modification, is queued or running
+	 */
+	public boolean isSaving(TextDocument doc) {
+		for (Save save : unfinished) {
+			if (save.doc == doc && save.modificationCount == doc.getModificationCount()
+					&& !save.failed) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queues a document to be saved to its path, in its format.
+	 *
+	 * @param doc
+	 *            the document, which must have a path
+	 * @param listener
+	 *            the listener notified once the document is written
+	 */
+	public void save(TextDocument doc, SaveListener listener) {
+		Path file = Paths.get(doc.getPath()).toAbsolutePath();
+		Content content = doc.snapshot();
+		TextFormat format = doc.getFormat();
+		int modificationCount = doc.getModificationCount();
+
+		final Save save;
+		synchronized (queued) {
+			Save pending = queued.get(file);
+			if (pending != null && pending.doc == doc && !pending.started) {
+				// Writes the newer snapshot instead
+				pending.update(content, format, modificationCount, listener);
+				return;
+			}
+			save = new Save(doc, file);
+			save.update(content, format, modificationCount, listener);
+			queued.put(file, save);
+		}
+		unfinished.add(save);
+
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				write(save);
+			}
+		});
+	}
+
+	/**
+	 * Writes a queued save, on the saving thread, and notifies its listeners
+	 * on the EDT.
+	 */
+	private void write(final Save save) {
+		Content content;
+		TextFormat format;
+		synchronized (queued) {
+			save.started = true;
+			if (queued.get(save.file) == save) {
+				queued.remove(save.file);
+			}
+			content = save.content;
+			format = save.format;
+		}
+
+		IOException error = null;
+		boolean written = false;
+		try {
+			fileManager.write(content, save.file, format);
+			written = true;
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			// Even errors other than I/O ones end the save, or it would be
+			// taken as running forever
+			if (!written) {
+				save.failed = true;
+				if (error == null) {
+					error = new IOException("Unexpected error writing " + save.file);
+				}
+			}
+			save.done = true;
+			notifyListeners(save, error);
+		}
+	}
+
+	/**
+	 * Notifies the listeners of a save, on the EDT.
+	 */
+	private void notifyListeners(final Save save, final IOException failure) {
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				unfinished.remove(save);
+				for (SaveListener listener : save.listeners) {
+					if (failure == null) {
+						listener.saveSucceeded(save.doc, save.modificationCount);
+					} else {
+						listener.saveFailed(save.doc, failure);
+					}
+				}
+			}
+		});
+	}
+}
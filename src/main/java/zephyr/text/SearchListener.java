@@ -0,0 +1,21 @@
+package zephyr.text;
+
+/**
+ * Receives the progress of a search running in background.
+ * 
+ * @see Finder#search(String, int, SearchListener)
+ * 
+ */
+public interface SearchListener {
+
+	/**
+	 * Called on the event dispatch thread each time a batch of matches is
+	 * found, and once more when the search finishes.
+	 * 
+	 * @param count
+	 *            the number of matches found so far
+	 * @param done
+	 *            whether the whole document was searched
+	 */
+	void matchesFound(int count, boolean done);
+}
@@ -0,0 +1,848 @@
+package zephyr.text;
+
+import java.nio.CharBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+import zephyr.file.MappedText;
+import zephyr.text.exceptions.SearchInterruptedException;
+
+/**
+ * A compiled search string, matched with the Boyer-Moore-Horspool algorithm.
+ * The skip table is computed once, when the pattern is compiled, so the same
+ * pattern can be searched again and again without further setup.
+ * <p>
+ * Documents are searched through {@link Segment}s with partial return, so
+ * their content is never copied, except for a few characters around the
+ * boundaries of the segments. Case insensitive searches fold the case of each
+ * character as it's compared, instead of lowercasing a copy of the text.
+ * <p>
+ * Regular expressions are compiled to a {@link Pattern}, cached by expression
+ * and flags, and matched against a {@link DocumentCharSequence}, which doesn't
+ * copy the content either.
+ *
+ * @see Finder
+ *
+ */
+public class SearchPattern {
+
+	/**
+	 * Characters that delimit a whole word.
+	 */
+	private static final char[] NEUTRAL_CHARS = new char[] { ' ', '\t', '\r', '\n' };
+
+	/**
+	 * The number of buckets of the skip table. Characters are put on buckets
+	 * by their lowest bits; each bucket keeps the smallest skip of its
+	 * characters, which is always safe.
+	 */
+	private static final int TABLE_SIZE = 256;
+
+	/**
+	 * Lower case of the ASCII characters, avoiding the cost of
+	 * {@link Character#toLowerCase(char)} on the common case.
+	 */
+	private static final char[] ASCII_FOLD = new char[128];
+
+	/**
+	 * The number of characters copied at a time when searching a
+	 * {@link CharSequence}.
+	 */
+	private static final int WINDOW_SIZE = 1 << 16;
+
+	/**
+	 * The number of characters of a {@link CharSequence} read by a regular
+	 * expression between checks for interruption.
+	 */
+	private static final int CHECK_INTERVAL = 1 << 12;
+
+	/**
+	 * The number of compiled regular expressions kept on the cache.
+	 */
+	private static final int CACHED_REGEXES = 32;
+
+	/**
+	 * Compiled regular expressions, keyed by their flags and expression, in
+	 * access order so the least recently used is evicted first.
+	 */
+	private static final Map<String, Pattern> REGEX_CACHE = new LinkedHashMap<String, Pattern>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = -2931576432906745371L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+			return size() > CACHED_REGEXES;
+		}
+	};
+
+	static {
+		for (char c = 0; c < 128; c++) {
+			ASCII_FOLD[c] = Character.toLowerCase(c);
+		}
+	}
+
+	/**
+	 * Compiles a search string.
+	 *
+	 * @param search
+	 *            the string to be found; must not be empty
+	 * @param matchCase
+	 *            whether the search is case sensitive
+	 * @param wholeWord
+	 *            whether only matches delimited by blanks or by the text's
+	 *            bounds are taken
+	 * @return the compiled pattern
+	 */
+	public static SearchPattern compile(String search, boolean matchCase, boolean wholeWord) {
+		return compile(search, matchCase, wholeWord, false);
+	}
+
+	/**
+	 * Compiles a search string, which may be a regular expression.
+	 * 
+	 * @param search
+	 *            the string to be found; must not be empty
+	 * @param matchCase
+	 *            whether the search is case sensitive
+	 * @param wholeWord
+	 *            whether only matches delimited by blanks or by the text's
+	 *            bounds are taken
+	 * @param regularExpression
+	 *            whether <code>search</code> is a regular expression, in
+	 *            {@link Pattern}'s syntax
+	 * @return the compiled pattern
+	 * @throws PatternSyntaxException
+	 *             if <code>search</code> is not a valid regular expression
+	 */
+	public static SearchPattern compile(String search, boolean matchCase, boolean wholeWord,
+			boolean regularExpression) {
+		if (search == null || search.isEmpty()) {
+			throw new IllegalArgumentException("Search cannot be null or empty");
+		}
+		return new SearchPattern(search, matchCase, wholeWord, regularExpression);
+	}
+
+	/**
+	 * Compiles a regular expression, or takes it from the cache if it was
+	 * compiled before with the same flags.
+	 */
+	private static Pattern compileRegex(String regex, int flags) {
+		String key = flags + ":" + regex;
+		synchronized (REGEX_CACHE) {
+			Pattern compiled = REGEX_CACHE.get(key);
+			if (compiled == null) {
+				compiled = Pattern.compile(regex, flags);
+				REGEX_CACHE.put(key, compiled);
+			}
+			return compiled;
+		}
+	}
+
+	/**
+	 * A view of a {@link CharSequence} checking, every few thousand characters
+	 * read, whether the reading thread was interrupted, so a regular
+	 * expression taking too long can be cancelled.
+	 */
+	private static class InterruptibleText implements CharSequence {
+
+		private final CharSequence text;
+
+		private int reads;
+
+		InterruptibleText(CharSequence text) {
+			this.text = text;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (++reads == CHECK_INTERVAL) {
+				reads = 0;
+				DocumentCharSequence.checkInterrupted(Long.MAX_VALUE);
+			}
+			return text.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new InterruptibleText(text.subSequence(start, end));
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Folds the case of a character, so characters differing only by case
+	 * are folded to the same one.
+	 */
+	private static char fold(char c) {
+		if (c < 128) {
+			return ASCII_FOLD[c];
+		}
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	/**
+	 * Copies characters of a text into the start of an array, in bulk when the
+	 * text allows it.
+	 */
+	private static void getChars(CharSequence text, int start, int end, char[] dst) {
+		if (text instanceof MappedText) {
+			((MappedText) text).getChars(start, end, dst, 0);
+		} else if (text instanceof String) {
+			((String) text).getChars(start, end, dst, 0);
+		} else if (text instanceof CharBuffer) {
+			CharBuffer buffer = ((CharBuffer) text).duplicate();
+			buffer.position(buffer.position() + start);
+			buffer.get(dst, 0, end - start);
+		} else {
+			for (int i = start; i < end; i++) {
+				dst[i - start] = text.charAt(i);
+			}
+		}
+	}
+
+	/**
+	 * Appends the replacement of a match, expanding the references to its
+	 * groups the way {@link Matcher#appendReplacement(StringBuffer, String)}
+	 * does, without copying the text before the match.
+	 */
+	private static void appendReplacement(Matcher matcher, String replacement, StringBuilder out) {
+		int length = replacement.length();
+		for (int i = 0; i < length; i++) {
+			char c = replacement.charAt(i);
+			if (c == '\\') {
+				if (++i == length) {
+					throw new IllegalArgumentException("Character to be escaped is missing");
+				}
+				out.append(replacement.charAt(i));
+			} else if (c == '$') {
+				if (++i == length) {
+					throw new IllegalArgumentException(
+							"Illegal group reference: group index is missing");
+				}
+
+				String group;
+				if (replacement.charAt(i) == '{') {
+					int close = replacement.indexOf('}', i);
+					if (close == -1) {
+						throw new IllegalArgumentException("Named group reference is missing '}'");
+					}
+					group = matcher.group(replacement.substring(i + 1, close));
+					i = close;
+				} else {
+					int number = replacement.charAt(i) - '0';
+					if (number < 0 || number > 9) {
+						throw new IllegalArgumentException("Illegal group reference");
+					}
+					// Takes as many digits as still refer to an existing group
+					while (i + 1 < length) {
+						int digit = replacement.charAt(i + 1) - '0';
+						if (digit < 0 || digit > 9 || number * 10 + digit > matcher.groupCount()) {
+							break;
+						}
+						number = number * 10 + digit;
+						i++;
+					}
+					if (number > matcher.groupCount()) {
+						throw new IllegalArgumentException("No group " + number);
+					}
+					group = matcher.group(number);
+				}
+				if (group != null) {
+					out.append(group);
+				}
+			} else {
+				out.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Appends a range of a document's text, a segment at a time.
+	 */
+	private static void appendText(Document doc, int start, int end, StringBuilder out,
+			Segment segment) {
+		try {
+			int position = start;
+			while (position < end) {
+				doc.getText(position, end - position, segment);
+				out.append(segment.array, segment.offset, segment.count);
+				position += segment.count;
+			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static boolean isNeutral(char c) {
+		for (char neutral : NEUTRAL_CHARS) {
+			if (c == neutral) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the match from <code>start</code> to <code>end</code> is
+	 * delimited by neutral characters or by the text's bounds.
+	 */
+	private static boolean isWholeWord(CharSequence text, int start, int end) {
+		return (start == 0 || isNeutral(text.charAt(start - 1)))
+				&& (end == text.length() || isNeutral(text.charAt(end)));
+	}
+
+	private final String search;
+
+	private final boolean matchCase;
+
+	private final boolean wholeWord;
+
+	/**
+	 * The compiled regular expression, or <code>null</code> if the search is
+	 * literal.
+	 */
+	private final Pattern regex;
+
+	/**
+	 * The search string, with its case folded if the search is case
+	 * insensitive.
+	 */
+	private final char[] pattern;
+
+	private final int[] skip = new int[TABLE_SIZE];
+
+	private SearchPattern(String search, boolean matchCase, boolean wholeWord,
+			boolean regularExpression) {
+		this.search = search;
+		this.matchCase = matchCase;
+		this.wholeWord = wholeWord;
+
+		if (regularExpression) {
+			int flags = Pattern.MULTILINE;
+			if (!matchCase) {
+				flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+			}
+			regex = compileRegex(search, flags);
+		} else {
+			regex = null;
+		}
+
+		int m = search.length();
+		pattern = new char[m];
+		for (int i = 0; i < m; i++) {
+			char c = search.charAt(i);
+			pattern[i] = matchCase ? c : fold(c);
+		}
+
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			skip[i] = m;
+		}
+		// Later characters have smaller skips, so each bucket ends up with the
+		// smallest one
+		for (int i = 0; i < m - 1; i++) {
+			skip[pattern[i] & (TABLE_SIZE - 1)] = m - 1 - i;
+		}
+	}
+
+	/**
+	 * Finds every match of the pattern on the document. Overlapping matches
+	 * are included on literal searches; empty matches of regular expressions
+	 * are left out.
+	 *
+	 * @param doc
+	 *            the document to be searched
+	 * @return the offsets where the matches start and end
+	 * @throws SearchInterruptedException
+	 *             if the searching thread is interrupted
+	 */
+	public MatchList findAll(Document doc) {
+		return findAll(doc, 0);
+	}
+
+	/**
+	 * Works like {@link #findAll(Document)}, giving up after the given time.
+	 *
+	 * @param doc
+	 *            the document to be searched
+	 * @param timeout
+	 *            the time limit of the search, in milliseconds, or 0 for none
+	 * @return the offsets where the matches start and end
+	 * @throws SearchInterruptedException
+	 *             if the searching thread is interrupted or the search takes
+	 *             longer than <code>timeout</code>
+	 */
+	public MatchList findAll(Document doc, long timeout) {
+		long deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000 : Long.MAX_VALUE;
+		return find(doc, 0, doc.getLength(), deadline);
+	}
+
+	/**
+	 * Finds every match of the pattern on a text that isn't held by a
+	 * document, like the content of a file. The text is copied to a small
+	 * window at a time, so a {@link MappedText} is searched without being
+	 * loaded on the heap.
+	 * 
+	 * @param text
+	 *            the text to be searched
+	 * @return the offsets where the matches start and end
+	 * @throws SearchInterruptedException
+	 *             if the searching thread is interrupted
+	 * @see #findAll(Document)
+	 */
+	public MatchList findAll(CharSequence text) {
+		MatchList results = new MatchList();
+		if (regex != null) {
+			Matcher matcher = regex.matcher(new InterruptibleText(text));
+			while (matcher.find()) {
+				int start = matcher.start();
+				int end = matcher.end();
+				if (start != end && (!wholeWord || isWholeWord(text, start, end))) {
+					results.add(start, end);
+				}
+			}
+			return results;
+		}
+
+		int m = pattern.length;
+		int length = text.length();
+		char[] window = new char[Math.max(WINDOW_SIZE, 2 * m)];
+
+		int position = 0;
+		while (position + m <= length) {
+			DocumentCharSequence.checkInterrupted(Long.MAX_VALUE);
+			int count = Math.min(window.length, length - position);
+			getChars(text, position, position + count, window);
+
+			int from = 0;
+			int index;
+			while ((index = indexOf(window, from, count)) != -1) {
+				int offset = position + index;
+				if (!wholeWord || isWholeWord(text, offset, offset + m)) {
+					results.add(offset, offset + m);
+				}
+				from = index + 1;
+			}
+
+			// The last m - 1 characters are searched again with the next
+			// window, since a match may cross its end
+			position += count - m + 1;
+		}
+
+		return results;
+	}
+
+	/**
+	 * Finds the matches of the pattern starting on a range of the document,
+	 * so the matches around an edit can be found again without searching the
+	 * whole document. A match may end after the range.
+	 *
+	 * @param doc
+	 *            the document to be searched
+	 * @param from
+	 *            the first offset where a match may start
+	 * @param to
+	 *            the offset after the last one where a match may start
+	 * @return the offsets where the matches start and end
+	 * @throws SearchInterruptedException
+	 *             if the searching thread is interrupted
+	 * @see MatchList#replace(int, int, int, MatchList)
+	 */
+	public MatchList findAll(Document doc, int from, int to) {
+		return findAll(doc, from, to, 0);
+	}
+
+	/**
+	 * Works like {@link #findAll(Document, int, int)}, giving up after the
+	 * given time.
+	 *
+	 * @param timeout
+	 *            the time limit of the search, in milliseconds, or 0 for none
+	 * @throws SearchInterruptedException
+	 *             if the searching thread is interrupted or the search takes
+	 *             longer than <code>timeout</code>
+	 */
+	public MatchList findAll(Document doc, int from, int to, long timeout) {
+		long deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000 : Long.MAX_VALUE;
+		return find(doc, Math.max(from, 0), Math.min(to, doc.getLength()), deadline);
+	}
+
+	/**
+	 * Searches the whole document, handing the matches to the listener in
+	 * batches, as they're found, so they can be shown before the search ends.
+	 * It's meant to run on a background thread: the document is locked for
+	 * reading only while each batch (or, for regular expressions, each window
+	 * of characters) is read. The search is cancelled by interrupting the
+	 * searching thread.
+	 *
+	 * @param doc
+	 *            the document to be searched
+	 * @param batchSize
+	 *            the number of characters searched for each batch
+	 * @param listener
+	 *            the listener receiving the batches, on the searching thread
+	 * @throws SearchInterruptedException
+	 *             if the searching thread is interrupted
+	 * @throws IndexOutOfBoundsException
+	 *             if the document changes while a regular expression is
+	 *             matched
+	 */
+	public void findInBatches(final Document doc, int batchSize, MatchListener listener) {
+		if (regex != null) {
+			findRegexInBatches(doc, batchSize, listener);
+			return;
+		}
+
+		final MatchList[] batch = new MatchList[1];
+		final int[] length = new int[1];
+		int position = 0;
+		do {
+			final int from = position;
+			final int to = (int) Math.min(Integer.MAX_VALUE, (long) from + batchSize);
+			doc.render(new Runnable() {
+
+				@Override
+				public void run() {
+					length[0] = doc.getLength();
+					batch[0] = find(doc, from, Math.min(to, length[0]), Long.MAX_VALUE);
+				}
+			});
+
+			position = Math.min(to, length[0]);
+			listener.matchesFound(batch[0], position, length[0]);
+		} while (position < length[0]);
+	}
+
+	private void findRegexInBatches(Document doc, int batchSize, MatchListener listener) {
+		DocumentCharSequence text = new DocumentCharSequence(doc, Long.MAX_VALUE);
+		Matcher matcher = regex.matcher(text);
+		int length = text.length();
+
+		MatchList batch = new MatchList();
+		int batchEnd = batchSize;
+		while (matcher.find()) {
+			int start = matcher.start();
+			int end = matcher.end();
+			if (start >= batchEnd) {
+				listener.matchesFound(batch, start, length);
+				batch = new MatchList();
+				batchEnd = (int) Math.min(Integer.MAX_VALUE, (long) start + batchSize);
+			}
+			if (start != end && (!wholeWord || isWholeWord(text, start, end))) {
+				batch.add(start, end);
+			}
+		}
+		listener.matchesFound(batch, length, length);
+	}
+
+	private MatchList find(Document doc, int start, int stop, long deadline) {
+		if (regex != null) {
+			return findRegex(doc, start, stop, deadline);
+		}
+
+		MatchList results = new MatchList();
+		int m = pattern.length;
+		// The characters after the last one a match can reach aren't read
+		int length = (int) Math.min(doc.getLength(), (long) stop + m - 1);
+
+		Segment segment = new Segment();
+		segment.setPartialReturn(true);
+		Segment window = new Segment();
+		Segment neighbor = new Segment();
+
+		try {
+			int position = start;
+			while (position < stop && position + m <= length) {
+				DocumentCharSequence.checkInterrupted(deadline);
+				doc.getText(position, length - position, segment);
+				Segment chunk = segment;
+
+				if (segment.count < m) {
+					// A match may cross the segment's end: the characters around
+					// it are copied to a small window
+					doc.getText(position, Math.min(length - position, 2 * m - 1), window);
+					chunk = window;
+				}
+
+				int from = chunk.offset;
+				int to = chunk.offset + chunk.count;
+				int index;
+				while ((index = indexOf(chunk.array, from, to)) != -1) {
+					int offset = position + index - chunk.offset;
+					if (!wholeWord || isWholeWord(doc, offset, offset + m, neighbor)) {
+						results.add(offset, offset + m);
+					}
+					from = index + 1;
+				}
+
+				// Every start position that fits on the chunk was checked
+				position += chunk.count - m + 1;
+			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+
+		return results;
+	}
+
+	/**
+	 * Finds the non empty matches of the regular expression starting on a
+	 * range of the document, which is read through a
+	 * {@link DocumentCharSequence}.
+	 */
+	private MatchList findRegex(Document doc, int start, int stop, long deadline) {
+		MatchList results = new MatchList();
+		DocumentCharSequence text = new DocumentCharSequence(doc, deadline);
+		Matcher matcher = regex.matcher(text);
+		// Lookarounds and anchors still see the text outside of the range
+		matcher.useTransparentBounds(true).useAnchoringBounds(false);
+		matcher.region(start, doc.getLength());
+
+		while (matcher.find() && matcher.start() < stop) {
+			int matchStart = matcher.start();
+			int end = matcher.end();
+			if (matchStart != end && (!wholeWord || isWholeWord(text, matchStart, end))) {
+				results.add(matchStart, end);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Builds the text that replaces every match on the document, in a single
+	 * pass. Matches are replaced from left to right, so overlapping matches
+	 * of a literal search are replaced only once. Only the span from the
+	 * start of the first match replaced to the end of the last one is built,
+	 * so it can be replaced by a single edit.
+	 * <p>
+	 * The replacement of a regular expression may refer to its groups, like
+	 * on {@link Matcher#appendReplacement(StringBuffer, String)}: '$n' and
+	 * '${name}' are replaced by the groups matched, and '\\' escapes the
+	 * next character. The replacement of a literal search is taken as is.
+	 * 
+	 * @param doc
+	 *            the document searched, which must not change meanwhile
+	 * @param replacement
+	 *            the replacement of each match
+	 * @param out
+	 *            the builder receiving the replaced span
+	 * @param timeout
+	 *            the time limit of the search, in milliseconds, or 0 for none
+	 * @return the matches replaced, at their offsets before the replacement
+	 * @throws IllegalArgumentException
+	 *             if the replacement refers to a group that doesn't exist
+	 * @throws SearchInterruptedException
+	 *             if the searching thread is interrupted or the search takes
+	 *             longer than <code>timeout</code>
+	 */
+	public MatchList replaceAll(Document doc, String replacement, StringBuilder out, long timeout) {
+		long deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000 : Long.MAX_VALUE;
+		MatchList replaced = new MatchList();
+		Segment segment = new Segment();
+		segment.setPartialReturn(true);
+
+		if (regex != null) {
+			DocumentCharSequence text = new DocumentCharSequence(doc, deadline);
+			Matcher matcher = regex.matcher(text);
+			while (matcher.find()) {
+				int start = matcher.start();
+				int end = matcher.end();
+				if (start != end && (!wholeWord || isWholeWord(text, start, end))) {
+					if (!replaced.isEmpty()) {
+						appendText(doc, replaced.getEnd(replaced.size() - 1), start, out, segment);
+					}
+					appendReplacement(matcher, replacement, out);
+					replaced.add(start, end);
+				}
+			}
+			return replaced;
+		}
+
+		MatchList matches = find(doc, 0, doc.getLength(), deadline);
+		int position = -1;
+		for (int i = 0; i < matches.size(); i++) {
+			int start = matches.get(i);
+			if (start < position) {
+				// Overlaps the match replaced before
+				continue;
+			}
+			if (position != -1) {
+				appendText(doc, position, start, out, segment);
+			}
+			out.append(replacement);
+			position = matches.getEnd(i);
+			replaced.add(start, position);
+		}
+		return replaced;
+	}
+
+	/**
+	 * Builds the text that replaces the match from <code>start</code> to
+	 * <code>end</code>, expanding the references to the groups of a regular
+	 * expression.
+	 * 
+	 * @param doc
+	 *            the document searched
+	 * @param start
+	 *            the start of the match
+	 * @param end
+	 *            the end of the match
+	 * @param replacement
+	 *            the replacement, as given to
+	 *            {@link #replaceAll(Document, String, StringBuilder, long)}
+	 * @return the replacement text, or <code>null</code> if the regular
+	 *         expression doesn't match from <code>start</code> to
+	 *         <code>end</code>
+	 * @throws IllegalArgumentException
+	 *             if the replacement refers to a group that doesn't exist
+	 */
+	public String expand(Document doc, int start, int end, String replacement) {
+		if (regex == null) {
+			return replacement;
+		}
+
+		Matcher matcher = regex.matcher(new DocumentCharSequence(doc, Long.MAX_VALUE));
+		matcher.useTransparentBounds(true).useAnchoringBounds(false);
+		matcher.region(start, doc.getLength());
+		if (!matcher.lookingAt() || matcher.end() != end) {
+			return null;
+		}
+
+		StringBuilder out = new StringBuilder();
+		appendReplacement(matcher, replacement, out);
+		return out.toString();
+	}
+
+	/**
+	 * Returns the string this pattern was compiled from.
+	 *
+	 * @return the search string
+	 */
+	public String getSearch() {
+		return search;
+	}
+
+	/**
+	 * Returns the length of the search string, which is the length of the
+	 * matches of a literal search.
+	 *
+	 * @return the search string's length
+	 */
+	public int getLength() {
+		return pattern.length;
+	}
+
+	/**
+	 * Finds the first match of the pattern on a range of the array.
+	 *
+	 * @param text
+	 *            the array to be searched
+	 * @param from
+	 *            the first index of the range
+	 * @param to
+	 *            the index after the last one of the range
+	 * @return the index where the match starts, or -1 if there's none
+	 * @throws IllegalStateException
+	 *             if this pattern is a regular expression
+	 */
+	public int indexOf(char[] text, int from, int to) {
+		if (regex != null) {
+			throw new IllegalStateException("Not a literal search");
+		}
+		int m = pattern.length;
+		int last = m - 1;
+		char lastChar = pattern[last];
+
+		int i = from;
+		int end = to - m;
+		while (i <= end) {
+			char c = text[i + last];
+			if (!matchCase) {
+				c = fold(c);
+			}
+
+			if (c == lastChar) {
+				int j = last - 1;
+				while (j >= 0) {
+					char d = text[i + j];
+					if (!matchCase) {
+						d = fold(d);
+					}
+					if (d != pattern[j]) {
+						break;
+					}
+					j--;
+				}
+				if (j < 0) {
+					return i;
+				}
+			}
+
+			i += skip[c & (TABLE_SIZE - 1)];
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks whether the pattern was compiled with the given arguments, so it
+	 * can be reused.
+	 *
+	 * @return <code>true</code> if the arguments are the same used to compile
+	 *         this pattern
+	 */
+	public boolean isCompiledFrom(String search, boolean matchCase, boolean wholeWord,
+			boolean regularExpression) {
+		return this.search.equals(search) && this.matchCase == matchCase
+				&& this.wholeWord == wholeWord && isRegularExpression() == regularExpression;
+	}
+
+	public boolean isMatchCase() {
+		return matchCase;
+	}
+
+	public boolean isRegularExpression() {
+		return regex != null;
+	}
+
+	public boolean isWholeWord() {
+		return wholeWord;
+	}
+
+	/**
+	 * Checks whether the match from <code>offset</code> to <code>end</code>
+	 * is delimited by neutral characters or by the document's bounds.
+	 */
+	private boolean isWholeWord(Document doc, int offset, int end, Segment neighbor)
+			throws BadLocationException {
+		if (offset > 0) {
+			doc.getText(offset - 1, 1, neighbor);
+			if (!isNeutral(neighbor.array[neighbor.offset])) {
+				return false;
+			}
+		}
+		if (end < doc.getLength()) {
+			doc.getText(end, 1, neighbor);
+			if (!isNeutral(neighbor.array[neighbor.offset])) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
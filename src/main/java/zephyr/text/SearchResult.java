@@ -0,0 +1,67 @@
+package zephyr.text;
+
+/**
+ * A match found by a search, with the line it was found on, so it can be
+ * listed before the text it was found on is shown.
+ * 
+ * @see SearchResults
+ * 
+ */
+public class SearchResult {
+
+	/**
+	 * The maximum number of characters of the line kept for display.
+	 */
+	public static final int MAX_LINE_LENGTH = 200;
+
+	private final int start;
+
+	private final int end;
+
+	private final int line;
+
+	private final String lineText;
+
+	/**
+	 * Creates a result.
+	 * 
+	 * @param start
+	 *            the offset where the match starts
+	 * @param end
+	 *            the offset after the last character of the match
+	 * @param line
+	 *            the number of the line where the match starts, starting from
+	 *            1
+	 * @param lineText
+	 *            the text of the line; only its first
+	 *            {@link #MAX_LINE_LENGTH} characters are kept
+	 */
+	public SearchResult(int start, int end, int line, String lineText) {
+		this.start = start;
+		this.end = end;
+		this.line = line;
+		this.lineText = lineText.length() > MAX_LINE_LENGTH ? lineText.substring(0,
+				MAX_LINE_LENGTH) : lineText;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public String getLineText() {
+		return lineText;
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	@Override
+	public String toString() {
+		return line + ": " + lineText.trim();
+	}
+}
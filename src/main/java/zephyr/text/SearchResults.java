@@ -0,0 +1,149 @@
+package zephyr.text;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+
+import zephyr.file.MappedText;
+
+/**
+ * The results of a search on one source, like an open document or a file.
+ * Only the first {@link #MAX_RESULTS} matches are kept as
+ * {@link SearchResult}s, since a frequent search string could have millions
+ * of them, but all of them are counted.
+ * 
+ * @param <S>
+ *            the type of the source searched
+ * 
+ */
+public class SearchResults<S> {
+
+	/**
+	 * The maximum number of results kept for each source.
+	 */
+	public static final int MAX_RESULTS = 1000;
+
+	/**
+	 * Creates the results of a search on a document, looking up the lines of
+	 * the matches. It must be called with the document locked for reading, as
+	 * by {@link Document#render(Runnable)}, so the matches are still where
+	 * they were found.
+	 * 
+	 * @param source
+	 *            the source searched
+	 * @param doc
+	 *            the document searched
+	 * @param matches
+	 *            the matches found on the document
+	 * @return the results
+	 */
+	public static <S> SearchResults<S> of(S source, Document doc, MatchList matches) {
+		int kept = Math.min(matches.size(), MAX_RESULTS);
+		List<SearchResult> results = new ArrayList<SearchResult>(kept);
+		Element root = doc.getDefaultRootElement();
+
+		try {
+			for (int i = 0; i < kept; i++) {
+				int start = matches.get(i);
+				int index = root.getElementIndex(start);
+				Element line = root.getElement(index);
+				int lineEnd = Math.min(line.getEndOffset(), doc.getLength());
+				int lineLength = Math.min(lineEnd - line.getStartOffset(),
+						SearchResult.MAX_LINE_LENGTH);
+				results.add(new SearchResult(start, matches.getEnd(i), index + 1, doc.getText(
+						line.getStartOffset(), lineLength)));
+			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+
+		return new SearchResults<S>(source, matches.size(), results);
+	}
+
+	/**
+	 * Creates the results of a search on a text that isn't held by a
+	 * document, like the content of a file. Lines are counted from the start
+	 * of the text up to the last match kept, or looked up on the index of a
+	 * {@link MappedText}.
+	 * 
+	 * @param source
+	 *            the source searched
+	 * @param text
+	 *            the text searched, with lines separated by '\n'
+	 * @param matches
+	 *            the matches found on the text
+	 * @return the results
+	 * @see SearchPattern#findAll(CharSequence)
+	 */
+	public static <S> SearchResults<S> of(S source, CharSequence text, MatchList matches) {
+		int kept = Math.min(matches.size(), MAX_RESULTS);
+		List<SearchResult> results = new ArrayList<SearchResult>(kept);
+		MappedText mapped = text instanceof MappedText ? (MappedText) text : null;
+
+		int line = 0;
+		int lineStart = 0;
+		int position = 0;
+		for (int i = 0; i < kept; i++) {
+			int start = matches.get(i);
+			if (mapped != null) {
+				line = mapped.getLineOfOffset(start);
+				lineStart = mapped.getLineStartOffset(line);
+			} else {
+				for (; position < start; position++) {
+					if (text.charAt(position) == '\n') {
+						line++;
+						lineStart = position + 1;
+					}
+				}
+			}
+
+			int lineEnd = lineStart;
+			int limit = Math.min(text.length(), lineStart + SearchResult.MAX_LINE_LENGTH);
+			while (lineEnd < limit && text.charAt(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			results.add(new SearchResult(start, matches.getEnd(i), line + 1, text.subSequence(
+					lineStart, lineEnd).toString()));
+		}
+
+		return new SearchResults<S>(source, matches.size(), results);
+	}
+
+	private final S source;
+
+	private final int count;
+
+	private final List<SearchResult> results;
+
+	public SearchResults(S source, int count, List<SearchResult> results) {
+		this.source = source;
+		this.count = count;
+		this.results = Collections.unmodifiableList(results);
+	}
+
+	/**
+	 * Returns the number of matches found, which may be more than the results
+	 * kept.
+	 * 
+	 * @return the number of matches
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public List<SearchResult> getResults() {
+		return results;
+	}
+
+	public S getSource() {
+		return source;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+}
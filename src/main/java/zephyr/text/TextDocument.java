@@ -1,16 +1,32 @@
 package zephyr.text;
 
+import static zephyr.Zephyr.PREFERENCES;
 import static zephyr.Zephyr.STRINGS;
 
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.event.UndoableEditEvent;
 import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
+import javax.swing.text.Element;
 import javax.swing.text.PlainDocument;
-import javax.swing.undo.UndoManager;
+import javax.swing.text.Segment;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.tree.TreeNode;
+import javax.swing.undo.CompoundEdit;
+
+import zephyr.file.TextFormat;
 
 /**
  * This class adds some simple features to the {@link PlainDocument} class.
@@ -25,11 +41,228 @@ import javax.swing.undo.UndoManager;
  */
 public class TextDocument extends PlainDocument {
 
+	/**
+	 * The line map of documents whose content is line indexed. Lines are
+	 * computed from the content on demand instead of being stored as elements,
+	 * so there's no need to keep two {@link javax.swing.text.Position}s for
+	 * each line of a large file.
+	 */
+	private class LineRootElement extends BranchElement {
+
+		private static final long serialVersionUID = 8125296328473640196L;
+
+		private LineRootElement() {
+			super(null, null);
+		}
+
+		@Override
+		public Enumeration<TreeNode> children() {
+			return new Enumeration<TreeNode>() {
+
+				private int index;
+
+				@Override
+				public boolean hasMoreElements() {
+					return index < getElementCount();
+				}
+
+				@Override
+				public TreeNode nextElement() {
+					return getChildAt(index++);
+				}
+			};
+		}
+
+		@Override
+		public TreeNode getChildAt(int index) {
+			return (TreeNode) getElement(index);
+		}
+
+		@Override
+		public int getChildCount() {
+			return getElementCount();
+		}
+
+		@Override
+		public Element getElement(int index) {
+			if (index < 0 || index >= getElementCount()) {
+				return null;
+			}
+			PieceTableContent content = getLineIndexedContent();
+			int start = content.getLineStartOffset(index);
+			int end = content.getLineStartOffset(index + 1);
+			if (index + 1 == getElementCount()) {
+				end = content.length();
+			}
+			return new LineElement(this, start, end);
+		}
+
+		@Override
+		public int getElementCount() {
+			return getLineIndexedContent().getLineCount();
+		}
+
+		@Override
+		public int getElementIndex(int offset) {
+			return getLineIndexedContent().getLineOfOffset(offset);
+		}
+
+		@Override
+		public int getEndOffset() {
+			return getLineIndexedContent().length();
+		}
+
+		@Override
+		public int getStartOffset() {
+			return 0;
+		}
+
+		@Override
+		public Element positionToElement(int pos) {
+			return getElement(getElementIndex(pos));
+		}
+
+		/**
+		 * Does nothing, since the lines are always computed from the content.
+		 */
+		@Override
+		public void replace(int offset, int length, Element[] elems) {
+		}
+	}
+
+	/**
+	 * A line handed by {@link LineRootElement}. Its offsets are only valid until
+	 * the document changes.
+	 */
+	private class LineElement implements Element, TreeNode {
+
+		private final Element parent;
+
+		private final int start;
+
+		private final int end;
+
+		private LineElement(Element parent, int start, int end) {
+			this.parent = parent;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public Enumeration<TreeNode> children() {
+			return null;
+		}
+
+		@Override
+		public boolean getAllowsChildren() {
+			return false;
+		}
+
+		@Override
+		public AttributeSet getAttributes() {
+			return SimpleAttributeSet.EMPTY;
+		}
+
+		@Override
+		public TreeNode getChildAt(int childIndex) {
+			return null;
+		}
+
+		@Override
+		public int getChildCount() {
+			return 0;
+		}
+
+		@Override
+		public Document getDocument() {
+			return TextDocument.this;
+		}
+
+		@Override
+		public Element getElement(int index) {
+			return null;
+		}
+
+		@Override
+		public int getElementCount() {
+			return 0;
+		}
+
+		@Override
+		public int getElementIndex(int offset) {
+			return -1;
+		}
+
+		@Override
+		public int getEndOffset() {
+			return end;
+		}
+
+		@Override
+		public int getIndex(TreeNode node) {
+			return -1;
+		}
+
+		@Override
+		public String getName() {
+			return ContentElementName;
+		}
+
+		@Override
+		public TreeNode getParent() {
+			return (TreeNode) parent;
+		}
+
+		@Override
+		public Element getParentElement() {
+			return parent;
+		}
+
+		@Override
+		public int getStartOffset() {
+			return start;
+		}
+
+		@Override
+		public boolean isLeaf() {
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "LineElement(" + getName() + ") " + start + "," + end + "\n";
+		}
+	}
+
 	/**
 	 * Serial version ID.
 	 */
 	private static final long serialVersionUID = -4676679149064761964L;
 
+	/**
+	 * The property holding the {@link Charset} of the document's file.
+	 */
+	public static final String CHARSET_PROPERTY = "charset";
+
+	/**
+	 * The property indicating whether the document's file starts with a byte
+	 * order mark.
+	 */
+	public static final String BYTE_ORDER_MARK_PROPERTY = "byte-order-mark";
+
+	/**
+	 * The property holding the line separator of the document's file, if it
+	 * has more than one line.
+	 */
+	public static final String LINE_SEPARATOR_PROPERTY = "line-separator";
+
+	/**
+	 * The bound property fired when the document becomes saved or unsaved.
+	 * 
+	 * @see #addPropertyChangeListener(PropertyChangeListener)
+	 */
+	public static final String SAVED_PROPERTY = "saved";
+
 	/**
 	 * The name of the document.
 	 */
@@ -45,6 +278,11 @@ public class TextDocument extends PlainDocument {
 	 */
 	private boolean saved;
 
+	/**
+	 * Notifies the listeners of the {@link #SAVED_PROPERTY}.
+	 */
+	private final PropertyChangeSupport changeSupport = new PropertyChangeSupport(this);
+
 	/**
 	 * Indicates if the document was already flushed to the disc, independent of
 	 * the {@code saved} flag.
@@ -56,19 +294,44 @@ public class TextDocument extends PlainDocument {
 	 */
 	private boolean newDocument;
 
+	/**
+	 * Indicates whether the document's content is still being loaded from the
+	 * disk. Changes made while loading don't unsave the document and can't be
+	 * undone.
+	 */
+	private boolean loading;
+
+	/**
+	 * Collects the edits made by {@link #replace}, so they're undone as one,
+	 * or <code>null</code> if no replace is running.
+	 */
+	private CompoundEdit replaceEdit;
+
+	/**
+	 * The document's undo history.
+	 */
+	private UndoHistory undoHistory;
+
+	/**
+	 * The number of inserts and removes made on the document, telling whether
+	 * it changed since a snapshot was taken.
+	 */
+	private int modificationCount;
+
 	/**
 	 * Creates a blank document with {@code name} "Untitled" and a null
 	 * {@code path}.
 	 */
 	public TextDocument() {
-		this(STRINGS.getString("untitled"), null, null);
+		this(STRINGS.getString("untitled"), null, (String) null);
 		setSavedOnDisk(false);
 		this.newDocument = true;
 		putProperty("new", true);
 	}
 
 	/**
-	 * Creates a document with the specified name, path and content
+	 * Creates a document with the specified name, path and content, backed by
+	 * a {@link PieceTableContent}.
 	 * 
 	 * @param name
 	 *            the document name
@@ -78,49 +341,245 @@ public class TextDocument extends PlainDocument {
 	 *            the content to be set on text area
 	 */
 	public TextDocument(String name, String path, String content) {
+		this(name, path, new PieceTableContent(content != null ? content : ""));
+	}
+
+	/**
+	 * Creates a document with the specified name and path, backed by the given
+	 * storage. The storage may already hold the document's content (e.g. a
+	 * {@link PieceTableContent} created over a file just read), in which case
+	 * it's used as is, without being copied. If it's a line indexed
+	 * {@link PieceTableContent}, the lines aren't stored as elements either.
+	 * 
+	 * @param name
+	 *            the document name
+	 * @param path
+	 *            the document path
+	 * @param storage
+	 *            the content storage of the document
+	 */
+	public TextDocument(String name, String path, Content storage) {
+		super(storage);
+		if (storage.length() > 1 && !isLargeFile()) {
+			buildLineMap();
+		}
+		init(name, path);
+	}
+
+	/**
+	 * Creates a {@link LineRootElement} if the content is line indexed, or the
+	 * usual line map otherwise.
+	 */
+	@Override
+	protected AbstractElement createDefaultRoot() {
+		Content content = getContent();
+		if (content instanceof PieceTableContent && ((PieceTableContent) content).isLineIndexed()) {
+			return new LineRootElement();
+		}
+		return super.createDefaultRoot();
+	}
+
+	/**
+	 * Returns the document's content, casted to a line indexed
+	 * {@link PieceTableContent}.
+	 */
+	private PieceTableContent getLineIndexedContent() {
+		return (PieceTableContent) getContent();
+	}
+
+	/**
+	 * Takes a snapshot of the document's content, which can be read on other
+	 * threads while the document keeps being edited. It's cheap for documents
+	 * backed by a {@link PieceTableContent} (see
+	 * {@link PieceTableContent#snapshot()}); other ones are copied.
+	 * 
+	 * @return a copy of the content, with the implied break at its end
+	 */
+	public Content snapshot() {
+		readLock();
 		try {
-			insertString(0, content, null);
+			Content content = getContent();
+			if (content instanceof PieceTableContent) {
+				return ((PieceTableContent) content).snapshot();
+			}
+			return new PieceTableContent(getText(0, getLength()));
 		} catch (BadLocationException e) {
-			e.printStackTrace();
+			throw new IllegalStateException(e);
+		} finally {
+			readUnlock();
+		}
+	}
+
+	/**
+	 * Makes the document stop reading its text from the given file, if it's
+	 * mapped from it, so the file can be overwritten in place.
+	 * 
+	 * @param file
+	 *            the file about to be overwritten
+	 * @return <code>true</code> if the document's text was read from the file
+	 * @throws IOException
+	 *             if the document can't stop reading from the file
+	 * @see PieceTableContent#release(Path)
+	 */
+	public boolean release(Path file) throws IOException {
+		readLock();
+		try {
+			Content content = getContent();
+			return content instanceof PieceTableContent
+					&& ((PieceTableContent) content).release(file);
+		} finally {
+			readUnlock();
 		}
+	}
+
+	/**
+	 * Indicates whether the document holds a file too large to be read, which
+	 * was mapped to memory.
+	 * 
+	 * @return <code>true</code> if the document's lines are computed from its
+	 *         content
+	 */
+	public boolean isLargeFile() {
+		return getDefaultRootElement() instanceof LineRootElement;
+	}
+
+	/**
+	 * Sets up the document's metadata and listeners.
+	 */
+	private void init(String name, String path) {
 		setName(name);
 		setPath(path);
 
 		setSaved(true);
 		setSavedOnDisk(true);
 
-		addUndoableEditListener(new UndoManager());
+		undoHistory = new UndoHistory(this, PREFERENCES.undoMemoryLimit() * 1024L * 1024L);
+		addUndoableEditListener(undoHistory);
+		addDocumentListener(undoHistory);
 		addDocumentListener(new DocumentListener() {
 
 			@Override
 			public void changedUpdate(DocumentEvent e) {
-				setSaved(false);
+				if (!loading) {
+					setSaved(false);
+				}
 			}
 
 			@Override
 			public void insertUpdate(DocumentEvent e) {
-				setSaved(false);
+				modificationCount++;
+				if (!loading) {
+					setSaved(false);
+				}
 			}
 
 			@Override
 			public void removeUpdate(DocumentEvent e) {
-				setSaved(false);
+				modificationCount++;
+				if (!loading) {
+					setSaved(false);
+				}
 			}
 		});
+	}
 
+	/**
+	 * Edits made while the document is loading are not handed to the
+	 * {@link UndoHistory}, so the loaded content can't be undone.
+	 */
+	@Override
+	protected void fireUndoableEditUpdate(UndoableEditEvent e) {
+		if (loading) {
+			return;
+		}
+		if (replaceEdit != null) {
+			replaceEdit.addEdit(e.getEdit());
+		} else {
+			super.fireUndoableEditUpdate(e);
+		}
 	}
 
-	public int createLineAbove(int index) {
-		try {
-			String text = getText(0, getLength());
+	/**
+	 * Removes and inserts the text as a single edit, so it's undone at once,
+	 * like a selection typed over or every match of a 'Replace All'.
+	 */
+	@Override
+	public void replace(int offset, int length, String text, AttributeSet attrs)
+			throws BadLocationException {
+		if (length == 0 || text == null || text.isEmpty() || replaceEdit != null) {
+			super.replace(offset, length, text, attrs);
+			return;
+		}
 
-			int nextLineFeed = text.lastIndexOf('\n', index - 1);
+		CompoundEdit edit = new CompoundEdit();
+		replaceEdit = edit;
+		try {
+			super.replace(offset, length, text, attrs);
+		} finally {
+			replaceEdit = null;
+			edit.end();
+		}
+		fireUndoableEditUpdate(new UndoableEditEvent(this, edit));
+	}
 
-			if (nextLineFeed == -1) {
-				nextLineFeed = text.indexOf('\n');
-				if (nextLineFeed == -1) {
-					nextLineFeed = getLength();
+	/**
+	 * Creates the line elements for content already present on the storage
+	 * when the document is created, replacing the single empty line created by
+	 * {@link PlainDocument}. The content is scanned in chunks, so it's never
+	 * copied as a whole.
+	 */
+	private void buildLineMap() {
+		BranchElement root = (BranchElement) getDefaultRootElement();
+		Content content = getContent();
+		List<Element> lines = new ArrayList<Element>();
+		Segment segment = new Segment();
+		segment.setPartialReturn(true);
+
+		int lineStart = 0;
+		int offset = 0;
+		int length = content.length();
+		try {
+			while (offset < length) {
+				content.getChars(offset, length - offset, segment);
+				for (int i = 0; i < segment.count; i++) {
+					if (segment.array[segment.offset + i] == '\n') {
+						int lineEnd = offset + i + 1;
+						lines.add(createLeafElement(root, null, lineStart, lineEnd));
+						lineStart = lineEnd;
+					}
 				}
+				offset += segment.count;
+			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+
+		root.replace(0, root.getElementCount(), lines.toArray(new Element[lines.size()]));
+	}
+
+	/**
+	 * Returns the line element containing the given offset. The lookup is done
+	 * on the line map maintained by {@link PlainDocument}, so it doesn't depend
+	 * on the document's length.
+	 * 
+	 * @param offset
+	 *            the offset
+	 * @return the line element
+	 */
+	private Element getLine(int offset) {
+		Element root = getDefaultRootElement();
+		return root.getElement(root.getElementIndex(offset));
+	}
+
+	public int createLineAbove(int index) {
+		try {
+			Element line = getLine(index);
+			int nextLineFeed;
+
+			if (line.getStartOffset() > 0) {
+				nextLineFeed = line.getStartOffset() - 1;
+			} else {
+				nextLineFeed = line.getEndOffset() - 1;
 			}
 
 			insertString(nextLineFeed++, "\n", null);
@@ -134,17 +593,11 @@ public class TextDocument extends PlainDocument {
 
 	public int createLineBelow(int index) {
 		try {
-			String text = getText(0, getLength());
-
-			int nextLineFeed = text.indexOf('\n', index);
-
-			if (nextLineFeed == -1) {
-				nextLineFeed = getLength();
-			}
+			int nextLineFeed = getLine(index).getEndOffset() - 1;
 
 			insertString(nextLineFeed++, "\n", null);
 
-			return nextLineFeed++;
+			return nextLineFeed;
 		} catch (BadLocationException e) {
 			e.printStackTrace();
 			return index;
@@ -153,26 +606,20 @@ public class TextDocument extends PlainDocument {
 
 	public void duplicateLines(int start, int end) {
 		try {
-			String text = getText(0, getLength());
-
-			int firstLineFeed = text.lastIndexOf('\n', start);
-
-			int secondLineFeed = end;
-
-			if (end != getLength() && text.charAt(end) != 'n') {
-				secondLineFeed = text.indexOf('\n', end);
-
-				if (secondLineFeed == -1)
-					secondLineFeed = getLength() - 1;
+			int firstLineStart = getLine(start).getStartOffset();
+			int lastLineEnd = getLine(end).getEndOffset();
+
+			if (lastLineEnd > getLength()) {
+				// The last line has no line feed to be copied along
+				String dub = getText(firstLineStart, getLength() - firstLineStart);
+				insertString(getLength(), "\n" + dub, null);
+			} else {
+				String dub = getText(firstLineStart, lastLineEnd - firstLineStart);
+				insertString(lastLineEnd, dub, null);
 			}
-
-			String dub = getText(firstLineFeed + 1, secondLineFeed - firstLineFeed);
-
-			insertString(secondLineFeed + 1, dub, null);
 		} catch (BadLocationException e) {
 			e.printStackTrace();
 		}
-
 	}
 
 	/**
@@ -181,75 +628,64 @@ public class TextDocument extends PlainDocument {
 	 * 
 	 * @param search
 	 *            a {@link String} to be found on the document's content
-	 * @return an {@link ArrayList} containing all first indexes of matches of
+	 * @return a {@link MatchList} containing all first indexes of matches of
 	 *         the given <code>search</code>. For example, the following
 	 *         content, when searched looking for the string "double" would
 	 *         return a list containing [0, 14, 25]:
 	 * 
 	 *         "double string double int double char"
+	 * @see SearchPattern
 	 */
-	public ArrayList<Integer> find(String search, boolean wholeWord, boolean matchCase) {
-		ArrayList<Integer> results = new ArrayList<Integer>();
-		String content = null;
-		try {
-			content = getText(0, getLength());
-		} catch (BadLocationException e) {
-			e.printStackTrace();
-		}
-
-		if (content.isEmpty()) {
-			return results;
+	public MatchList find(String search, boolean wholeWord, boolean matchCase) {
+		if (search.isEmpty()) {
+			return new MatchList();
 		}
+		return find(SearchPattern.compile(search, matchCase, wholeWord));
+	}
 
-		if (!matchCase) {
-			search = search.toLowerCase();
-			content = content.toLowerCase();
-		}
+	/**
+	 * Iterate over the document's content, looking for matches of an already
+	 * compiled pattern. The content is not copied.
+	 * 
+	 * @param pattern
+	 *            the pattern to be found on the document's content
+	 * @return a {@link MatchList} containing all first indexes of matches
+	 */
+	public MatchList find(SearchPattern pattern) {
+		return pattern.findAll(this);
+	}
 
-		int lastIndex = content.lastIndexOf(search);
-		if (lastIndex != -1) {
-			int i = -1;
-			while (i != lastIndex) {
-				i = content.indexOf(search, ++i);
-				results.add(i);
-			}
+	/**
+	 * Returns how the document's file is laid out on the disk, as it was
+	 * detected when it was read, or the default format if it wasn't.
+	 * 
+	 * @return the document's format
+	 */
+	public TextFormat getFormat() {
+		Charset charset = (Charset) getProperty(CHARSET_PROPERTY);
+		if (charset == null) {
+			return TextFormat.getDefault();
 		}
+		return new TextFormat(charset, Boolean.TRUE.equals(getProperty(BYTE_ORDER_MARK_PROPERTY)),
+				(String) getProperty(LINE_SEPARATOR_PROPERTY));
+	}
 
-		ArrayList<Integer> toRemove = new ArrayList<Integer>();
-
-		char[] neutralChars = new char[] { ' ', '\t', '\r', '\n' };
-
-		if (wholeWord) {
-
-			for (Integer result : results) {
-				boolean afterNeutralChar = false;
-				boolean beforeNeutralChar = false;
-
-				for (char c : neutralChars) {
-					if (result != 0 && content.charAt(result - 1) == c) {
-						afterNeutralChar = true;
-					}
-				}
-
-				for (char c : neutralChars) {
-					if (result + search.length() != content.length() - 1
-							&& content.charAt(result + search.length()) == c) {
-						beforeNeutralChar = true;
-					}
-				}
-
-				if (!((result == 0 || afterNeutralChar) && (result + search.length() == content
-						.length() - 1 || beforeNeutralChar))) {
-					toRemove.add(result);
-				}
-			}
-
-			for (Integer remove : toRemove) {
-				results.remove(remove);
-			}
-		}
+	/**
+	 * Returns the number of inserts and removes made on the document so far.
+	 * 
+	 * @return the modification count
+	 */
+	public int getModificationCount() {
+		return modificationCount;
+	}
 
-		return results;
+	/**
+	 * Returns the document's undo history.
+	 * 
+	 * @return the undo history
+	 */
+	public UndoHistory getUndoHistory() {
+		return undoHistory;
 	}
 
 	/**
@@ -284,6 +720,16 @@ public class TextDocument extends PlainDocument {
 		return newDocument;
 	}
 
+	/**
+	 * Returns <code>true</code> while the document's content is being loaded
+	 * from the disk.
+	 * 
+	 * @return the loading flag
+	 */
+	public boolean isLoading() {
+		return loading;
+	}
+
 	/**
 	 * Returns <code>true</code> if the document is saved; <code>false</code> if
 	 * not.
@@ -306,26 +752,16 @@ public class TextDocument extends PlainDocument {
 
 	public void joinLines(int start, int end, String pattern) {
 		try {
-			String text = getText(0, getLength());
-
-			int firstLineFeed = text.lastIndexOf('\n', start);
+			int firstLineStart = getLine(start).getStartOffset();
+			int lastLineFeed = getLine(end).getEndOffset() - 1;
 
-			int secondLineFeed = end;
-
-			if (end != getLength() && text.charAt(end) != 'n') {
-				secondLineFeed = text.indexOf('\n', end);
-
-				if (secondLineFeed == -1)
-					secondLineFeed = getLength() - 1;
-			}
-
-			int length = secondLineFeed - firstLineFeed - 1;
-			String toJoin = getText(++firstLineFeed, length);
+			int length = lastLineFeed - firstLineStart;
+			String toJoin = getText(firstLineStart, length);
 
 			if (toJoin.contains("\n")) {
 				toJoin = toJoin.replace("\n", pattern);
-				remove(firstLineFeed, length);
-				insertString(firstLineFeed, toJoin, null);
+				remove(firstLineStart, length);
+				insertString(firstLineStart, toJoin, null);
 			}
 		} catch (BadLocationException e) {
 			e.printStackTrace();
@@ -334,45 +770,25 @@ public class TextDocument extends PlainDocument {
 
 	public int[] moveLineDown(int index) {
 		try {
-			int caret = index;
-			int firstLineLength, firstLineAdjustment = 0;
-			String text = getText(0, getLength());
-
-			int secondLineFeed = text.indexOf('\n', caret);
-			if (secondLineFeed == -1) {
+			Element root = getDefaultRootElement();
+			int lineIndex = root.getElementIndex(index);
+			if (lineIndex == root.getElementCount() - 1) {
 				return new int[] { index, index };
 			}
-			int firstLineFeed = text.lastIndexOf('\n', secondLineFeed - 1);
-
-			if (firstLineFeed == -1)
-				firstLineFeed++;
-
-			int thirdLineFeed = text.length();
-
-			for (int i = secondLineFeed + 1; i < text.length(); i++) {
-				if (text.charAt(i) == '\n') {
-					thirdLineFeed = i;
-					break;
-				}
-			}
-
-			String secondLine = text.substring(secondLineFeed, thirdLineFeed);
-			remove(secondLineFeed, secondLine.length());
-			insertString(firstLineFeed, secondLine, null);
-
-			if (firstLineFeed == 0) {
-				firstLineAdjustment = 1;
-				remove(0, 1);
-				insertString(secondLine.length() - 1, "\n", null);
-			}
 
-			firstLineFeed++;
-			firstLineLength = secondLineFeed - firstLineFeed;
-			secondLineFeed = firstLineFeed + secondLine.length();
+			Element line = root.getElement(lineIndex);
+			Element nextLine = root.getElement(lineIndex + 1);
+			int lineStart = line.getStartOffset();
+			int lineLength = line.getEndOffset() - 1 - lineStart;
 
-			return new int[] { secondLineFeed - firstLineAdjustment,
-					secondLineFeed + firstLineLength };
+			// Moves the next line, with the line feed between both, above
+			String nextLineText = getText(nextLine.getStartOffset(), nextLine.getEndOffset() - 1
+					- nextLine.getStartOffset());
+			remove(line.getEndOffset() - 1, nextLineText.length() + 1);
+			insertString(lineStart, nextLineText + "\n", null);
 
+			int movedLineStart = lineStart + nextLineText.length() + 1;
+			return new int[] { movedLineStart, movedLineStart + lineLength };
 		} catch (BadLocationException e) {
 			e.printStackTrace();
 			return new int[] { index, index };
@@ -381,39 +797,22 @@ public class TextDocument extends PlainDocument {
 
 	public int[] moveLineUp(int index) {
 		try {
-			int caret = index;
-			String text = getText(0, getLength());
-
-			int secondLineFeed = text.lastIndexOf('\n', caret - 1);
-
-			if (secondLineFeed == -1)
+			Element root = getDefaultRootElement();
+			int lineIndex = root.getElementIndex(index);
+			if (lineIndex == 0) {
 				return new int[] { index, index };
-
-			int firstLineFeed = text.lastIndexOf('\n', secondLineFeed - 1);
-
-			if (firstLineFeed == -1)
-				firstLineFeed++;
-
-			int thirdLineFeed = text.length();
-
-			for (int i = caret; i < text.length(); i++) {
-				if (text.charAt(i) == '\n') {
-					thirdLineFeed = i;
-					break;
-				}
 			}
 
-			String secondLine = text.substring(secondLineFeed, thirdLineFeed);
-			remove(secondLineFeed, secondLine.length());
-			insertString(firstLineFeed, secondLine, null);
+			int previousLineStart = root.getElement(lineIndex - 1).getStartOffset();
+			Element line = root.getElement(lineIndex);
+			int lineStart = line.getStartOffset();
 
-			if (firstLineFeed == 0) {
-				firstLineFeed--;
-				remove(0, 1);
-				insertString(secondLine.length() - 1, "\n", null);
-			}
+			// Moves the line, with the line feed before it, above the previous
+			String lineText = getText(lineStart, line.getEndOffset() - 1 - lineStart);
+			remove(lineStart - 1, lineText.length() + 1);
+			insertString(previousLineStart, lineText + "\n", null);
 
-			return new int[] { firstLineFeed + 1, firstLineFeed + secondLine.length() };
+			return new int[] { previousLineStart, previousLineStart + lineText.length() };
 		} catch (BadLocationException e1) {
 			e1.printStackTrace();
 			return new int[] { index, index };
@@ -421,46 +820,35 @@ public class TextDocument extends PlainDocument {
 	}
 
 	public int[] selectLine(int index) {
-		try {
-			String text = getText(0, getLength());
-
-			int start = text.lastIndexOf('\n', index - 1) + 1;
-
-			int end = text.indexOf('\n', index);
-
-			if (end == -1)
-				end = getLength();
+		Element line = getLine(index);
 
-			return new int[] { start, end };
-		} catch (BadLocationException e) {
-			e.printStackTrace();
-			return new int[] { index, index };
-		}
+		return new int[] { line.getStartOffset(), line.getEndOffset() - 1 };
 	}
 
 	public int[] selectLineText(int index) {
 		try {
 			int[] lineLimits = selectLine(index);
-			System.out.println(lineLimits[0] + "\t" + lineLimits[1]);
-			String line = getText(lineLimits[0], lineLimits[1] - lineLimits[0]);
-			int start = index, end = index;
-			for (int i = 0; i < line.length(); i++) {
-				if (line.charAt(i) != ' ' && line.charAt(i) != '\t') {
+			Segment line = new Segment();
+			getText(lineLimits[0], lineLimits[1] - lineLimits[0], line);
+			int start = 0, end = -1;
+			for (int i = 0; i < line.count; i++) {
+				char c = line.array[line.offset + i];
+				if (c != ' ' && c != '\t') {
 					start = i;
 					break;
 				}
 			}
 
-			for (int i = line.length() - 1; i >= 0; i--) {
-				if (line.charAt(i) != ' ' && line.charAt(i) != '\t') {
+			for (int i = line.count - 1; i >= 0; i--) {
+				char c = line.array[line.offset + i];
+				if (c != ' ' && c != '\t') {
 					end = i;
 					break;
 				}
 			}
 
 			start = lineLimits[0] + start;
-			end = lineLimits[0] + end + 1;
-			System.out.println(start + "\t" + end);
+			end = Math.max(start, lineLimits[0] + end + 1);
 			return new int[] { start, end };
 		} catch (BadLocationException e) {
 			e.printStackTrace();
@@ -468,6 +856,30 @@ public class TextDocument extends PlainDocument {
 		}
 	}
 
+	/**
+	 * Sets the document's format, which is kept on its properties and used
+	 * when it's saved.
+	 * 
+	 * @param format
+	 *            the format to set
+	 */
+	public void setFormat(TextFormat format) {
+		putProperty(CHARSET_PROPERTY, format.getCharset());
+		putProperty(BYTE_ORDER_MARK_PROPERTY, format.hasByteOrderMark());
+		putProperty(LINE_SEPARATOR_PROPERTY, format.getLineSeparator());
+	}
+
+	/**
+	 * Sets the {@code loading} attribute. While it's set, changes to the
+	 * document neither unset the {@code saved} flag nor can be undone.
+	 * 
+	 * @param loading
+	 *            the flag to set
+	 */
+	public void setLoading(boolean loading) {
+		this.loading = loading;
+	}
+
 	/**
 	 * Sets the document name.
 	 * 
@@ -489,14 +901,41 @@ public class TextDocument extends PlainDocument {
 	}
 
 	/**
-	 * Sets the {@code saved} attribute.
+	 * Sets the {@code saved} attribute. The {@link #SAVED_PROPERTY} is only
+	 * fired when it changes, so editing a document already unsaved doesn't
+	 * notify anyone.
 	 * 
 	 * @param saved
 	 *            the flag to set
 	 */
 	public void setSaved(boolean saved) {
 		this.newDocument = false;
-		this.saved = saved;
+		if (this.saved != saved) {
+			this.saved = saved;
+			changeSupport.firePropertyChange(SAVED_PROPERTY, !saved, saved);
+		}
+	}
+
+	/**
+	 * Adds a listener notified when a bound property changes, like the
+	 * {@link #SAVED_PROPERTY}.
+	 * 
+	 * @param listener
+	 *            the listener to be added
+	 */
+	public void addPropertyChangeListener(PropertyChangeListener listener) {
+		changeSupport.addPropertyChangeListener(listener);
+	}
+
+	/**
+	 * Removes a listener added by
+	 * {@link #addPropertyChangeListener(PropertyChangeListener)}.
+	 * 
+	 * @param listener
+	 *            the listener to be removed
+	 */
+	public void removePropertyChangeListener(PropertyChangeListener listener) {
+		changeSupport.removePropertyChangeListener(listener);
 	}
 
 	/**
@@ -1,25 +1,86 @@
 package zephyr.text;
 
+import static zephyr.Zephyr.PREFERENCES;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
-import javax.swing.text.BadLocationException;
-
+import zephyr.file.ChunkListener;
 import zephyr.file.FileManager;
+import zephyr.file.FormatDetector;
+import zephyr.file.MappedText;
+import zephyr.file.ProgressListener;
+import zephyr.file.TextFormat;
 
 public class TextDocumentStreamer {
 
+	/**
+	 * The size, in bytes, from which files are worth being streamed.
+	 */
+	private static final long STREAMING_THRESHOLD = 1 << 20;
+
 	private FileManager fileManager = new FileManager();
 
 	public boolean delete(TextDocument doc) throws IOException {
 		return fileManager.delete(Paths.get(doc.getPath()));
 	}
 
+	/**
+	 * Indicates whether a file should be loaded progressively, through
+	 * {@link #stream(Path, ChunkListener)}, instead of being read at once.
+	 * That's the case for files that take a while to be read, but aren't
+	 * large enough to be mapped to memory.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the file
+	 * @return <code>true</code> if the file should be streamed
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public boolean isStreamed(Path file) throws IOException {
+		return Files.size(file) >= STREAMING_THRESHOLD
+				&& !MappedText.isLarge(file, PREFERENCES.largeFileThreshold());
+	}
+
+	/**
+	 * Reads a file in chunks, handing them to the given listener as they're
+	 * decoded. The caller is responsible for inserting them on a document,
+	 * usually one set as loading (see {@link TextDocument#setLoading(boolean)}
+	 * ), so the inserts don't unsave it, and for setting the format returned
+	 * on it. Reading can be cancelled by interrupting the current thread.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the file to be read
+	 * @param listener
+	 *            the listener receiving the chunks
+	 * @return the charset and line separator detected
+	 * @throws FileNotFoundException
+	 *             if the file does not exist, is a directory rather than a
+	 *             regular file, or for some other reason cannot be open for
+	 *             reading.
+	 * @throws IOException
+	 *             if an I/O error occurs, or if reading was interrupted
+	 */
+	public TextFormat stream(Path file, ChunkListener listener) throws FileNotFoundException,
+			IOException {
+		FormatDetector detector = new FormatDetector();
+		fileManager.readChunks(file, listener, detector);
+		return detector.getFormat();
+	}
+
 	/**
 	 * Reads a file and creates a {@link TextDocument} with it's content and
-	 * metadata.
+	 * metadata. The document is backed by a {@link PieceTableContent}, having
+	 * the file's content as its original buffer, which is the very array the
+	 * file was decoded into. Files larger than the
+	 * preferred threshold aren't read, but mapped to memory through a
+	 * {@link MappedText}. The file's charset and line separator are detected
+	 * as it's decoded and set as the document's format.
 	 * 
 	 * @param file
 	 *            the {@link Path} representing the to be read.
@@ -33,11 +94,55 @@ public class TextDocumentStreamer {
 	 *             if an I/O error occurs
 	 */
 	public TextDocument read(Path file) throws FileNotFoundException, IOException {
+		return read(file, null);
+	}
+
+	/**
+	 * Works like {@link #read(Path)}, reporting the progress to the given
+	 * listener. Reading can be cancelled by interrupting the current thread.
+	 * 
+	 * @param file
+	 *            the {@link Path} representing the to be read.
+	 * @param listener
+	 *            the listener to be notified of the progress, or
+	 *            <code>null</code>
+	 * @return A {@link TextDocument} with the content and metadata retrieved
+	 *         from the file.
+	 * @throws FileNotFoundException
+	 *             if the file does not exist, is a directory rather than a
+	 *             regular file, or for some other reason cannot be open for
+	 *             reading.
+	 * @throws IOException
+	 *             if an I/O error occurs, or if reading was interrupted
+	 */
+	public TextDocument read(Path file, ProgressListener listener) throws FileNotFoundException,
+			IOException {
 		String name = file.getFileName().toString();
 		String path = file.toString();
-		String content = fileManager.read(file);
 
-		return new TextDocument(name, path, content);
+		if (MappedText.isLarge(file, PREFERENCES.largeFileThreshold())) {
+			MappedText text = null;
+			try {
+				text = new MappedText(file, null, listener);
+			} catch (IOException e) {
+				if (e instanceof InterruptedIOException) {
+					throw e;
+				}
+				// The file's charset can't be mapped; reads the file instead
+			}
+			if (text != null) {
+				TextDocument doc = new TextDocument(name, path, new PieceTableContent(text));
+				doc.setFormat(text.getFormat());
+				return doc;
+			}
+		}
+
+		FormatDetector detector = new FormatDetector();
+		CharBuffer content = fileManager.readChars(file, listener, detector);
+
+		TextDocument doc = new TextDocument(name, path, new PieceTableContent(content));
+		doc.setFormat(detector.getFormat());
+		return doc;
 	}
 
 	/**
@@ -60,11 +165,11 @@ public class TextDocumentStreamer {
 	}
 
 	/**
-	 * Writes a file based on a {@link TextDocument}.
+	 * Writes a file based on a {@link TextDocument}. The document's content is
+	 * streamed to the file, so it's never copied whole, in the document's
+	 * format.
 	 * 
 	 * @param doc
-	 *            the document to be dumped
-	 * @param doc
 	 *            the {@link TextDocument} to be written
 	 * @throws FileNotFoundException
 	 *             if the given file object does not denote an existing,
@@ -73,16 +178,10 @@ public class TextDocumentStreamer {
 	 *             opening or creating the file
 	 * @throws IOException
 	 *             if an I/O error occurs
+	 * 
+	 * @see FileManager#write(javax.swing.text.Document, Path, TextFormat)
 	 */
 	public void write(TextDocument doc) throws FileNotFoundException, IOException {
-		// Defines which line separator should use
-		try {
-			String content = doc.getText(0, doc.getLength());
-
-			fileManager.write(content, Paths.get(doc.getPath()));
-		} catch (BadLocationException e) {
-			e.printStackTrace();
-			throw new IOException();
-		}
+		fileManager.write(doc, Paths.get(doc.getPath()), doc.getFormat());
 	}
 }
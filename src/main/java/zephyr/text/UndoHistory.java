@@ -0,0 +1,285 @@
+package zephyr.text;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * The undo history of a {@link TextDocument}. Characters typed, or deleted,
+ * one after the other are undone a word at a time, and the history is bounded
+ * by the memory its edits take instead of by their count: once they take more
+ * than the budget, the oldest ones are dropped.
+ * <p>
+ * The text inserted or removed by an edit isn't kept by it: it stays on the
+ * document's {@link PieceTableContent}, whose buffers never change, so an edit
+ * takes about the same memory whatever its length, besides the line elements
+ * it changed.
+ *
+ */
+public class UndoHistory extends UndoManager implements DocumentListener {
+
+	/**
+	 * Characters typed, or deleted, one after the other. It takes the
+	 * following ones until the caret moves, a line is broken or, for typed
+	 * characters, a word starts after a space.
+	 */
+	private static final class Word extends CompoundEdit {
+
+		private static final long serialVersionUID = 5221225111519356863L;
+
+		private final DocumentEvent.EventType type;
+
+		/**
+		 * The offset where the next character should be typed, or removed
+		 * with the delete key.
+		 */
+		private int offset;
+
+		/**
+		 * Whether the last character typed is a space.
+		 */
+		private boolean afterSpace;
+
+		private Word(DocumentEvent e, char typed) {
+			this.type = e.getType();
+			this.offset = e.getOffset() + (type == DocumentEvent.EventType.INSERT ? 1 : 0);
+			this.afterSpace = Character.isWhitespace(typed);
+			addEdit((UndoableEdit) e);
+		}
+
+		/**
+		 * Takes a character typed, or deleted, if it continues the word.
+		 */
+		private boolean take(DocumentEvent e, char typed) {
+			if (e.getType() != type) {
+				return false;
+			}
+			if (type == DocumentEvent.EventType.INSERT) {
+				if (e.getOffset() != offset || afterSpace && !Character.isWhitespace(typed)) {
+					return false;
+				}
+				offset++;
+				afterSpace = Character.isWhitespace(typed);
+			} else if (e.getOffset() == offset - 1) {
+				// Backspace
+				offset--;
+			} else if (e.getOffset() != offset) {
+				return false;
+			}
+			addEdit((UndoableEdit) e);
+			return true;
+		}
+	}
+
+	private static final long serialVersionUID = -4380946446580700006L;
+
+	/**
+	 * The estimated memory taken by an edit, in bytes.
+	 */
+	private static final int EDIT_SIZE = 200;
+
+	/**
+	 * The estimated memory taken by each line element an edit adds or removes,
+	 * with its positions, in bytes.
+	 */
+	private static final int ELEMENT_SIZE = 100;
+
+	private final TextDocument doc;
+
+	private final long budget;
+
+	private final Map<UndoableEdit, Long> sizes = new IdentityHashMap<UndoableEdit, Long>();
+
+	/**
+	 * The estimated memory taken by the edits kept.
+	 */
+	private long size;
+
+	/**
+	 * The estimated memory taken by the changes made since the last edit was
+	 * handed to the history.
+	 */
+	private long changed;
+
+	/**
+	 * The word being typed, if the last edit is one.
+	 */
+	private Word word;
+
+	/**
+	 * Creates the history of a document, taking up to the given memory. It
+	 * must be added to the document both as an {@link UndoableEditListener}
+	 * and a {@link DocumentListener}, which measures the edits.
+	 *
+	 * @param doc
+	 *            the document
+	 * @param budget
+	 *            the memory the edits can take, in bytes
+	 */
+	public UndoHistory(TextDocument doc, long budget) {
+		this.doc = doc;
+		this.budget = budget;
+		setLimit(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the estimated memory taken by the edits kept, in bytes.
+	 *
+	 * @return the size of the history
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e) {
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e) {
+		measure(e);
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e) {
+		measure(e);
+	}
+
+	/**
+	 * Adds the memory taken by a change to the edit about to be handed to the
+	 * history. The line elements changed are only found on the document's
+	 * own events, not on the edits wrapping them.
+	 */
+	private synchronized void measure(DocumentEvent e) {
+		if (doc.isLoading()) {
+			return;
+		}
+		changed += EDIT_SIZE;
+		DocumentEvent.ElementChange change = e.getChange(doc.getDefaultRootElement());
+		if (change != null) {
+			changed += (long) ELEMENT_SIZE
+					* (change.getChildrenAdded().length + change.getChildrenRemoved().length);
+		}
+	}
+
+	/**
+	 * The character typed by an edit, or removed, in which case it's unknown;
+	 * <code>0</code> if the edit isn't a single character typed or removed.
+	 */
+	private char typed(UndoableEdit edit) {
+		if (!(edit instanceof DocumentEvent)) {
+			return 0;
+		}
+		DocumentEvent e = (DocumentEvent) edit;
+		if (e.getLength() != 1) {
+			return 0;
+		}
+		if (e.getType() == DocumentEvent.EventType.REMOVE) {
+			return ' ';
+		}
+		if (e.getType() != DocumentEvent.EventType.INSERT) {
+			return 0;
+		}
+		try {
+			char c = doc.getText(e.getOffset(), 1).charAt(0);
+			return c == '\n' ? 0 : c;
+		} catch (BadLocationException ex) {
+			return 0;
+		}
+	}
+
+	@Override
+	public synchronized void undoableEditHappened(UndoableEditEvent e) {
+		UndoableEdit edit = e.getEdit();
+		long editSize = Math.max(changed, EDIT_SIZE);
+		changed = 0;
+		char typed = typed(edit);
+
+		if (word != null && typed != 0 && word.take((DocumentEvent) edit, typed)) {
+			sizes.put(word, sizes.get(word) + editSize);
+			size += editSize;
+		} else {
+			endWord();
+			if (typed != 0) {
+				word = new Word((DocumentEvent) edit, typed);
+				edit = word;
+			}
+			addEdit(edit);
+			sizes.put(edit, editSize);
+			size += editSize;
+		}
+
+		while (size > budget && edits.size() > 1) {
+			trimEdits(0, 0);
+		}
+	}
+
+	@Override
+	public synchronized boolean canUndo() {
+		endWord();
+		return super.canUndo();
+	}
+
+	@Override
+	public synchronized boolean canRedo() {
+		endWord();
+		return super.canRedo();
+	}
+
+	@Override
+	public synchronized void undo() {
+		endWord();
+		try {
+			super.undo();
+		} finally {
+			changed = 0;
+		}
+	}
+
+	@Override
+	public synchronized void redo() {
+		endWord();
+		try {
+			super.redo();
+		} finally {
+			changed = 0;
+		}
+	}
+
+	@Override
+	public synchronized void discardAllEdits() {
+		endWord();
+		super.discardAllEdits();
+		sizes.clear();
+		size = 0;
+	}
+
+	@Override
+	protected void trimEdits(int from, int to) {
+		for (int i = from; i <= to; i++) {
+			Long editSize = sizes.remove(edits.get(i));
+			if (editSize != null) {
+				size -= editSize;
+			}
+		}
+		super.trimEdits(from, to);
+	}
+
+	/**
+	 * Ends the word being typed, so it can be undone.
+	 */
+	private void endWord() {
+		if (word != null) {
+			word.end();
+			word = null;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package zephyr.text.exceptions;
+
+import zephyr.text.SearchPattern;
+
+/**
+ * Thrown when a {@link SearchPattern} stops searching a document because the
+ * searching thread was interrupted or the search ran out of time.
+ * <p>
+ * It's unchecked because it's thrown from inside
+ * {@link java.util.regex.Matcher}, through the {@link CharSequence} being
+ * matched.
+ * 
+ */
+public class SearchInterruptedException extends RuntimeException {
+
+	/**
+	 * Serial version ID.
+	 */
+	private static final long serialVersionUID = 3417502541962083147L;
+
+	public SearchInterruptedException() {
+		super();
+	}
+
+	public SearchInterruptedException(String message) {
+		super(message);
+	}
+}
@@ -5,7 +5,6 @@ import static zephyr.Zephyr.STRINGS;
 import static zephyr.Zephyr.getPreferencesManager;
 import static zephyr.Zephyr.getUI;
 
-import java.awt.Component;
 import java.awt.Desktop;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
@@ -16,35 +15,64 @@ import java.awt.event.MouseListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.UnmappableCharacterException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.AbstractAction;
 import javax.swing.ButtonGroup;
 import javax.swing.ButtonModel;
+import javax.swing.JButton;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Caret;
+import javax.swing.text.DefaultCaret;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
-import javax.swing.undo.UndoManager;
 
+import net.miginfocom.swing.MigLayout;
 import zephyr.Zephyr;
+import zephyr.file.ChunkListener;
 import zephyr.file.FileManager;
+import zephyr.file.ProgressListener;
+import zephyr.file.TextFormat;
 import zephyr.preferences.Preferences;
 import zephyr.preferences.PreferencesManager;
+import zephyr.text.RecoveryJournal;
+import zephyr.text.SaveListener;
+import zephyr.text.SaveService;
 import zephyr.text.TextDocument;
 import zephyr.text.TextDocumentStreamer;
 import zephyr.ui.components.FileChooser;
@@ -53,6 +81,7 @@ import zephyr.ui.components.TextArea;
 import zephyr.ui.components.TextAreaTabbedPane;
 import zephyr.ui.dialogs.AboutDialog;
 import zephyr.ui.dialogs.FindDialog;
+import zephyr.ui.dialogs.FindInFilesDialog;
 import zephyr.ui.dialogs.PreferencesDialog;
 
 /**
@@ -103,8 +132,7 @@ public class MainFrame extends JFrame {
 				@Override
 				public void actionPerformed(ActionEvent e) {
 					try {
-						((UndoManager) tabs.getSelectedComponent().getTextDocument()
-								.getUndoableEditListeners()[0]).undo();
+						tabs.getSelectedComponent().getTextDocument().getUndoHistory().undo();
 					} catch (CannotUndoException ex) {
 						ex.printStackTrace();
 					}
@@ -113,22 +141,33 @@ public class MainFrame extends JFrame {
 			undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, KeyEvent.CTRL_DOWN_MASK));
 			edit.add(undo);
 
-			JMenuItem redo = new JMenuItem(STRINGS.getString("redo"));
+			final JMenuItem redo = new JMenuItem(STRINGS.getString("redo"));
 			redo.addActionListener(new ActionListener() {
 
 				@Override
 				public void actionPerformed(ActionEvent e) {
 					try {
-						((UndoManager) tabs.getSelectedComponent().getTextDocument()
-								.getUndoableEditListeners()[0]).redo();
+						tabs.getSelectedComponent().getTextDocument().getUndoHistory().redo();
 					} catch (CannotRedoException ex) {
 						ex.printStackTrace();
 					}
 				}
 			});
-			redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, KeyEvent.CTRL_DOWN_MASK
-					+ KeyEvent.SHIFT_DOWN_MASK));
+			redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, KeyEvent.CTRL_DOWN_MASK));
 			edit.add(redo);
+			// Ctrl+Shift+Z still redoes
+			getInputMap(WHEN_IN_FOCUSED_WINDOW).put(
+					KeyStroke.getKeyStroke(KeyEvent.VK_Z, KeyEvent.CTRL_DOWN_MASK
+							+ KeyEvent.SHIFT_DOWN_MASK), "redo");
+			getActionMap().put("redo", new AbstractAction() {
+
+				private static final long serialVersionUID = 2942360409626137787L;
+
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					redo.doClick(0);
+				}
+			});
 
 			edit.addSeparator();
 
@@ -143,6 +182,18 @@ public class MainFrame extends JFrame {
 			find.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, KeyEvent.CTRL_DOWN_MASK));
 			edit.add(find);
 
+			JMenuItem findInFiles = new JMenuItem(STRINGS.getString("find-in-files") + "...");
+			findInFiles.addActionListener(new ActionListener() {
+
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					findInFiles();
+				}
+			});
+			findInFiles.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F,
+					KeyEvent.CTRL_DOWN_MASK + KeyEvent.SHIFT_DOWN_MASK));
+			edit.add(findInFiles);
+
 			edit.addSeparator();
 
 			JMenu lineSeparator = new JMenu(STRINGS.getString("line-separator"));
@@ -629,26 +680,338 @@ public class MainFrame extends JFrame {
 		}
 	}
 
+	/**
+	 * Reads a file on a background thread, while a read-only placeholder tab
+	 * shows the progress. When the file is read, the placeholder is replaced
+	 * by the document, on the Event Dispatch Thread.
+	 * <p>
+	 * Files that are streamed are inserted straight on the placeholder's
+	 * document, while it's loading, as their chunks are decoded. The chunks
+	 * are accumulated and inserted together whenever the Event Dispatch Thread
+	 * gets to them, so a slow EDT means fewer, larger inserts.
+	 */
+	private class OpenWorker extends SwingWorker<TextDocument, Void> {
+
+		private final String path;
+
+		private final boolean popupErrorMessages;
+
+		private final TextDocument placeholder;
+
+		private final GenericScrollPane<TextArea> scroll;
+
+		/**
+		 * The chunks streamed but not inserted yet.
+		 */
+		private final StringBuilder pending = new StringBuilder();
+
+		private boolean flushScheduled;
+
+		/**
+		 * The format of the file streamed, set once it's read.
+		 */
+		private TextFormat streamedFormat;
+
+		/**
+		 * The range selected once the file is loaded, or -1 for none.
+		 */
+		private int selectionStart = -1;
+
+		private int selectionEnd;
+
+		private final Runnable flush = new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+
+		private OpenWorker(String path, boolean popupErrorMessages, TextDocument placeholder,
+				GenericScrollPane<TextArea> scroll) {
+			this.path = path;
+			this.popupErrorMessages = popupErrorMessages;
+			this.placeholder = placeholder;
+			this.scroll = scroll;
+
+			placeholder.setLoading(true);
+			// Keeps the caret, and the view, on the top while the text is appended
+			Caret caret = scroll.getComponent().getCaret();
+			if (caret instanceof DefaultCaret) {
+				((DefaultCaret) caret).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+			}
+
+			final JProgressBar progressBar = new JProgressBar(0, 100);
+			addPropertyChangeListener(new PropertyChangeListener() {
+
+				@Override
+				public void propertyChange(PropertyChangeEvent evt) {
+					if ("progress".equals(evt.getPropertyName())) {
+						progressBar.setValue((Integer) evt.getNewValue());
+					}
+				}
+			});
+
+			JButton cancelButton = new JButton(STRINGS.getString("cancel"));
+			cancelButton.addActionListener(new ActionListener() {
+
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					cancel(true);
+				}
+			});
+
+			JPanel progressPanel = new JPanel(new MigLayout("insets 2", "[][grow, fill][]"));
+			progressPanel.add(new JLabel(STRINGS.getString("loading") + " " + placeholder.getName()));
+			progressPanel.add(progressBar);
+			progressPanel.add(cancelButton);
+			scroll.setColumnHeaderView(progressPanel);
+		}
+
+		@Override
+		protected TextDocument doInBackground() throws Exception {
+			Path file = Paths.get(path);
+			if (textDocumentStreamer.isStreamed(file)) {
+				streamedFormat = textDocumentStreamer.stream(file, new ChunkListener() {
+
+					@Override
+					public void chunkRead(String chunk, long done, long total) {
+						synchronized (pending) {
+							pending.append(chunk);
+							if (!flushScheduled) {
+								flushScheduled = true;
+								SwingUtilities.invokeLater(flush);
+							}
+						}
+						setProgress(total == 0 ? 100 : (int) (done * 100 / total));
+					}
+				});
+				return placeholder;
+			}
+
+			return textDocumentStreamer.read(file, new ProgressListener() {
+
+				@Override
+				public void progressChanged(long done, long total) {
+					setProgress(total == 0 ? 100 : (int) (done * 100 / total));
+				}
+			});
+		}
+
+		@Override
+		protected void done() {
+			// The tab was closed while loading
+			if (!loading.containsKey(placeholder)) {
+				return;
+			}
+			if (!isCancelled()) {
+				flush();
+			}
+			loading.remove(placeholder);
+
+			int index = tabs.indexOfComponent(scroll);
+			if (isCancelled()) {
+				removeTab(index);
+				return;
+			}
+
+			try {
+				TextDocument doc = get();
+				if (doc == placeholder) {
+					// Streamed, the content is already there
+					TextArea textArea = scroll.getComponent();
+					placeholder.setLoading(false);
+					placeholder.setFormat(streamedFormat);
+					textArea.setEditable(true);
+					Caret caret = textArea.getCaret();
+					if (caret instanceof DefaultCaret) {
+						((DefaultCaret) caret).setUpdatePolicy(DefaultCaret.UPDATE_WHEN_ON_EDT);
+					}
+					scroll.setColumnHeaderView(null);
+				} else {
+					tabs.setDocumentAt(index, doc);
+				}
+				recoveryJournal.track(doc);
+				if (index == tabs.getSelectedIndex()) {
+					updateTitle();
+				}
+				if (selectionStart != -1) {
+					MainFrame.this.select(tabs.getDocumentAt(index), selectionStart, selectionEnd);
+				}
+				addRecentDocumentsPath(doc.getPath());
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				removeTab(index);
+				if (popupErrorMessages) {
+					// Files are looked at through both java.io and java.nio
+					boolean missing = e.getCause() instanceof FileNotFoundException
+							|| e.getCause() instanceof NoSuchFileException;
+					String message = missing ? "cant-find" : "not-able-to-open";
+					Zephyr.getUI().showErrorMessage(MainFrame.this,
+							STRINGS.getString(message) + " " + path);
+				}
+				e.getCause().printStackTrace();
+			}
+		}
+
+		/**
+		 * Selects a range of the text once the file is loaded.
+		 */
+		private void select(int start, int end) {
+			selectionStart = start;
+			selectionEnd = end;
+		}
+
+		/**
+		 * Appends the pending chunks to the placeholder's document, on the
+		 * Event Dispatch Thread.
+		 */
+		private void flush() {
+			String text;
+			synchronized (pending) {
+				text = pending.toString();
+				pending.setLength(0);
+				flushScheduled = false;
+			}
+
+			if (text.isEmpty() || !loading.containsKey(placeholder)) {
+				return;
+			}
+
+			try {
+				placeholder.insertString(placeholder.getLength(), text, null);
+			} catch (BadLocationException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Serial version ID.
 	 */
 	private static final long serialVersionUID = 3220666579206122227L;
 
+	/**
+	 * The maximum number of files read at the same time.
+	 */
+	private static final int OPEN_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
 	/**
 	 * The text area's tabs pane.
 	 */
 	private final TextAreaTabbedPane tabs = new TextAreaTabbedPane();
 
+	/**
+	 * Writes the documents saved in background.
+	 */
+	private final SaveService saveService = new SaveService();
+
+	/**
+	 * Marks the documents as saved, or reports the errors, once they're
+	 * written.
+	 */
+	private final SaveListener saveListener = new SaveListener() {
+
+		@Override
+		public void saveSucceeded(TextDocument doc, int modificationCount) {
+			doc.setSavedOnDisk(true);
+			int index = tabs.indexOfDocument(doc);
+			if (index != -1) {
+				tabs.documentWritten(doc);
+			}
+			if (doc.getModificationCount() != modificationCount) {
+				// Edited while it was written
+				recoveryJournal.saved(doc, false);
+				return;
+			}
+			doc.setSaved(true);
+			if (index != -1) {
+				recoveryJournal.saved(doc, true);
+			} else {
+				// Closed while it was written
+				recoveryJournal.untrack(doc);
+			}
+		}
+
+		@Override
+		public void saveFailed(TextDocument doc, IOException e) {
+			if (tabs.indexOfDocument(doc) == -1) {
+				// Closed while it was written: opens it again, so its changes
+				// aren't lost, and keeps journaling it
+				tabs.addTab(doc);
+				if (tabs.getSelectedComponent().getTextDocument().isNewDocument()) {
+					removeTab(tabs.getSelectedIndex());
+				}
+				tabs.setSelectedIndex(tabs.getComponentCount() - 1);
+				recoveryJournal.track(doc);
+			}
+			if (e instanceof UnmappableCharacterException) {
+				if (switchToUtf8(doc)) {
+					saveService.save(doc, saveListener);
+				}
+				return;
+			}
+			String path = doc.getPath() != null ? doc.getPath() : doc.getName();
+			Zephyr.getUI().showErrorMessage(MainFrame.this,
+					STRINGS.getString("occurred-an-error-saving") + " " + path);
+			e.printStackTrace();
+		}
+	};
+
+	/**
+	 * Journals the changes of the documents not saved yet, so they're
+	 * recovered if Zephyr crashes.
+	 */
+	private final RecoveryJournal recoveryJournal = new RecoveryJournal(Zephyr.RECOVERY_DIR);
+
 	/**
 	 * A simple file manager to handle streams and low level file treatment.
 	 */
 	private final TextDocumentStreamer textDocumentStreamer = new TextDocumentStreamer();
 
+	/**
+	 * Runs the {@link OpenWorker}s, so several files are read in parallel.
+	 */
+	private final ExecutorService openExecutor = Executors.newFixedThreadPool(OPEN_THREADS,
+			new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Zephyr file reader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * The documents being loaded, placeholders of the tabs still waiting for
+	 * their files to be read.
+	 */
+	private final Map<TextDocument, OpenWorker> loading = new HashMap<TextDocument, OpenWorker>();
+
+	/**
+	 * The placeholders of the tabs restored from the previous session whose
+	 * files weren't read yet, since they weren't selected.
+	 */
+	private final Set<TextDocument> unread = new HashSet<TextDocument>();
+
+	/**
+	 * Set while several tabs are closed, so the tabs selected meanwhile aren't
+	 * read.
+	 */
+	private boolean closingTabs;
+
 	/**
 	 * The dialog for showing find options.
 	 */
 	private FindDialog findDialog = null;
 
+	/**
+	 * The dialog for searching the files of a directory.
+	 */
+	private FindInFilesDialog findInFilesDialog = null;
+
 	private ArrayDeque<String> recentDocumentsPaths = new ArrayDeque<String>(10);
 
 	private JMenu recentDocumentsMenu;
@@ -659,6 +1022,7 @@ public class MainFrame extends JFrame {
 	public MainFrame() {
 		loadRecentDocuments();
 		initComponents();
+		recoverDocuments();
 		loadPreviousSession();
 		updateTitle();
 	}
@@ -704,26 +1068,40 @@ public class MainFrame extends JFrame {
 	 * @return <code>true</code> if the document was successfully closed
 	 */
 	private boolean close() {
-		TextArea textArea = tabs.getSelectedComponent();
-		if (!textArea.getTextDocument().isSaved()) {
-			String path = textArea.getTextDocument().getPath() != null ? textArea.getTextDocument()
-					.getPath() : textArea.getTextDocument().getName();
+		return close(tabs.getSelectedIndex());
+	}
+
+	/**
+	 * Closes the document at the given tab, like {@link #close()}. The tab is
+	 * only selected if the user must be prompted, so closing deferred tabs
+	 * doesn't read their files.
+	 * 
+	 * @param index
+	 *            the index of the tab
+	 * @return <code>true</code> if the document was successfully closed
+	 */
+	private boolean close(int index) {
+		TextDocument doc = tabs.getTextDocumentAt(index);
+		if (!doc.isSaved() && !saveService.isSaving(doc)) {
+			tabs.setSelectedIndex(index);
+			String path = doc.getPath() != null ? doc.getPath() : doc.getName();
 			int opcao = JOptionPane.showConfirmDialog(this, STRINGS.getString("save-changes") + " "
 					+ path + "?", STRINGS.getString("close"), JOptionPane.YES_NO_CANCEL_OPTION,
 					JOptionPane.QUESTION_MESSAGE);
 			if (opcao == JOptionPane.YES_OPTION) {
-				save(true);
+				save(index, true);
 			} else if (opcao == JOptionPane.CANCEL_OPTION) {
 				return false;
 			}
 		}
 
-		if (tabs.getComponents().length == 1) {
-			newDocument();
-			tabs.remove(0);
-		} else {
-			tabs.remove(tabs.getSelectedIndex());
+		OpenWorker worker = loading.remove(doc);
+		if (worker != null) {
+			worker.cancel(true);
 		}
+		unread.remove(doc);
+
+		removeTab(index);
 		return true;
 	}
 
@@ -734,39 +1112,37 @@ public class MainFrame extends JFrame {
 	 * @return <code>true</code> if all documents were successfully closed
 	 */
 	private boolean closeAll() {
-		for (int i = tabs.getComponentCount() - 1; i >= 0; i--) {
-			tabs.setSelectedIndex(i);
-			if (!close()) {
-				return false;
-			}
-		}
-		return true;
+		return closeFrom(0, -1);
 	}
 
 	private boolean closeAllOthers() {
-		int current = tabs.getSelectedIndex();
-		for (int i = tabs.getComponentCount() - 1; i >= 0; i--) {
-			tabs.setSelectedIndex(i);
-			if (tabs.getSelectedIndex() != current) {
-				if (!close()) {
-					return false;
-				}
-			}
-		}
-		return true;
+		return closeFrom(0, tabs.getSelectedIndex());
 	}
 
 	private boolean closeAllToTheRight() {
-		int current = tabs.getSelectedIndex();
-		for (int i = tabs.getComponentCount() - 1; i > current; i--) {
-			tabs.setSelectedIndex(i);
-			if (tabs.getSelectedIndex() != current) {
-				if (!close()) {
+		return closeFrom(tabs.getSelectedIndex() + 1, -1);
+	}
+
+	/**
+	 * Closes the tabs from <code>start</code> to the last one, from the last
+	 * one, except the tab at <code>kept</code>. The deferred tabs selected as
+	 * the others are closed aren't read meanwhile.
+	 * 
+	 * @return <code>true</code> if the tabs were successfully closed
+	 */
+	private boolean closeFrom(int start, int kept) {
+		closingTabs = true;
+		try {
+			for (int i = tabs.getComponentCount() - 1; i >= start; i--) {
+				if (i != kept && !close(i)) {
 					return false;
 				}
 			}
+			return true;
+		} finally {
+			closingTabs = false;
+			readSelected();
 		}
-		return true;
 	}
 
 	private void delete() {
@@ -808,15 +1184,13 @@ public class MainFrame extends JFrame {
 		// Current session
 		if (PREFERENCES.rememberCurrentSession()) {
 			List<String> paths = new ArrayList<String>();
-			for (int i = tabs.getComponentCount() - 1; i >= 0; i--) {
-				tabs.setSelectedIndex(i);
-				if (tabs.getSelectedComponent().getTextDocument().getPath() != null) {
-					paths.add(tabs.getSelectedComponent().getTextDocument().getPath());
+			for (int i = 0; i < tabs.getComponentCount(); i++) {
+				String path = tabs.getTextDocumentAt(i).getPath();
+				if (path != null) {
+					paths.add(path);
 				}
 			}
 
-			Collections.reverse(paths);
-
 			Zephyr.SESSION.clearOpen();
 			Zephyr.SESSION.addOpen(paths.toArray(new String[paths.size()]));
 		}
@@ -832,13 +1206,19 @@ public class MainFrame extends JFrame {
 			PREFERENCES.location(getLocationOnScreen());
 			PREFERENCES.dimension(getSize());
 
+			if (!saveService.awaitSaves().isEmpty()) {
+				// The documents that couldn't be written are open again once
+				// the errors are reported, and their journals are kept
+				return;
+			}
+			recoveryJournal.close();
 			Zephyr.shutdown();
 		}
 	}
 
 	private void find() {
 		if (findDialog == null) {
-			findDialog = new FindDialog(this, tabs.getSelectedComponent());
+			findDialog = new FindDialog(this, tabs);
 			findDialog.addWindowListener(new WindowListener() {
 
 				@Override
@@ -880,6 +1260,21 @@ public class MainFrame extends JFrame {
 		}
 	}
 
+	/**
+	 * Shows the dialog for searching the files of a directory. The dialog is
+	 * kept, with its options, after it's closed.
+	 */
+	private void findInFiles() {
+		if (findInFilesDialog == null) {
+			findInFilesDialog = new FindInFilesDialog(this);
+		}
+		String path = tabs.getSelectedComponent().getTextDocument().getPath();
+		if (path != null) {
+			findInFilesDialog.setDirectoryIfEmpty(Paths.get(path).getParent());
+		}
+		findInFilesDialog.setVisible(true);
+	}
+
 	private MenuBar getCastedMenuBar() {
 		return (MenuBar) getJMenuBar();
 	}
@@ -981,33 +1376,71 @@ public class MainFrame extends JFrame {
 
 	/**
 	 * This methods checks if a document is already open in the application,
-	 * based on file's path.
+	 * based on file's path. Paths referring to the same file, like a relative
+	 * one and the absolute one, match.
 	 * 
 	 * @param path
 	 *            The file path to be checked
 	 * @return the index of the text area on the <code>tabs</code> or -1, case
 	 *         not open
 	 */
-	@SuppressWarnings("unchecked")
 	private int isOpen(String path) {
-		Component[] components = tabs.getComponents();
-
-		for (int i = 0; i < components.length; i++) {
-			String path1 = ((GenericScrollPane<TextArea>) components[i]).getComponent()
-					.getTextDocument().getPath();
-			if (path.equals(path1)) {
-				return i;
-			}
-		}
-		return -1;
+		return tabs.indexOfPath(path);
 	}
 
 	/**
 	 * Open the documents from previous sessions, based on the "session" file.
+	 * Their tabs are deferred: only the file of the tab selected is read, and
+	 * the others are read the first time they're selected.
 	 */
 	private void loadPreviousSession() {
 		for (String path : Zephyr.SESSION.getOpen()) {
-			open(path, false);
+			if (isOpen(path) != -1) {
+				continue;
+			}
+			Path file = Paths.get(path);
+			TextDocument placeholder = new TextDocument(file.getFileName().toString(),
+					file.toString(), "");
+			placeholder.setLoading(true);
+			unread.add(placeholder);
+			tabs.addDeferredTab(placeholder);
+		}
+
+		int selected = tabs.getSelectedIndex();
+		tabs.setSelectedIndex(tabs.getComponentCount() - 1);
+		if (selected != tabs.getSelectedIndex() && tabs.getTextDocumentAt(selected).isNewDocument()) {
+			removeTab(selected);
+		}
+	}
+
+	/**
+	 * Starts reading the file of the selected tab, if it's a deferred tab
+	 * restored from the previous session not read yet.
+	 */
+	private void readSelected() {
+		if (closingTabs || tabs.getSelectedIndex() == -1) {
+			return;
+		}
+		TextDocument doc = tabs.getSelectedComponent().getTextDocument();
+		if (unread.remove(doc)) {
+			read(tabs.getSelectedIndex(), doc.getPath(), false);
+		}
+	}
+
+	/**
+	 * Opens the documents recovered from the journals left by a previous run,
+	 * which didn't exit properly. They're opened before the session, so the
+	 * recovered content is kept if they're part of it.
+	 */
+	private void recoverDocuments() {
+		for (TextDocument doc : recoveryJournal.recover()) {
+			tabs.addTab(doc);
+			if (tabs.getSelectedComponent().getTextDocument().isNewDocument()) {
+				removeTab(tabs.getSelectedIndex());
+			}
+			int index = tabs.getComponentCount() - 1;
+			tabs.setSelectedIndex(index);
+			recoveryJournal.track(doc);
 		}
 	}
 
@@ -1021,7 +1454,7 @@ public class MainFrame extends JFrame {
 	 * Creates a new tab with a blank {@link TextArea}.
 	 */
 	private void newDocument() {
-		tabs.addTab();
+		recoveryJournal.track(tabs.addTab().getTextDocument());
 		tabs.setSelectedIndex(tabs.getComponentCount() - 1);
 	}
 
@@ -1059,6 +1492,9 @@ public class MainFrame extends JFrame {
 	 * by passing an argument, the path of the file to be open, instead of
 	 * showing the {@code fileChooser}. This method doesn't show any kind of
 	 * dialog, even in case of an error.
+	 * <p>
+	 * The file is read on a background thread, while a placeholder tab shows
+	 * the progress and allows the user to cancel it.
 	 * 
 	 * @param path
 	 *            The path of the file to be open
@@ -1075,27 +1511,79 @@ public class MainFrame extends JFrame {
 			return;
 		}
 
-		try {
-			TextDocument doc = textDocumentStreamer.read(path);
-			path = doc.getPath();
-			tabs.addTab(doc);
-			if (tabs.getSelectedComponent().getTextDocument().isNewDocument()) {
-				tabs.remove(tabs.getSelectedIndex());
-			}
-			tabs.setSelectedIndex(tabs.getComponentCount() - 1);
-			updateTitle();
-			addRecentDocumentsPath(path);
-		} catch (FileNotFoundException e) {
-			if (popupErrorMessages) {
-				Zephyr.getUI().showErrorMessage(this, STRINGS.getString("cant-find") + " " + path);
-			}
-			e.printStackTrace();
-		} catch (IOException e) {
-			if (popupErrorMessages) {
-				Zephyr.getUI().showErrorMessage(this,
-						STRINGS.getString("not-able-to-open") + " " + path);
-			}
-			e.printStackTrace();
+		Path file = Paths.get(path);
+		TextDocument placeholder = new TextDocument(file.getFileName().toString(), file.toString(),
+				"");
+		tabs.addTab(placeholder);
+		if (tabs.getSelectedComponent().getTextDocument().isNewDocument()) {
+			removeTab(tabs.getSelectedIndex());
+		}
+		index = tabs.getComponentCount() - 1;
+		tabs.setSelectedIndex(index);
+		updateTitle();
+
+		read(index, path, popupErrorMessages);
+	}
+
+	/**
+	 * Reads a file on an {@link OpenWorker}, showing it on the tab at
+	 * <code>index</code>, whose document is the placeholder.
+	 */
+	private void read(int index, String path, boolean popupErrorMessages) {
+		TextArea textArea = tabs.getDocumentAt(index);
+		textArea.setEditable(false);
+		@SuppressWarnings("unchecked")
+		GenericScrollPane<TextArea> scroll = (GenericScrollPane<TextArea>) tabs.getComponentAt(index);
+		OpenWorker worker = new OpenWorker(path, popupErrorMessages, textArea.getTextDocument(),
+				scroll);
+		loading.put(textArea.getTextDocument(), worker);
+		openExecutor.execute(worker);
+	}
+
+	/**
+	 * Opens a file, or selects its tab if it's already open, and selects a
+	 * range of its text, like a match found on it. If the file is still being
+	 * read, the range is selected once it's loaded.
+	 * 
+	 * @param file
+	 *            the file to be open
+	 * @param start
+	 *            the start of the range
+	 * @param end
+	 *            the end of the range
+	 */
+	public void open(Path file, int start, int end) {
+		String path = file.toString();
+		open(path, true);
+
+		int index = isOpen(path);
+		if (index == -1) {
+			return;
+		}
+		TextArea textArea = tabs.getDocumentAt(index);
+		OpenWorker worker = loading.get(textArea.getTextDocument());
+		if (worker != null) {
+			worker.select(start, end);
+		} else {
+			select(textArea, start, end);
+		}
+	}
+
+	/**
+	 * Removes the tab at <code>index</code>, creating a blank document if it's
+	 * the last one. The document's journal is deleted, unless it's being saved,
+	 * in which case it's deleted once it's written.
+	 */
+	private void removeTab(int index) {
+		TextDocument doc = tabs.getTextDocumentAt(index);
+		if (!saveService.isSaving(doc)) {
+			recoveryJournal.untrack(doc);
+		}
+		if (tabs.getComponentCount() == 1) {
+			newDocument();
+			tabs.remove(0);
+		} else {
+			tabs.remove(index);
 		}
 	}
 
@@ -1117,43 +1605,56 @@ public class MainFrame extends JFrame {
 	 * @return <code>true</code> in case of the document was successfully saved
 	 */
 	private boolean save(boolean saveAs) {
-		TextArea textArea = tabs.getSelectedComponent();
-		TextDocument doc = textArea.getTextDocument();
+		return save(tabs.getSelectedIndex(), saveAs);
+	}
+
+	/**
+	 * Saves the document at the given tab, like {@link #save(boolean)}. The
+	 * document is written in background by the {@link SaveService}; its tab
+	 * is only selected if the user must choose where to save it.
+	 * 
+	 * @param index
+	 *            the index of the tab
+	 * @param saveAs
+	 *            indicates whether the user should be prompted to with a
+	 *            "save as" dialog in case the document is not saved on disk
+	 * @return <code>true</code> in case of the document was saved or queued to
+	 *         be saved
+	 */
+	private boolean save(int index, boolean saveAs) {
+		TextDocument doc = tabs.getTextDocumentAt(index);
+		if (loading.containsKey(doc)) {
+			// Nothing to be saved until the file is read
+			return true;
+		}
 		if (!doc.isSavedOnDisk()) {
 			if (!saveAs) {
 				return false;
 			}
+			tabs.setSelectedIndex(index);
 			return saveAs();
-		} else {
-			try {
-				textDocumentStreamer.write(doc);
-				doc.setSaved(true);
-				doc.setSavedOnDisk(true);
-				tabs.setTitleStarAt(tabs.getSelectedIndex(), false);
-				return true;
-			} catch (IOException e) {
-				String path = doc.getPath() != null ? doc.getPath() : doc.getName();
-				Zephyr.getUI().showErrorMessage(this,
-						STRINGS.getString("occurred-an-error-saving") + " " + path);
-				e.printStackTrace();
-			}
 		}
-		return false;
+
+		saveService.save(doc, saveListener);
+		return true;
 	}
 
 	/**
-	 * This method class save methods to all open documents. If
-	 * {@link ActionListener} save method returns false, saveAll returns too.
+	 * This method class save methods to all open documents that aren't saved.
+	 * If {@link ActionListener} save method returns false, saveAll returns
+	 * too. Tabs aren't switched, unless a document must be saved as.
 	 * 
 	 * @param saveAs
 	 *            indicates whether the user should be prompted to with a
 	 *            "save as" dialog in case the document is not saved on disk
 	 */
 	private void saveAll(boolean saveAs) {
-		Component[] components = tabs.getComponents();
-		for (int i = 0; i < components.length; i++) {
-			tabs.setSelectedIndex(i);
-			if (!save(saveAs)) {
+		for (int i = 0; i < tabs.getTabCount(); i++) {
+			TextDocument doc = tabs.getTextDocumentAt(i);
+			if (doc.isSaved() || saveService.isSaving(doc)) {
+				continue;
+			}
+			if (!save(i, saveAs)) {
 				return;
 			}
 		}
@@ -1180,6 +1681,9 @@ public class MainFrame extends JFrame {
 	 */
 	private boolean saveAs() {
 		TextArea textArea = tabs.getSelectedComponent();
+		if (loading.containsKey(textArea.getTextDocument())) {
+			return false;
+		}
 		FileChooser fileChooser = getUI().getFileChooser();
 		if (fileChooser.save(this) == JFileChooser.APPROVE_OPTION) {
 			File file = null;
@@ -1189,11 +1693,23 @@ public class MainFrame extends JFrame {
 				TextDocument doc = textArea.getTextDocument();
 				doc.setName(file.getName());
 				doc.setPath(file.getPath());
-				textDocumentStreamer.write(doc);
+				try {
+					try {
+						textDocumentStreamer.write(doc);
+					} catch (UnmappableCharacterException e) {
+						if (!switchToUtf8(doc)) {
+							return false;
+						}
+						textDocumentStreamer.write(doc);
+					}
+				} finally {
+					// Found by its new file, now that it's written, or not
+					tabs.documentWritten(doc);
+				}
 				doc.setSaved(true);
 				doc.setSavedOnDisk(true);
+				recoveryJournal.saved(doc, true);
 				updateTitle();
-				tabs.setTitleStarAt(tabs.getSelectedIndex(), false);
 				addRecentDocumentsPath(file.getPath());
 				return true;
 			} catch (IOException e) {
@@ -1207,6 +1723,39 @@ public class MainFrame extends JFrame {
 		return false;
 	}
 
+	/**
+	 * Asks whether a document holding characters its charset can't encode
+	 * should be saved as UTF-8 instead, which encodes them all, and switches
+	 * its format if so. Otherwise it's not saved, rather than having those
+	 * characters replaced.
+	 * 
+	 * @return <code>true</code> if the document's format was switched
+	 */
+	private boolean switchToUtf8(TextDocument doc) {
+		TextFormat format = doc.getFormat();
+		String path = doc.getPath() != null ? doc.getPath() : doc.getName();
+		int option = JOptionPane.showConfirmDialog(this, STRINGS.getString("cant-encode") + " "
+				+ format.getCharset().name() + ": " + path + "\n"
+				+ STRINGS.getString("save-as-utf-8"), STRINGS.getString("save"),
+				JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+		if (option != JOptionPane.YES_OPTION) {
+			return false;
+		}
+		doc.setFormat(new TextFormat(Charset.forName("UTF-8"), false, format.getLineSeparator()));
+		return true;
+	}
+
+	/**
+	 * Selects a range of a text area's text, clamped to the document's length,
+	 * and focuses it.
+	 */
+	private void select(TextArea textArea, int start, int end) {
+		int length = textArea.getTextDocument().getLength();
+		textArea.setCaretPosition(Math.min(start, length));
+		textArea.moveCaretPosition(Math.min(end, length));
+		textArea.requestFocus();
+	}
+
 	private String showInputDialog(String message, String title) {
 		return JOptionPane.showInputDialog(this, message, title, JOptionPane.PLAIN_MESSAGE);
 	}
@@ -1215,12 +1764,8 @@ public class MainFrame extends JFrame {
 	 * Changes the title of MainFrame based on the current document.
 	 */
 	private void tabChanged() {
-		TextArea textArea = tabs.getSelectedComponent();
+		readSelected();
 		updateTitle();
-		// Workaround
-		if (!textArea.getTextDocument().isSaved()) {
-			tabs.setTitleStarAt(tabs.getSelectedIndex(), true);
-		}
 	}
 
 	/**
@@ -1257,8 +1802,9 @@ public class MainFrame extends JFrame {
 	 * document name - document path - Zephyr".
 	 */
 	private void updateTitle() {
-		String docName = tabs.getSelectedComponent().getTextDocument().getName();
-		String docPath = tabs.getSelectedComponent().getTextDocument().getPath();
+		TextDocument doc = tabs.getSelectedComponent().getTextDocument();
+		String docName = doc.getName();
+		String docPath = doc.getPath();
 		if (docPath == null) {
 			setTitle(docName + " - Zephyr");
 		} else {
@@ -1270,7 +1816,7 @@ public class MainFrame extends JFrame {
 		}
 
 		try {
-			tabs.setTitleAt(tabs.getSelectedIndex(), docName);
+			tabs.setTitleAt(tabs.getSelectedIndex(), doc.isSaved() ? docName : "*" + docName);
 		} catch (ArrayIndexOutOfBoundsException e) {
 			e.printStackTrace();
 		}
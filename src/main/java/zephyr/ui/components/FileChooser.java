@@ -52,6 +52,23 @@ public class FileChooser extends JFileChooser {
 	private static final FileNameExtensionFilter YAML_FILTER = new FileNameExtensionFilter(
 			"YAML files", "yml", "yaml");
 
+	/**
+	 * The filters added to the chooser, in the order they're shown.
+	 */
+	private static final FileNameExtensionFilter[] FILTERS = { C_FILTER, CSS_FILTER, HTML_FILTER,
+			JAVA_FILTER, JSON_FILTER, PHP_FILTER, PERL_FILTER, PROPERTIES_FILTER, PYTHON_FILTER,
+			RUBY_FILTER, SQL_FILES, TEXT_FILTER, XML_FILTER, YAML_FILTER };
+
+	/**
+	 * Returns the {@link FileNameExtensionFilter}s used on Zephyr, so other
+	 * components can offer the same sets of extensions.
+	 * 
+	 * @return a copy of the filters
+	 */
+	public static FileNameExtensionFilter[] getExtensionFilters() {
+		return FILTERS.clone();
+	}
+
 	/**
 	 * Calls the {@link JFileChooser} and adds all
 	 * {@link FileNameExtensionFilter} used on Zephyr.
@@ -60,20 +77,9 @@ public class FileChooser extends JFileChooser {
 		super();
 
 		// Adds file name extension filters
-		addChoosableFileFilter(C_FILTER);
-		addChoosableFileFilter(CSS_FILTER);
-		addChoosableFileFilter(HTML_FILTER);
-		addChoosableFileFilter(JAVA_FILTER);
-		addChoosableFileFilter(JSON_FILTER);
-		addChoosableFileFilter(PHP_FILTER);
-		addChoosableFileFilter(PERL_FILTER);
-		addChoosableFileFilter(PROPERTIES_FILTER);
-		addChoosableFileFilter(PYTHON_FILTER);
-		addChoosableFileFilter(RUBY_FILTER);
-		addChoosableFileFilter(SQL_FILES);
-		addChoosableFileFilter(TEXT_FILTER);
-		addChoosableFileFilter(XML_FILTER);
-		addChoosableFileFilter(YAML_FILTER);
+		for (FileNameExtensionFilter filter : FILTERS) {
+			addChoosableFileFilter(filter);
+		}
 
 		setFileFilter(getAcceptAllFileFilter());
 	}
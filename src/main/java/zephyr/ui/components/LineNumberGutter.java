@@ -0,0 +1,272 @@
+package zephyr.ui.components;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+
+import javax.swing.JComponent;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.View;
+
+/**
+ * Shows the line numbers of a {@link TextArea}, as the row header of its
+ * {@link GenericScrollPane}. Only the numbers of the lines shown are painted:
+ * the first one is found from the y painted, through the rows of each line
+ * kept by the {@link WrappingView} when lines are wrapped, or just the row
+ * height otherwise, so painting takes about the same whatever the size of the
+ * document. The width only changes when the number of digits of the last line
+ * does, and painting doesn't allocate anything, unless lines are wrapped by
+ * Swing's own view, whose positions are asked for one by one. It's repainted
+ * whenever the document changes, or the view lays out lines whose rows it had
+ * only estimated, since the lines below move even if none was added.
+ *
+ */
+public class LineNumberGutter extends JComponent {
+
+	/**
+	 * Serial version ID.
+	 */
+	private static final long serialVersionUID = 2810347582361948254L;
+
+	/**
+	 * The space around the numbers, in pixels.
+	 */
+	private static final int PADDING = 4;
+
+	private final TextArea textArea;
+
+	/**
+	 * The digits of the number being painted, right aligned.
+	 */
+	private final char[] digits = new char[10];
+
+	private final Rectangle clip = new Rectangle();
+
+	private final Insets textInsets = new Insets(0, 0, 0, 0);
+
+	private FontMetrics metrics;
+
+	/**
+	 * The number of digits of the last line's number.
+	 */
+	private int digitCount;
+
+	private int lineCount;
+
+	/**
+	 * The view whose rows are followed, as last found when painting.
+	 */
+	private WrappingView watchedView;
+
+	private final ChangeListener rowsListener = new ChangeListener() {
+
+		@Override
+		public void stateChanged(ChangeEvent e) {
+			repaint();
+		}
+	};
+
+	/**
+	 * Creates the gutter of a text area.
+	 *
+	 * @param textArea
+	 *            the text area whose lines are numbered
+	 */
+	public LineNumberGutter(TextArea textArea) {
+		this.textArea = textArea;
+		setForeground(Color.GRAY);
+		setBackground(new Color(0xF0F0F0));
+		setOpaque(true);
+		updateFont();
+		updateLineCount();
+
+		textArea.getDocument().addDocumentListener(new DocumentListener() {
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+			}
+
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				updateLineCount();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				updateLineCount();
+			}
+		});
+		textArea.addPropertyChangeListener(new PropertyChangeListener() {
+
+			@Override
+			public void propertyChange(PropertyChangeEvent evt) {
+				if ("font".equals(evt.getPropertyName())) {
+					updateFont();
+				} else if ("lineWrap".equals(evt.getPropertyName())
+						|| "UI".equals(evt.getPropertyName())) {
+					repaint();
+				}
+			}
+		});
+		// The rows of the lines changed
+		textArea.addComponentListener(new ComponentAdapter() {
+
+			@Override
+			public void componentResized(ComponentEvent e) {
+				revalidate();
+				repaint();
+			}
+		});
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		return new Dimension(PADDING * 2 + digitCount * metrics.charWidth('0'),
+				textArea.getHeight());
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		g.getClipBounds(clip);
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		g.setColor(getForeground());
+		g.setFont(metrics.getFont());
+
+		textArea.getInsets(textInsets);
+		WrappingView view = getWrappingView();
+		int rowHeight = metrics.getHeight();
+		int ascent = metrics.getAscent();
+		int right = getWidth() - PADDING;
+		int bottom = clip.y + clip.height;
+
+		int y = Math.max(0, clip.y - textInsets.top);
+		int line;
+		if (view != null) {
+			line = view.getLineAt(y);
+		} else if (textArea.getLineWrap()) {
+			line = textArea.getDocument().getDefaultRootElement()
+					.getElementIndex(textArea.viewToModel(new Point(0, clip.y)));
+		} else {
+			line = y / rowHeight;
+		}
+		for (; line < lineCount; line++) {
+			int top;
+			if (view != null) {
+				top = textInsets.top + view.getLineTop(line);
+			} else if (textArea.getLineWrap()) {
+				top = getWrappedLineTop(line);
+			} else {
+				top = textInsets.top + line * rowHeight;
+			}
+			if (top >= bottom) {
+				break;
+			}
+			int start = format(line + 1);
+			int length = digits.length - start;
+			g.drawChars(digits, start, length, right - metrics.charsWidth(digits, start, length),
+					top + ascent);
+		}
+	}
+
+	/**
+	 * Writes a number on {@link #digits}.
+	 *
+	 * @return the index of its first digit
+	 */
+	private int format(int number) {
+		int start = digits.length;
+		do {
+			digits[--start] = (char) ('0' + number % 10);
+			number /= 10;
+		} while (number > 0);
+		return start;
+	}
+
+	/**
+	 * Returns where a line starts when it's wrapped by Swing's own view, as
+	 * with the look and feels whose UIs don't create a {@link WrappingView}
+	 * (see {@link TextArea#updateUI()}).
+	 */
+	private int getWrappedLineTop(int line) {
+		try {
+			Element root = textArea.getDocument().getDefaultRootElement();
+			Rectangle bounds = textArea.modelToView(root.getElement(line).getStartOffset());
+			// Not laid out yet
+			return bounds != null ? bounds.y : textInsets.top + line * metrics.getHeight();
+		} catch (BadLocationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the text area's view, if its lines are wrapped by a
+	 * {@link WrappingView}.
+	 */
+	private WrappingView getWrappingView() {
+		View root = textArea.getUI().getRootView(textArea);
+		WrappingView view = null;
+		if (root.getViewCount() > 0 && root.getView(0) instanceof WrappingView) {
+			view = (WrappingView) root.getView(0);
+		}
+		if (view != watchedView) {
+			// The view is replaced when wrapping is toggled or the UI changes
+			if (watchedView != null) {
+				watchedView.removeChangeListener(rowsListener);
+			}
+			if (view != null) {
+				view.addChangeListener(rowsListener);
+			}
+			watchedView = view;
+		}
+		return view;
+	}
+
+	private void updateFont() {
+		metrics = getFontMetrics(textArea.getFont());
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Takes the number of lines of the document, resizing the gutter if its
+	 * number of digits changed. It's always repainted, as a wrapped line may
+	 * have gained or lost rows without any line being added or removed;
+	 * painting only goes through the lines shown, so it's cheap.
+	 */
+	private void updateLineCount() {
+		Element root = textArea.getDocument().getDefaultRootElement();
+		int count = root.getElementCount();
+		if (count != lineCount) {
+			lineCount = count;
+			int newDigitCount = digitCount(count);
+			if (newDigitCount != digitCount) {
+				digitCount = newDigitCount;
+				revalidate();
+			}
+		}
+		repaint();
+	}
+
+	private static int digitCount(int number) {
+		int count = 1;
+		while (number >= 10) {
+			number /= 10;
+			count++;
+		}
+		return count;
+	}
+}
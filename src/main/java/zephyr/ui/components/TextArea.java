@@ -8,6 +8,11 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 
 import javax.swing.JTextArea;
+import javax.swing.UIManager;
+import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.plaf.synth.SynthTextAreaUI;
+import javax.swing.text.Element;
+import javax.swing.text.View;
 
 import zephyr.text.TextDocument;
 
@@ -25,6 +30,17 @@ public class TextArea extends JTextArea {
 	 */
 	private static final long serialVersionUID = 2233198146436091347L;
 
+	/**
+	 * The length past which documents aren't wrapped by Swing's views, which
+	 * break every line whenever the width changes.
+	 */
+	private static final int SWING_WRAP_LIMIT = 1 << 20;
+
+	/**
+	 * Whether the UI wraps lines with a {@link WrappingView}.
+	 */
+	private boolean wrappingView;
+
 	public TextArea() {
 		this(new TextDocument());
 	}
@@ -65,9 +81,11 @@ public class TextArea extends JTextArea {
 
 	public void init() {
 		setTabSize(PREFERENCES.tabSize());
-		setLineWrap(PREFERENCES.lineWrap());
 		setWrapStyleWord(true);
 		setFont(new Font("Courier New", Font.PLAIN, PREFERENCES.fontSize()));
+		// Set last, since each of these creates the views again. Wrapping
+		// keeps the rows of each line, which mapped files have too many of
+		setLineWrap(PREFERENCES.lineWrap() && !getTextDocument().isLargeFile());
 		setForeground(Color.BLACK);
 		setBackground(PREFERENCES.backgroundColor());
 
@@ -90,6 +108,68 @@ public class TextArea extends JTextArea {
 		});
 	}
 
+	/**
+	 * Installs the look and feel's UI, wrapping lines with a
+	 * {@link WrappingView}, which only lays out the lines shown, instead of
+	 * Swing's own view. The view is created by the UI, so this takes extending
+	 * the look and feel's UI class, which is only done for the public ones: the
+	 * basic UI, used by Metal, and the Synth one, used by Nimbus and GTK. The
+	 * UIs of other look and feels, like Windows', are installed as they are,
+	 * and wrap lines through Swing's views, so documents longer than
+	 * {@value #SWING_WRAP_LIMIT} characters aren't wrapped on them.
+	 */
+	@Override
+	public void updateUI() {
+		Class<?> uiClass = UIManager.getUI(this).getClass();
+		wrappingView = uiClass == BasicTextAreaUI.class || uiClass == SynthTextAreaUI.class;
+		if (!wrappingView && getLineWrap() && getDocument().getLength() > SWING_WRAP_LIMIT) {
+			setLineWrap(false);
+		}
+		if (uiClass == BasicTextAreaUI.class) {
+			setUI(new BasicTextAreaUI() {
+
+				@Override
+				public View create(Element elem) {
+					View view = createWrappingView(elem);
+					return view != null ? view : super.create(elem);
+				}
+			});
+		} else if (uiClass == SynthTextAreaUI.class) {
+			setUI(new SynthTextAreaUI() {
+
+				@Override
+				public View create(Element elem) {
+					View view = createWrappingView(elem);
+					return view != null ? view : super.create(elem);
+				}
+			});
+		} else {
+			super.updateUI();
+		}
+	}
+
+	/**
+	 * Wraps lines or not. Documents longer than {@value #SWING_WRAP_LIMIT}
+	 * characters aren't wrapped unless the UI wraps them with a
+	 * {@link WrappingView}.
+	 */
+	@Override
+	public void setLineWrap(boolean wrap) {
+		super.setLineWrap(wrap && (wrappingView || getDocument().getLength() <= SWING_WRAP_LIMIT));
+	}
+
+	/**
+	 * Creates the view of the document's root element, if lines are wrapped.
+	 * 
+	 * @return the view, or <code>null</code> if the UI's own must be created
+	 */
+	private View createWrappingView(Element elem) {
+		if (getLineWrap() && elem == getDocument().getDefaultRootElement()) {
+			return new WrappingView(elem, getWrapStyleWord());
+		}
+		return null;
+	}
+
 	public void joinLines(String pattern) {
 
 		getTextDocument().joinLines(getSelectionStart(), getSelectionEnd(), pattern);
@@ -1,12 +1,17 @@
 package zephyr.ui.components;
 
-import java.awt.event.KeyListener;
+import java.awt.Component;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.swing.Icon;
+import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
-import javax.swing.event.DocumentEvent;
-import javax.swing.event.DocumentListener;
 
+import zephyr.text.DocumentRegistry;
 import zephyr.text.TextDocument;
 
 /**
@@ -24,6 +29,32 @@ public class TextAreaTabbedPane extends JTabbedPane {
 	 */
 	private static final long serialVersionUID = -9160529171039898352L;
 
+	/**
+	 * The documents of the deferred tabs, by the empty components standing in
+	 * for their {@link TextArea}s.
+	 */
+	private final Map<Component, TextDocument> deferred = new HashMap<Component, TextDocument>();
+
+	/**
+	 * The documents of the tabs, by their files.
+	 */
+	private final DocumentRegistry registry = new DocumentRegistry();
+
+	/**
+	 * Adds or removes the '*' of a document's tab when it becomes unsaved or
+	 * saved. It's only notified on these transitions, not on every edit.
+	 */
+	private final PropertyChangeListener savedListener = new PropertyChangeListener() {
+
+		@Override
+		public void propertyChange(PropertyChangeEvent evt) {
+			int index = indexOfDocument((TextDocument) evt.getSource());
+			if (index != -1) {
+				setTitleStarAt(index, !(Boolean) evt.getNewValue());
+			}
+		}
+	};
+
 	/**
 	 * Creates an empty TabbedPane with a default tab placement of
 	 * JTabbedPane.TOP.
@@ -67,15 +98,81 @@ public class TextAreaTabbedPane extends JTabbedPane {
 		return ta;
 	}
 
+	/**
+	 * Adds a deferred tab for the given document: only its title is shown,
+	 * and its {@link TextArea} is created the first time it's needed, like
+	 * when the tab is selected. Tabs restored from a session are added this
+	 * way, so restoring them costs about the same whatever their number.
+	 * 
+	 * @param document
+	 *            the document of the new tab
+	 */
+	public void addDeferredTab(TextDocument document) {
+		JPanel placeholder = new JPanel();
+		deferred.put(placeholder, document);
+		super.addTab(document.getName(), placeholder);
+	}
+
+	/**
+	 * Indicates whether the tab at <code>index</code> is deferred, i.e., its
+	 * {@link TextArea} wasn't created yet.
+	 * 
+	 * @param index
+	 *            the index of the tab.
+	 * @return <code>true</code> if the tab is deferred
+	 */
+	public boolean isDeferredAt(int index) {
+		return deferred.containsKey(getComponentAt(index));
+	}
+
+	/**
+	 * Returns the document of the tab at <code>index</code>, without creating
+	 * the tab's {@link TextArea} if it's deferred.
+	 * 
+	 * @param index
+	 *            the index of the tab.
+	 * @return the tab's document
+	 */
+	@SuppressWarnings("unchecked")
+	public TextDocument getTextDocumentAt(int index) {
+		Component component = getComponentAt(index);
+		TextDocument document = deferred.get(component);
+		if (document != null) {
+			return document;
+		}
+		return ((GenericScrollPane<TextArea>) component).getComponent().getTextDocument();
+	}
+
+	/**
+	 * Replaces the tab at <code>index</code> by a new {@link TextArea} showing
+	 * the given document, keeping the tab's position.
+	 * 
+	 * @param index
+	 *            the index of the tab.
+	 * @param document
+	 *            the document to be shown.
+	 * @return the {@link TextArea} added.
+	 */
+	public TextArea setDocumentAt(int index, TextDocument document) {
+		forget(getTextDocumentAt(index));
+		TextArea ta = new TextArea(document);
+		setComponentAt(index, prepareTextArea(ta));
+		setTitleAt(index, document.getName());
+		watch(index);
+		return ta;
+	}
+
 	/**
 	 * Works like {@link JTabbedPane#getSelectedComponent()} but casts the
-	 * component to {@link TextArea} before returning.
+	 * component to {@link TextArea} before returning. If the tab is deferred,
+	 * its {@link TextArea} is created.
 	 * 
 	 * @return the {@link TextArea} inside the {@link GenericScrollPane} on the
 	 *         <code>index</code>.
 	 */
 	@SuppressWarnings("unchecked")
 	public TextArea getDocumentAt(int index) {
+		materialize(index);
 		return ((GenericScrollPane<TextArea>) super.getComponentAt(index)).getComponent();
 	}
 
@@ -89,6 +186,7 @@ public class TextAreaTabbedPane extends JTabbedPane {
 	@Override
 	@SuppressWarnings("unchecked")
 	public TextArea getSelectedComponent() {
+		materialize(getSelectedIndex());
 		return ((GenericScrollPane<TextArea>) super.getSelectedComponent()).getComponent();
 	}
 
@@ -103,19 +201,106 @@ public class TextAreaTabbedPane extends JTabbedPane {
 	 *            starts with one). Removes, case <code>false</code>.
 	 */
 	public void setTitleStarAt(int index, boolean b) {
+		String title = getTitleAt(index);
 		if (b) {
-			if (!getTitleAt(getSelectedIndex()).startsWith("*")) {
-				setTitleAt(getSelectedIndex(), "*" + getTitleAt(getSelectedIndex()));
+			if (!title.startsWith("*")) {
+				setTitleAt(index, "*" + title);
 			}
-		} else if (getTitleAt(getSelectedIndex()).charAt(0) == '*') {
-			setTitleAt(getSelectedIndex(), getTitleAt(getSelectedIndex()).substring(1));
+		} else if (title.startsWith("*")) {
+			setTitleAt(index, title.substring(1));
 		}
 	}
 
 	/**
-	 * Adds a {@link KeyListener} to the passed document and adds it to a
-	 * {@link GenericScrollPane}. The {@link KeyListener} puts a '*' at the
-	 * begin of the tab name when the document content is changed.
+	 * Returns the index of the tab showing the given document.
+	 * 
+	 * @param document
+	 *            the document.
+	 * @return the tab's index, or -1 if the document isn't open.
+	 */
+	public int indexOfDocument(TextDocument document) {
+		for (int i = 0; i < getTabCount(); i++) {
+			if (getTextDocumentAt(i) == document) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the tab showing the document stored in a file. The
+	 * file is found whatever the path it's referred by, e.g. a relative one or
+	 * one going through symbolic links.
+	 * 
+	 * @param path
+	 *            the path of the file.
+	 * @return the tab's index, or -1 if the file isn't open.
+	 */
+	public int indexOfPath(String path) {
+		TextDocument document = registry.get(path);
+		return document != null ? indexOfDocument(document) : -1;
+	}
+
+	/**
+	 * Updates the file a tab's document is found by, once its path changed or
+	 * its file was written, which may have replaced the file by a new one.
+	 * 
+	 * @param document
+	 *            the document moved or saved.
+	 */
+	public void documentWritten(TextDocument document) {
+		registry.register(document);
+	}
+
+	@Override
+	public void insertTab(String title, Icon icon, Component component, String tip, int index) {
+		super.insertTab(title, icon, component, tip, index);
+		watch(indexOfComponent(component));
+	}
+
+	@Override
+	public void removeTabAt(int index) {
+		forget(getTextDocumentAt(index));
+		deferred.remove(getComponentAt(index));
+		super.removeTabAt(index);
+	}
+
+	/**
+	 * Registers the document of the tab at <code>index</code> and keeps the
+	 * tab's '*' in sync with whether it's saved.
+	 */
+	private void watch(int index) {
+		TextDocument document = getTextDocumentAt(index);
+		registry.register(document);
+		document.removePropertyChangeListener(savedListener);
+		document.addPropertyChangeListener(savedListener);
+		setTitleStarAt(index, !document.isSaved());
+	}
+
+	/**
+	 * Stops following a document whose tab is removed, or replaced.
+	 */
+	private void forget(TextDocument document) {
+		registry.unregister(document);
+		document.removePropertyChangeListener(savedListener);
+	}
+
+	/**
+	 * Creates the {@link TextArea} of the tab at <code>index</code>, if it's
+	 * deferred.
+	 */
+	private void materialize(int index) {
+		if (index == -1) {
+			return;
+		}
+		TextDocument document = deferred.remove(getComponentAt(index));
+		if (document != null) {
+			setComponentAt(index, prepareTextArea(new TextArea(document)));
+		}
+	}
+
+	/**
+	 * Adds the passed {@link TextArea} to a {@link GenericScrollPane}.
 	 * 
 	 * @param ta
 	 *            the The {@link TextArea} to be prepared.
@@ -128,23 +313,7 @@ public class TextAreaTabbedPane extends JTabbedPane {
 		scroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 		scroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
 		scroll.getViewport().setBorder(null);
-		ta.getDocument().addDocumentListener(new DocumentListener() {
-
-			@Override
-			public void changedUpdate(DocumentEvent e) {
-				setTitleStarAt(getSelectedIndex(), true);
-			}
-
-			@Override
-			public void insertUpdate(DocumentEvent e) {
-				setTitleStarAt(getSelectedIndex(), true);
-			}
-
-			@Override
-			public void removeUpdate(DocumentEvent e) {
-				setTitleStarAt(getSelectedIndex(), true);
-			}
-		});
+		scroll.setRowHeaderView(new LineNumberGutter(ta));
 		scroll.addOnViewPort(ta);
 		return scroll;
 	}
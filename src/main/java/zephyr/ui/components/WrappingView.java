@@ -0,0 +1,862 @@
+package zephyr.ui.components;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.EventListenerList;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.LayeredHighlighter;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+
+/**
+ * Wraps the lines of a {@link TextArea} without laying all of them out, so
+ * wrapping, or resizing, a huge document costs about what's shown of it.
+ * Unlike {@link javax.swing.text.WrappedPlainView}, which keeps a view for
+ * each line and breaks every one of them whenever the width changes, this view
+ * only breaks the lines it paints, a margin below them and the ones holding
+ * the positions it's asked for, and keeps just the number of rows of each
+ * line. The rows of the lines not broken yet are estimated from their length,
+ * so the height, and the scroll bar, is approximate until they're shown.
+ * <p>
+ * Lines longer than {@value #PIECE} characters are broken in pieces of that
+ * length, each starting a row, so showing the middle of a huge line, like the
+ * single one of a minified file, doesn't take breaking all the text before it.
+ *
+ */
+public class WrappingView extends View implements TabExpander {
+
+	/**
+	 * A row being painted, handed to the {@link LayeredHighlighter} so the
+	 * highlights, like the selection, are painted row by row.
+	 */
+	private final class Row extends View {
+
+		private int start;
+
+		private int end;
+
+		private Row() {
+			super(WrappingView.this.getElement());
+		}
+
+		@Override
+		public int getStartOffset() {
+			return start;
+		}
+
+		@Override
+		public int getEndOffset() {
+			return end;
+		}
+
+		@Override
+		public float getPreferredSpan(int axis) {
+			return axis == X_AXIS ? width : rowHeight;
+		}
+
+		@Override
+		public void paint(Graphics g, Shape allocation) {
+		}
+
+		@Override
+		public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+			Rectangle bounds = a.getBounds();
+			bounds.x += textWidth(start, Math.min(Math.max(pos, start), end), bounds.x);
+			bounds.width = 1;
+			return bounds;
+		}
+
+		@Override
+		public int viewToModel(float x, float y, Shape a, Position.Bias[] biasReturn) {
+			biasReturn[0] = Position.Bias.Forward;
+			return start;
+		}
+	}
+
+	/**
+	 * The length of the pieces long lines are broken in.
+	 */
+	private static final int PIECE = 8192;
+
+	/**
+	 * The number of rows below the painted ones whose lines are broken
+	 * ahead, so the height doesn't change under the user when scrolling a
+	 * little.
+	 */
+	private static final int MARGIN = 50;
+
+	/**
+	 * The milliseconds the rows are estimated again after the width last
+	 * changed, so dragging the window's border doesn't go through all the
+	 * lines on every step.
+	 */
+	private static final int ESTIMATE_DELAY = 200;
+
+	private final boolean wordWrap;
+
+	private final Segment segment = new Segment();
+
+	private final Row row = new Row();
+
+	private final Rectangle rowBounds = new Rectangle();
+
+	private FontMetrics metrics;
+
+	private int rowHeight = 1;
+
+	private int charWidth = 1;
+
+	private int tabWidth;
+
+	private int tabBase;
+
+	/**
+	 * The width the lines are wrapped to, or 0 until the view is sized.
+	 */
+	private int width;
+
+	/**
+	 * The number of lines of the document.
+	 */
+	private int lines;
+
+	/**
+	 * The length of each line, not counting its line break.
+	 */
+	private int[] lengths;
+
+	/**
+	 * The number of rows of each line, either laid out or estimated.
+	 */
+	private int[] rows;
+
+	/**
+	 * Whether the rows of each line were laid out. Lines broken in pieces
+	 * keep the rows of each piece on {@link #pieces} instead.
+	 */
+	private boolean[] exact;
+
+	/**
+	 * A Fenwick tree over {@link #rows}, so the row of a line, and the line at
+	 * a row, are found without summing the rows of all the lines before it.
+	 */
+	private int[] tree;
+
+	private int totalRows;
+
+	/**
+	 * The rows of each piece of the lines broken in pieces, by line, or 0 for
+	 * the pieces not laid out yet.
+	 */
+	private final Map<Integer, int[]> pieces = new HashMap<Integer, int[]>();
+
+	/**
+	 * Whether the rows changed since the last time the parent was told.
+	 */
+	private boolean resized;
+
+	/**
+	 * The start of each row of the last piece laid out.
+	 */
+	private int[] breaks = new int[16];
+
+	private int breakCount;
+
+	private int laidStart = -1;
+
+	private int laidEnd = -1;
+
+	private final EventListenerList listeners = new EventListenerList();
+
+	/**
+	 * Estimates the rows again once the width stops changing. Until then, the
+	 * lines not shown keep the rows of the last width.
+	 */
+	private final Timer estimateTimer = new Timer(ESTIMATE_DELAY, new ActionListener() {
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			int before = totalRows;
+			estimateAll();
+			if (totalRows != before) {
+				preferenceChanged(null, false, true);
+			}
+			fireRowsChanged();
+			Component host = getContainer();
+			if (host != null) {
+				host.repaint();
+			}
+		}
+	});
+
+	/**
+	 * Creates a view wrapping the lines of the given element.
+	 *
+	 * @param elem
+	 *            the root element of the document
+	 * @param wordWrap
+	 *            whether lines are broken at word boundaries, or at any
+	 *            character
+	 */
+	public WrappingView(Element elem, boolean wordWrap) {
+		super(elem);
+		this.wordWrap = wordWrap;
+
+		estimateTimer.setRepeats(false);
+		lines = elem.getElementCount();
+		int capacity = Math.max(16, lines);
+		lengths = new int[capacity];
+		rows = new int[capacity];
+		exact = new boolean[capacity];
+		tree = new int[capacity + 1];
+		for (int i = 0; i < lines; i++) {
+			lengths[i] = lineLength(i);
+		}
+		estimateAll();
+	}
+
+	@Override
+	public float getPreferredSpan(int axis) {
+		if (axis == X_AXIS) {
+			// Wrapped lines follow the width they're given
+			return width > 0 && width < Integer.MAX_VALUE ? width : 100;
+		}
+		updateMetrics();
+		return (float) totalRows * rowHeight;
+	}
+
+	@Override
+	public int getResizeWeight(int axis) {
+		return axis == X_AXIS ? 1 : 0;
+	}
+
+	@Override
+	public void setSize(float w, float h) {
+		int newWidth = (int) w;
+		if (newWidth != width) {
+			int old = width;
+			width = newWidth;
+			updateMetrics();
+			if (old <= 0) {
+				// Nothing was estimated at a width yet
+				int before = totalRows;
+				estimateAll();
+				if (totalRows != before) {
+					preferenceChanged(null, false, true);
+				}
+			} else {
+				// The lines painted are laid out again at the new width
+				laidStart = -1;
+				estimateTimer.restart();
+			}
+			fireRowsChanged();
+		}
+	}
+
+	/**
+	 * Adds a listener told whenever the rows of the lines change, as they're
+	 * laid out, estimated again or edited, so what's aligned with them, like
+	 * the {@link LineNumberGutter}, can be repainted.
+	 *
+	 * @param listener
+	 *            the listener to add
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		listeners.add(ChangeListener.class, listener);
+	}
+
+	/**
+	 * Removes a listener added by {@link #addChangeListener(ChangeListener)}.
+	 *
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public void removeChangeListener(ChangeListener listener) {
+		listeners.remove(ChangeListener.class, listener);
+	}
+
+	@Override
+	public float nextTabStop(float x, int tabOffset) {
+		if (tabWidth == 0) {
+			return x;
+		}
+		int tabs = ((int) x - tabBase) / tabWidth;
+		return tabBase + (tabs + 1) * tabWidth;
+	}
+
+	@Override
+	public void paint(Graphics g, Shape a) {
+		Rectangle alloc = a.getBounds();
+		prepare(alloc);
+		JTextComponent host = (JTextComponent) getContainer();
+		g.setFont(host.getFont());
+
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = alloc;
+		}
+		long top = clip.y;
+		long bottom = top + clip.height;
+
+		int line = lineAtRow((int) Math.max(0, (top - alloc.y) / rowHeight));
+		long y = alloc.y + (long) prefix(line) * rowHeight;
+		for (; line < lines && y < bottom; line++) {
+			y = layoutLine(g, host, line, y, top, bottom);
+		}
+		if (resized) {
+			// The rows below the lines just laid out moved
+			host.repaint();
+		}
+		for (long ahead = bottom + (long) MARGIN * rowHeight; line < lines && y < ahead; line++) {
+			y = layoutLine(null, host, line, y, y, ahead);
+		}
+		fireResized();
+	}
+
+	@Override
+	public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+		if (pos < getStartOffset() || pos > getEndOffset()) {
+			throw new BadLocationException("Invalid position", pos);
+		}
+		Rectangle alloc = a.getBounds();
+		prepare(alloc);
+
+		Element root = getElement();
+		int line = root.getElementIndex(pos);
+		int start = root.getElement(line).getStartOffset();
+		int length = lengths[line];
+		pos = Math.min(pos, start + length);
+
+		int piece = Math.min((pos - start) / PIECE, pieceCount(length) - 1);
+		long y = alloc.y + (long) prefix(line) * rowHeight;
+		for (int k = 0; k < piece; k++) {
+			y += (long) pieceRows(line, length, k) * rowHeight;
+		}
+		int count = measure(line, start, length, piece);
+		int i = count - 1;
+		while (breaks[i] > pos) {
+			i--;
+		}
+		Rectangle r = new Rectangle(alloc.x + textWidth(breaks[i], pos, alloc.x),
+				(int) (y + (long) i * rowHeight), 1, rowHeight);
+		fireResized();
+		return r;
+	}
+
+	@Override
+	public int viewToModel(float fx, float fy, Shape a, Position.Bias[] biasReturn) {
+		biasReturn[0] = Position.Bias.Forward;
+		Rectangle alloc = a.getBounds();
+		prepare(alloc);
+		if (fy < alloc.y) {
+			return getStartOffset();
+		}
+		long target = (long) (fy - alloc.y) / rowHeight;
+		if (target >= totalRows) {
+			return getDocument().getLength();
+		}
+
+		int line = lineAtRow((int) target);
+		int start = getElement().getElement(line).getStartOffset();
+		int length = lengths[line];
+		long r = target - prefix(line);
+		int piece = 0;
+		for (int last = pieceCount(length) - 1; piece < last; piece++) {
+			int pieceRows = pieceRows(line, length, piece);
+			if (r < pieceRows) {
+				break;
+			}
+			r -= pieceRows;
+		}
+
+		int count = measure(line, start, length, piece);
+		int i = (int) Math.min(r, count - 1);
+		int p0 = breaks[i];
+		int p1 = i + 1 < count ? breaks[i + 1] : start + piece * PIECE
+				+ pieceLength(length, piece);
+		load(p0, p1 - p0);
+		int pos = p0 + Utilities.getTabbedTextOffset(segment, metrics, alloc.x, (int) fx, this, p0,
+				false);
+		if (pos >= p1 && p1 < start + length) {
+			// The position past a soft break is shown on the next row
+			pos = p1 - 1;
+		}
+		fireResized();
+		return pos;
+	}
+
+	/**
+	 * Returns the line shown at a y coordinate.
+	 *
+	 * @param y
+	 *            the y coordinate, relative to the top of the view
+	 * @return the index of the line
+	 */
+	public int getLineAt(int y) {
+		return lineAtRow(Math.max(0, y / rowHeight));
+	}
+
+	/**
+	 * Returns where a line starts to be shown, as far as it's known: the rows
+	 * of the lines above it not laid out yet are estimated.
+	 *
+	 * @param line
+	 *            the index of the line
+	 * @return the y coordinate of the line, relative to the top of the view
+	 */
+	public int getLineTop(int line) {
+		return (int) Math.min((long) prefix(line) * rowHeight, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+		update(e, a);
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+		update(e, a);
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+		update(e, a);
+	}
+
+	/**
+	 * Takes the lines changed by an edit. The line holding the edit is laid
+	 * out again, if it isn't broken in pieces; the lines it added are only
+	 * estimated.
+	 */
+	private void update(DocumentEvent e, Shape a) {
+		Element root = getElement();
+		int line = root.getElementIndex(e.getOffset());
+		int delta = root.getElementCount() - lines;
+		int before = totalRows;
+		laidStart = -1;
+
+		// The line holding the edit took, or gave, the lines added or removed
+		splice(line, delta < 0 ? 1 - delta : 1, delta > 0 ? 1 + delta : 1);
+
+		Component host = getContainer();
+		if (host != null) {
+			updateMetrics();
+			if (pieceCount(lengths[line]) == 1) {
+				measure(line, root.getElement(line).getStartOffset(), lengths[line], 0);
+			}
+			if (a != null) {
+				Rectangle alloc = a.getBounds();
+				long y = alloc.y + (long) prefix(line) * rowHeight;
+				long height = totalRows == before && delta == 0 ? (long) rows[line] * rowHeight
+						: alloc.y + (long) alloc.height - y;
+				host.repaint(alloc.x, (int) y, alloc.width, (int) Math.min(height,
+						Integer.MAX_VALUE));
+			}
+		}
+		resized = totalRows != before;
+		fireResized();
+	}
+
+	/**
+	 * Replaces the <code>removed</code> lines at <code>line</code> by the
+	 * <code>added</code> ones now there, whose rows are estimated.
+	 */
+	private void splice(int line, int removed, int added) {
+		int delta = added - removed;
+		int oldLines = lines;
+
+		if (!pieces.isEmpty()) {
+			Map<Integer, int[]> kept = new HashMap<Integer, int[]>();
+			for (Map.Entry<Integer, int[]> entry : pieces.entrySet()) {
+				int key = entry.getKey();
+				if (key < line) {
+					kept.put(key, entry.getValue());
+				} else if (key >= line + removed) {
+					kept.put(key + delta, entry.getValue());
+				}
+			}
+			pieces.clear();
+			pieces.putAll(kept);
+		}
+
+		if (lines + delta > rows.length) {
+			int capacity = Math.max(lines + delta, rows.length + (rows.length >> 1));
+			lengths = Arrays.copyOf(lengths, capacity);
+			rows = Arrays.copyOf(rows, capacity);
+			exact = Arrays.copyOf(exact, capacity);
+			tree = Arrays.copyOf(tree, capacity + 1);
+		}
+		int tail = oldLines - line - removed;
+		System.arraycopy(lengths, line + removed, lengths, line + added, tail);
+		System.arraycopy(rows, line + removed, rows, line + added, tail);
+		System.arraycopy(exact, line + removed, exact, line + added, tail);
+		lines += delta;
+
+		if (delta == 0) {
+			int old = rows[line];
+			lengths[line] = lineLength(line);
+			rows[line] = lineEstimate(lengths[line]);
+			exact[line] = false;
+			add(line, rows[line] - old);
+			totalRows += rows[line] - old;
+			return;
+		}
+
+		for (int i = line; i < line + added; i++) {
+			lengths[i] = lineLength(i);
+			rows[i] = lineEstimate(lengths[i]);
+			exact[i] = false;
+		}
+		build(line);
+		totalRows = prefix(lines);
+	}
+
+	/**
+	 * Lays out a line, piece by piece, painting the rows between
+	 * <code>top</code> and <code>bottom</code> if there's a {@link Graphics}.
+	 * The pieces out of that range aren't laid out.
+	 *
+	 * @return the y where the next line starts
+	 */
+	private long layoutLine(Graphics g, JTextComponent host, int line, long y, long top,
+			long bottom) {
+		int length = lengths[line];
+		int start = -1;
+		for (int k = 0, count = pieceCount(length); k < count; k++) {
+			int pieceRows = pieceRows(line, length, k);
+			if (y + (long) pieceRows * rowHeight <= top || y >= bottom) {
+				y += (long) pieceRows * rowHeight;
+				continue;
+			}
+			if (start == -1) {
+				start = getElement().getElement(line).getStartOffset();
+			}
+			pieceRows = measure(line, start, length, k);
+			if (g != null) {
+				int pieceEnd = start + k * PIECE + pieceLength(length, k);
+				for (int i = 0; i < pieceRows; i++) {
+					long rowY = y + (long) i * rowHeight;
+					if (rowY + rowHeight > top && rowY < bottom) {
+						paintRow(g, host, breaks[i], i + 1 < pieceRows ? breaks[i + 1]
+								: pieceEnd, (int) rowY);
+					}
+				}
+			}
+			y += (long) pieceRows * rowHeight;
+		}
+		return y;
+	}
+
+	/**
+	 * Paints the highlights and the text of a row.
+	 */
+	private void paintRow(Graphics g, JTextComponent host, int p0, int p1, int y) {
+		Highlighter highlighter = host.getHighlighter();
+		if (highlighter instanceof LayeredHighlighter) {
+			row.start = p0;
+			row.end = p1;
+			rowBounds.setBounds(tabBase, y, width, rowHeight);
+			((LayeredHighlighter) highlighter).paintLayeredHighlights(g, p0, p1, rowBounds, host,
+					row);
+		}
+
+		Color foreground = host.isEnabled() ? host.getForeground() : host.getDisabledTextColor();
+		Color selected = host.getSelectedTextColor();
+		int selectionStart = Math.max(p0, host.getSelectionStart());
+		int selectionEnd = Math.min(p1, host.getSelectionEnd());
+		int baseline = y + metrics.getAscent();
+		if (selected == null || selectionStart >= selectionEnd
+				|| !host.getCaret().isSelectionVisible()) {
+			drawText(g, foreground, p0, p1, tabBase, baseline);
+		} else {
+			int x = drawText(g, foreground, p0, selectionStart, tabBase, baseline);
+			x = drawText(g, selected, selectionStart, selectionEnd, x, baseline);
+			drawText(g, foreground, selectionEnd, p1, x, baseline);
+		}
+	}
+
+	private int drawText(Graphics g, Color color, int p0, int p1, int x, int y) {
+		if (p1 <= p0) {
+			return x;
+		}
+		load(p0, p1 - p0);
+		g.setColor(color);
+		return Utilities.drawTabbedText(segment, x, y, g, this, p0);
+	}
+
+	private int textWidth(int p0, int p1, int x) {
+		if (p1 <= p0) {
+			return 0;
+		}
+		load(p0, p1 - p0);
+		return Utilities.getTabbedTextWidth(segment, metrics, x, this, p0);
+	}
+
+	/**
+	 * Lays out a piece of a line and keeps its number of rows.
+	 *
+	 * @return the number of rows of the piece, whose starts are on
+	 *         {@link #breaks}
+	 */
+	private int measure(int line, int start, int length, int piece) {
+		int p0 = start + piece * PIECE;
+		int count = layout(p0, p0 + pieceLength(length, piece));
+		if (pieceCount(length) == 1) {
+			exact[line] = true;
+			setRows(line, count);
+		} else {
+			int old = pieceRows(line, length, piece);
+			int[] counts = pieces.get(line);
+			if (counts == null) {
+				counts = new int[pieceCount(length)];
+				pieces.put(line, counts);
+			}
+			counts[piece] = count;
+			setRows(line, rows[line] - old + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Breaks the text from <code>p0</code> to <code>p1</code> in rows, unless
+	 * it was the last one broken.
+	 *
+	 * @return the number of rows, whose starts are on {@link #breaks}
+	 */
+	private int layout(int p0, int p1) {
+		if (p0 == laidStart && p1 == laidEnd) {
+			return breakCount;
+		}
+		breakCount = 0;
+		int p = p0;
+		do {
+			if (breakCount == breaks.length) {
+				breaks = Arrays.copyOf(breaks, breakCount * 2);
+			}
+			breaks[breakCount++] = p;
+			p = rowEnd(p, p1);
+		} while (p < p1);
+		laidStart = p0;
+		laidEnd = p1;
+		return breakCount;
+	}
+
+	/**
+	 * Returns where the row starting at <code>p</code> ends. Only about the
+	 * text fitting the width is read.
+	 */
+	private int rowEnd(int p, int end) {
+		if (width <= 0) {
+			return end;
+		}
+		int n = (int) Math.min(end - p, 2L * width / charWidth + 16);
+		while (true) {
+			load(p, n);
+			int fit = Utilities.getTabbedTextOffset(segment, metrics, tabBase, tabBase + width,
+					this, p, false);
+			if (fit < n) {
+				if (wordWrap) {
+					// Looking for a word boundary is only worth it if the text overflows
+					fit = Utilities.getBreakLocation(segment, metrics, tabBase, tabBase + width,
+							this, p);
+				}
+				return p + Math.max(1, fit);
+			}
+			if (n == end - p) {
+				return end;
+			}
+			n = Math.min(end - p, n * 2);
+		}
+	}
+
+	private void load(int offset, int length) {
+		try {
+			getDocument().getText(offset, length, segment);
+		} catch (BadLocationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int lineLength(int line) {
+		Element elem = getElement().getElement(line);
+		return elem.getEndOffset() - 1 - elem.getStartOffset();
+	}
+
+	private static int pieceCount(int length) {
+		return Math.max(1, (length + PIECE - 1) / PIECE);
+	}
+
+	private static int pieceLength(int length, int piece) {
+		return Math.min(PIECE, length - piece * PIECE);
+	}
+
+	/**
+	 * Returns the rows of a piece, laid out or estimated.
+	 */
+	private int pieceRows(int line, int length, int piece) {
+		if (pieceCount(length) == 1) {
+			return rows[line];
+		}
+		int[] counts = pieces.get(line);
+		if (counts != null && counts[piece] != 0) {
+			return counts[piece];
+		}
+		return estimate(pieceLength(length, piece));
+	}
+
+	/**
+	 * Estimates the rows of a line from its length.
+	 */
+	private int lineEstimate(int length) {
+		int count = pieceCount(length);
+		if (count == 1) {
+			return estimate(length);
+		}
+		return (count - 1) * estimate(PIECE) + estimate(pieceLength(length, count - 1));
+	}
+
+	private int estimate(int length) {
+		if (width <= 0) {
+			return 1;
+		}
+		return (int) Math.max(1, ((long) length * charWidth + width - 1) / width);
+	}
+
+	/**
+	 * Forgets the layout of every line, estimating their rows again.
+	 */
+	private void estimateAll() {
+		pieces.clear();
+		laidStart = -1;
+		for (int i = 0; i < lines; i++) {
+			rows[i] = lineEstimate(lengths[i]);
+			exact[i] = false;
+		}
+		build(0);
+		totalRows = prefix(lines);
+	}
+
+	private void setRows(int line, int count) {
+		int delta = count - rows[line];
+		if (delta != 0) {
+			rows[line] = count;
+			add(line, delta);
+			totalRows += delta;
+			resized = true;
+		}
+	}
+
+	/**
+	 * Builds the nodes of the tree holding the rows of the lines from
+	 * <code>line</code> on, the ones before it being kept. Appending lines,
+	 * like when a file is streamed, only builds the new nodes.
+	 */
+	private void build(int line) {
+		for (int i = line + 1; i <= lines; i++) {
+			int sum = rows[i - 1];
+			for (int child = i - 1, first = i - (i & -i); child > first; child -= child & -child) {
+				sum += tree[child];
+			}
+			tree[i] = sum;
+		}
+	}
+
+	private void add(int line, int delta) {
+		for (int i = line + 1; i <= lines; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * Returns the rows of the lines before <code>line</code>.
+	 */
+	private int prefix(int line) {
+		int sum = 0;
+		for (int i = line; i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the line shown at a row.
+	 */
+	private int lineAtRow(int target) {
+		int line = 0;
+		for (int step = Integer.highestOneBit(Math.max(1, lines)); step > 0; step >>= 1) {
+			int next = line + step;
+			if (next <= lines && tree[next] <= target) {
+				line = next;
+				target -= tree[next];
+			}
+		}
+		return Math.min(line, lines - 1);
+	}
+
+	/**
+	 * Takes the font and the tab size of the host, and the allocation the
+	 * tabs are expanded from.
+	 */
+	private void prepare(Rectangle alloc) {
+		updateMetrics();
+		tabBase = alloc.x;
+	}
+
+	private void updateMetrics() {
+		Component host = getContainer();
+		if (host == null) {
+			return;
+		}
+		Font font = host.getFont();
+		if (metrics == null || !font.equals(metrics.getFont())) {
+			metrics = host.getFontMetrics(font);
+			rowHeight = Math.max(1, metrics.getHeight());
+			charWidth = Math.max(1, metrics.charWidth('m'));
+			Object tabSize = getDocument().getProperty(PlainDocument.tabSizeAttribute);
+			tabWidth = charWidth * (tabSize instanceof Integer ? (Integer) tabSize : 8);
+			estimateAll();
+			fireRowsChanged();
+		}
+	}
+
+	private void fireResized() {
+		if (resized) {
+			resized = false;
+			preferenceChanged(null, false, true);
+			fireRowsChanged();
+		}
+	}
+
+	private void fireRowsChanged() {
+		ChangeListener[] changeListeners = listeners.getListeners(ChangeListener.class);
+		if (changeListeners.length > 0) {
+			ChangeEvent e = new ChangeEvent(this);
+			for (ChangeListener listener : changeListeners) {
+				listener.stateChanged(e);
+			}
+		}
+	}
+}
@@ -1,25 +1,42 @@
 package zephyr.ui.dialogs;
 
 import static zephyr.Zephyr.STRINGS;
+import static zephyr.Zephyr.getUI;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.PatternSyntaxException;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.JTextField;
+import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import net.miginfocom.swing.MigLayout;
+import zephyr.text.DocumentsFinder;
 import zephyr.text.Finder;
+import zephyr.text.SearchListener;
+import zephyr.text.SearchPattern;
+import zephyr.text.SearchResult;
+import zephyr.text.SearchResults;
 import zephyr.text.TextDocument;
 import zephyr.text.exceptions.NoMatchesFoundException;
+import zephyr.text.exceptions.SearchInterruptedException;
 import zephyr.ui.components.TextArea;
+import zephyr.ui.components.TextAreaTabbedPane;
 
 public class FindDialog extends JDialog {
 
@@ -84,21 +101,49 @@ public class FindDialog extends JDialog {
 
 	private JCheckBox regularExpression;
 
+	/**
+	 * Shows the number of matches found by the search running in background.
+	 */
+	private JLabel status;
+
+	/**
+	 * The tabs searched by 'Find in all tabs'.
+	 */
+	private final TextAreaTabbedPane tabs;
+
+	private JButton findInTabs;
+
+	/**
+	 * The replacement of the matches, which may refer to the groups of a
+	 * regular expression.
+	 */
+	private JTextField replaceWith;
+
+	/**
+	 * The number of matches replaced by the last 'Replace All', shown with the
+	 * number of matches until the search changes.
+	 */
+	private String replacedMessage;
+
 	/**
 	 * Sets up the dialog.
 	 * 
 	 * @param owner
 	 *            the owner frame or dialog.
-	 * @param textArea
-	 *            the text area used as target of the search.
+	 * @param tabs
+	 *            the tabs whose selected text area is used as target of the
+	 *            search.
 	 */
-	public FindDialog(JFrame owner, TextArea textArea) {
+	public FindDialog(JFrame owner, TextAreaTabbedPane tabs) {
 		super(owner, STRINGS.getString("find"), false);
 
-		if (textArea == null) {
+		if (tabs == null) {
 			throw new IllegalArgumentException("Parameter cannot be null");
 		}
 
+		this.tabs = tabs;
+		TextArea textArea = tabs.getSelectedComponent();
+
 		String selectedText;
 		if ((selectedText = textArea.getSelectedText()) != null) {
 			lastSearch = selectedText;
@@ -124,6 +169,7 @@ public class FindDialog extends JDialog {
 
 			@Override
 			public void windowClosing(WindowEvent e) {
+				finder.dispose();
 				// lastSearch = content.getText();
 				// lastWholeWord = wholeWord.isSelected();
 				// lastMatchCase = matchCase.isSelected();
@@ -152,11 +198,14 @@ public class FindDialog extends JDialog {
 		setLocationRelativeTo(owner);
 		setResizable(false);
 		pack();
+
+		search();
 	}
 
 	private int defineModifiers() {
 		return (wholeWord.isSelected() ? Finder.WHOLE_WORD : 0)
-				+ (matchCase.isSelected() ? Finder.MATCH_CASE : 0);
+				+ (matchCase.isSelected() ? Finder.MATCH_CASE : 0)
+				+ (regularExpression.isSelected() ? Finder.REGULAR_EXPRESSION : 0);
 	}
 
 	/**
@@ -173,11 +222,188 @@ public class FindDialog extends JDialog {
 				int modifiers = defineModifiers();
 				finder.find(search, direction, modifiers);
 			} catch (NoMatchesFoundException e) {
-				e.printStackTrace();
+				status.setText(STRINGS.getString("no-matches"));
+			} catch (PatternSyntaxException e) {
+				getUI().showErrorMessage(this,
+						STRINGS.getString("invalid-regular-expression") + "\n" + e.getDescription());
+			} catch (SearchInterruptedException e) {
+				getUI().showErrorMessage(this, STRINGS.getString("search-timed-out"));
+			}
+		}
+	}
+
+	/**
+	 * Replaces the selected match and selects the next one.
+	 */
+	private void replace() {
+		if (!content.getText().isEmpty()) {
+			try {
+				finder.replace(content.getText(), replaceWith.getText(), defineModifiers());
+			} catch (NoMatchesFoundException e) {
+				status.setText(STRINGS.getString("no-matches"));
+			} catch (PatternSyntaxException e) {
+				getUI().showErrorMessage(this,
+						STRINGS.getString("invalid-regular-expression") + "\n" + e.getDescription());
+			} catch (IllegalArgumentException e) {
+				getUI().showErrorMessage(this,
+						STRINGS.getString("invalid-replacement") + "\n" + e.getMessage());
+			} catch (SearchInterruptedException e) {
+				getUI().showErrorMessage(this, STRINGS.getString("search-timed-out"));
+			}
+		}
+	}
+
+	/**
+	 * Replaces every match, as a single edit, and shows how many were
+	 * replaced.
+	 */
+	private void replaceAll() {
+		if (!content.getText().isEmpty()) {
+			try {
+				int count = finder.replaceAll(content.getText(), replaceWith.getText(),
+						defineModifiers());
+				replacedMessage = count + " " + STRINGS.getString("replacements");
+				status.setText(count == 0 ? STRINGS.getString("no-matches") : replacedMessage);
+			} catch (PatternSyntaxException e) {
+				getUI().showErrorMessage(this,
+						STRINGS.getString("invalid-regular-expression") + "\n" + e.getDescription());
+			} catch (IllegalArgumentException e) {
+				getUI().showErrorMessage(this,
+						STRINGS.getString("invalid-replacement") + "\n" + e.getMessage());
+			} catch (SearchInterruptedException e) {
+				getUI().showErrorMessage(this, STRINGS.getString("search-timed-out"));
 			}
 		}
 	}
 
+	/**
+	 * Starts searching the content of the search box in background, replacing
+	 * the search running before, so the number of matches is shown as the
+	 * search is typed.
+	 */
+	private void search() {
+		replacedMessage = null;
+		String search = content.getText();
+		if (search.isEmpty()) {
+			finder.cancel();
+			status.setText(" ");
+			return;
+		}
+
+		try {
+			finder.search(search, defineModifiers(), new SearchListener() {
+
+				@Override
+				public void matchesFound(int count, boolean done) {
+					String text;
+					if (done && count == 0) {
+						text = STRINGS.getString("no-matches");
+					} else {
+						text = count + " " + STRINGS.getString("matches")
+								+ (done ? "" : " (" + STRINGS.getString("searching") + "...)");
+					}
+					status.setText(replacedMessage != null ? replacedMessage + ", " + text : text);
+				}
+			});
+			status.setText(STRINGS.getString("searching") + "...");
+		} catch (PatternSyntaxException e) {
+			finder.cancel();
+			status.setText(STRINGS.getString("invalid-regular-expression"));
+		}
+	}
+
+	/**
+	 * Searches every document open on the tabs, in parallel and in background,
+	 * and lists the results on a {@link SearchResultsDialog}, grouped by tab.
+	 * Documents still loading are left out.
+	 */
+	private void findInTabs() {
+		String search = content.getText();
+		if (search.isEmpty()) {
+			return;
+		}
+
+		int modifiers = defineModifiers();
+		final SearchPattern pattern;
+		try {
+			pattern = SearchPattern.compile(search, (modifiers & Finder.MATCH_CASE) != 0,
+					(modifiers & Finder.WHOLE_WORD) != 0,
+					(modifiers & Finder.REGULAR_EXPRESSION) != 0);
+		} catch (PatternSyntaxException e) {
+			status.setText(STRINGS.getString("invalid-regular-expression"));
+			return;
+		}
+
+		final List<TextDocument> documents = new ArrayList<TextDocument>();
+		final List<String> names = new ArrayList<String>();
+		for (int i = 0; i < tabs.getTabCount(); i++) {
+			TextDocument doc = tabs.getTextDocumentAt(i);
+			if (!doc.isLoading()) {
+				documents.add(doc);
+				names.add(tabs.getTitleAt(i));
+			}
+		}
+
+		status.setText(STRINGS.getString("searching") + "...");
+		findInTabs.setEnabled(false);
+		new SwingWorker<List<SearchResults<TextDocument>>, Void>() {
+
+			@Override
+			protected List<SearchResults<TextDocument>> doInBackground() {
+				return DocumentsFinder.findAll(documents, pattern);
+			}
+
+			@Override
+			protected void done() {
+				findInTabs.setEnabled(true);
+				try {
+					showTabsResults(names, get());
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Shows the results of a search on the open documents. Selecting a result
+	 * selects its tab and the match.
+	 */
+	private void showTabsResults(List<String> names, List<SearchResults<TextDocument>> results) {
+		SearchResultsDialog<TextDocument> dialog = new SearchResultsDialog<TextDocument>(
+				(JFrame) getOwner()) {
+
+			private static final long serialVersionUID = 2817004356104371127L;
+
+			@Override
+			protected void resultSelected(TextDocument source, SearchResult result) {
+				for (int i = 0; i < tabs.getTabCount(); i++) {
+					if (tabs.getTextDocumentAt(i) == source) {
+						TextArea textArea = tabs.getDocumentAt(i);
+						tabs.setSelectedIndex(i);
+						// The document may have changed since it was searched
+						int length = source.getLength();
+						textArea.setCaretPosition(Math.min(result.getStart(), length));
+						textArea.moveCaretPosition(Math.min(result.getEnd(), length));
+						textArea.requestFocus();
+						return;
+					}
+				}
+			}
+		};
+
+		int count = 0;
+		for (int i = 0; i < results.size(); i++) {
+			dialog.addResults(names.get(i), results.get(i));
+			count += results.get(i).getCount();
+		}
+		status.setText(count + " " + STRINGS.getString("matches"));
+		dialog.setStatus(count + " " + STRINGS.getString("matches"));
+		dialog.setVisible(true);
+	}
+
 	/**
 	 * Initializes the dialog's components.
 	 */
@@ -185,6 +411,10 @@ public class FindDialog extends JDialog {
 		initTextArea();
 		initOptions();
 
+		replaceWith = new JTextField();
+		add(new JLabel(STRINGS.getString("replace-with")), "split 2");
+		add(replaceWith, "growx, wrap");
+
 		findPrevious = new JButton(STRINGS.getString("find-previous"));
 		findPrevious.addActionListener(new ActionListener() {
 
@@ -205,6 +435,39 @@ public class FindDialog extends JDialog {
 		});
 		add(findNext, "grow, tag ok");
 
+		findInTabs = new JButton(STRINGS.getString("find-in-tabs"));
+		findInTabs.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				findInTabs();
+			}
+		});
+		add(findInTabs, "grow, tag ok");
+
+		JButton replace = new JButton(STRINGS.getString("replace"));
+		replace.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				replace();
+			}
+		});
+		add(replace, "newline, grow, tag ok");
+
+		JButton replaceAll = new JButton(STRINGS.getString("replace-all"));
+		replaceAll.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				replaceAll();
+			}
+		});
+		add(replaceAll, "grow, tag ok");
+
+		status = new JLabel(" ");
+		add(status, "newline, span, growx");
+
 	}
 
 	/**
@@ -226,6 +489,17 @@ public class FindDialog extends JDialog {
 		regularExpression.setToolTipText(STRINGS.getString("regular-expression-tooltip"));
 		regularExpression.setSelected(lastRegularExpression);
 
+		ActionListener optionsListener = new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				search();
+			}
+		};
+		wholeWord.addActionListener(optionsListener);
+		matchCase.addActionListener(optionsListener);
+		regularExpression.addActionListener(optionsListener);
+
 		optionsPanel.add(wholeWord);
 		optionsPanel.add(matchCase);
 		optionsPanel.add(regularExpression);
@@ -244,6 +518,24 @@ public class FindDialog extends JDialog {
 			content.setText(lastSearch);
 		}
 
+		content.getDocument().addDocumentListener(new DocumentListener() {
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+
+			}
+
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				search();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				search();
+			}
+		});
+
 		JScrollPane scroll = new JScrollPane();
 		scroll.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 		scroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
@@ -0,0 +1,404 @@
+package zephyr.ui.dialogs;
+
+import static zephyr.Zephyr.STRINGS;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+import net.miginfocom.swing.MigLayout;
+import zephyr.text.FileSearchListener;
+import zephyr.text.FilesFinder;
+import zephyr.text.SearchPattern;
+import zephyr.text.SearchResult;
+import zephyr.text.SearchResults;
+import zephyr.ui.MainFrame;
+import zephyr.ui.components.FileChooser;
+
+/**
+ * Searches the files of a directory tree through a {@link FilesFinder}. The
+ * files can be filtered by the extensions of {@link FileChooser}'s filters and
+ * by globs. Results are listed on a {@link SearchResultsDialog} as they're
+ * found; selecting one opens its file on the {@link MainFrame}.
+ *
+ */
+public class FindInFilesDialog extends JDialog {
+
+	/**
+	 * Serial version ID.
+	 */
+	private static final long serialVersionUID = -5127360437398208513L;
+
+	/**
+	 * The interval, in milliseconds, between updates of the number of files
+	 * searched.
+	 */
+	private static final int PROGRESS_INTERVAL = 250;
+
+	private final MainFrame owner;
+
+	private final FileNameExtensionFilter[] filters = FileChooser.getExtensionFilters();
+
+	private JTextField search;
+
+	private JTextField directory;
+
+	private JComboBox<String> fileTypes;
+
+	private JTextField includes;
+
+	private JTextField excludes;
+
+	private JCheckBox wholeWord;
+
+	private JCheckBox matchCase;
+
+	private JCheckBox regularExpression;
+
+	private JButton find;
+
+	private JButton cancel;
+
+	private JLabel status;
+
+	/**
+	 * The running search, or the last one.
+	 */
+	private FilesFinder finder;
+
+	private SearchResultsDialog<Path> resultsDialog;
+
+	private int matchCount;
+
+	private int fileCount;
+
+	private final Timer progressTimer = new Timer(PROGRESS_INTERVAL, new ActionListener() {
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			showProgress();
+		}
+	});
+
+	/**
+	 * Sets up the dialog.
+	 *
+	 * @param owner
+	 *            the frame where the files found are open
+	 */
+	public FindInFilesDialog(MainFrame owner) {
+		super(owner, STRINGS.getString("find-in-files"), false);
+		this.owner = owner;
+
+		setLayout(new MigLayout("", "[][grow, fill][]"));
+		initComponents();
+
+		addWindowListener(new WindowAdapter() {
+
+			@Override
+			public void windowClosing(WindowEvent e) {
+				cancel();
+			}
+		});
+
+		pack();
+		setLocationRelativeTo(owner);
+	}
+
+	/**
+	 * Sets the directory searched, unless one was already typed.
+	 *
+	 * @param dir
+	 *            the directory
+	 */
+	public void setDirectoryIfEmpty(Path dir) {
+		if (dir != null && directory.getText().trim().isEmpty()) {
+			directory.setText(dir.toString());
+		}
+	}
+
+	/**
+	 * Shows a directory chooser for the directory searched.
+	 */
+	private void browse() {
+		JFileChooser chooser = new JFileChooser(directory.getText());
+		chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+			directory.setText(chooser.getSelectedFile().getPath());
+		}
+	}
+
+	/**
+	 * Cancels the running search, if any.
+	 */
+	private void cancel() {
+		if (finder != null) {
+			finder.cancel();
+		}
+	}
+
+	/**
+	 * Starts searching the files, cancelling the search running before.
+	 */
+	private void find() {
+		if (search.getText().isEmpty()) {
+			return;
+		}
+
+		Path root;
+		try {
+			root = Paths.get(directory.getText().trim()).toAbsolutePath().normalize();
+		} catch (InvalidPathException e) {
+			root = null;
+		}
+		if (root == null || !Files.isDirectory(root)) {
+			status.setText(STRINGS.getString("invalid-directory") + " " + directory.getText());
+			return;
+		}
+
+		SearchPattern pattern;
+		try {
+			pattern = SearchPattern.compile(search.getText(), matchCase.isSelected(),
+					wholeWord.isSelected(), regularExpression.isSelected());
+		} catch (PatternSyntaxException e) {
+			status.setText(STRINGS.getString("invalid-regular-expression"));
+			return;
+		}
+
+		int fileType = fileTypes.getSelectedIndex();
+		String[] extensions = fileType > 0 ? filters[fileType - 1].getExtensions() : null;
+		final FilesFinder newFinder;
+		try {
+			newFinder = new FilesFinder(root, pattern, extensions, includes.getText(),
+					excludes.getText());
+		} catch (IllegalArgumentException e) {
+			status.setText(STRINGS.getString("invalid-glob") + " " + e.getMessage());
+			return;
+		}
+
+		cancel();
+		finder = newFinder;
+		matchCount = 0;
+		fileCount = 0;
+
+		final Path base = root;
+		showResultsDialog();
+		resultsDialog.clear();
+		finder.start(new FileSearchListener() {
+
+			/**
+			 * The results of this search found but not shown yet, so a
+			 * search replaced by a newer one never takes the newer one's.
+			 */
+			private final List<SearchResults<Path>> pending = new ArrayList<SearchResults<Path>>();
+
+			private boolean flushScheduled;
+
+			@Override
+			public void resultsFound(SearchResults<Path> results) {
+				synchronized (pending) {
+					pending.add(results);
+					if (!flushScheduled) {
+						flushScheduled = true;
+						SwingUtilities.invokeLater(new Runnable() {
+
+							@Override
+							public void run() {
+								flush();
+							}
+						});
+					}
+				}
+			}
+
+			@Override
+			public void searchFinished(final int files, final boolean cancelled) {
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						flush();
+						if (finder == newFinder) {
+							searchFinished(files, cancelled);
+						}
+					}
+				});
+			}
+
+			private void flush() {
+				List<SearchResults<Path>> found;
+				synchronized (pending) {
+					found = new ArrayList<SearchResults<Path>>(pending);
+					pending.clear();
+					flushScheduled = false;
+				}
+				addResults(newFinder, base, found);
+			}
+		});
+
+		find.setEnabled(false);
+		cancel.setEnabled(true);
+		progressTimer.start();
+		showProgress();
+	}
+
+	/**
+	 * Shows the results a search found since its last flush, unless it was
+	 * replaced by a newer one.
+	 */
+	private void addResults(FilesFinder source, Path base, List<SearchResults<Path>> found) {
+		if (finder != source) {
+			return;
+		}
+
+		for (SearchResults<Path> results : found) {
+			resultsDialog.addResults(base.relativize(results.getSource()).toString(), results);
+			matchCount += results.getCount();
+			fileCount++;
+		}
+	}
+
+	/**
+	 * Shows the number of matches and files found so far.
+	 */
+	private void showProgress() {
+		if (finder == null) {
+			return;
+		}
+		String text = STRINGS.getString("searching") + "... " + matchCount + " "
+				+ STRINGS.getString("matches") + ", " + finder.getSearchedFiles() + " "
+				+ STRINGS.getString("files-searched");
+		status.setText(text);
+		resultsDialog.setStatus(text);
+	}
+
+	private void searchFinished(int files, boolean cancelled) {
+		progressTimer.stop();
+		find.setEnabled(true);
+		cancel.setEnabled(false);
+
+		String text = matchCount + " " + STRINGS.getString("matches") + " (" + fileCount + "/"
+				+ files + " " + STRINGS.getString("files-searched") + ")";
+		if (cancelled) {
+			text = STRINGS.getString("search-cancelled") + ": " + text;
+		}
+		status.setText(text);
+		resultsDialog.setStatus(text);
+	}
+
+	/**
+	 * Creates the results dialog, if needed, and shows it.
+	 */
+	private void showResultsDialog() {
+		if (resultsDialog == null) {
+			resultsDialog = new SearchResultsDialog<Path>(owner) {
+
+				private static final long serialVersionUID = 8051279906632710338L;
+
+				@Override
+				protected void resultSelected(Path source, SearchResult result) {
+					owner.open(source, result.getStart(), result.getEnd());
+				}
+			};
+		}
+		resultsDialog.setVisible(true);
+	}
+
+	/**
+	 * Initializes the dialog's components.
+	 */
+	private void initComponents() {
+		ActionListener findListener = new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				find();
+			}
+		};
+
+		search = new JTextField(30);
+		search.addActionListener(findListener);
+		add(new JLabel(STRINGS.getString("find")));
+		add(search, "span, wrap");
+
+		directory = new JTextField();
+		directory.addActionListener(findListener);
+		JButton browse = new JButton("...");
+		browse.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				browse();
+			}
+		});
+		add(new JLabel(STRINGS.getString("directory")));
+		add(directory);
+		add(browse, "wrap");
+
+		fileTypes = new JComboBox<String>();
+		fileTypes.addItem(STRINGS.getString("all-files"));
+		for (FileNameExtensionFilter filter : filters) {
+			fileTypes.addItem(filter.getDescription());
+		}
+		add(new JLabel(STRINGS.getString("file-types")));
+		add(fileTypes, "span, wrap");
+
+		includes = new JTextField();
+		includes.setToolTipText(STRINGS.getString("globs-tooltip"));
+		includes.addActionListener(findListener);
+		add(new JLabel(STRINGS.getString("include")));
+		add(includes, "span, wrap");
+
+		excludes = new JTextField(".git, .svn, .hg");
+		excludes.setToolTipText(STRINGS.getString("globs-tooltip"));
+		excludes.addActionListener(findListener);
+		add(new JLabel(STRINGS.getString("exclude")));
+		add(excludes, "span, wrap");
+
+		wholeWord = new JCheckBox(STRINGS.getString("whole-word"));
+		wholeWord.setToolTipText(STRINGS.getString("whole-word-tooltip"));
+		matchCase = new JCheckBox(STRINGS.getString("match-case"));
+		matchCase.setToolTipText(STRINGS.getString("match-case-tooltip"));
+		regularExpression = new JCheckBox(STRINGS.getString("regular-expression"));
+		regularExpression.setToolTipText(STRINGS.getString("regular-expression-tooltip"));
+		add(wholeWord, "skip, split 3");
+		add(matchCase);
+		add(regularExpression, "wrap");
+
+		find = new JButton(STRINGS.getString("find"));
+		find.addActionListener(findListener);
+		cancel = new JButton(STRINGS.getString("cancel"));
+		cancel.setEnabled(false);
+		cancel.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				cancel();
+			}
+		});
+		add(find, "span, split 2, tag ok");
+		add(cancel, "tag cancel, wrap");
+
+		status = new JLabel(" ");
+		add(status, "span, growx");
+	}
+}
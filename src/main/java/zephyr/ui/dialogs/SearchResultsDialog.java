@@ -0,0 +1,160 @@
+package zephyr.ui.dialogs;
+
+import static zephyr.Zephyr.STRINGS;
+
+import java.awt.Dimension;
+import java.awt.Frame;
+
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JScrollPane;
+import javax.swing.JTree;
+import javax.swing.event.TreeSelectionEvent;
+import javax.swing.event.TreeSelectionListener;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreePath;
+import javax.swing.tree.TreeSelectionModel;
+
+import net.miginfocom.swing.MigLayout;
+import zephyr.text.SearchResult;
+import zephyr.text.SearchResults;
+
+/**
+ * Lists the results of a search on several sources, like the open documents
+ * or the files of a directory, grouped by source. Results can be added while
+ * the search runs. Selecting a result calls
+ * {@link #resultSelected(Object, SearchResult)}.
+ * 
+ * @param <S>
+ *            the type of the sources searched
+ * 
+ */
+public abstract class SearchResultsDialog<S> extends JDialog {
+
+	/**
+	 * Serial version ID.
+	 */
+	private static final long serialVersionUID = -3920148016715373384L;
+
+	/**
+	 * The results of a source, shown as the parent of their nodes.
+	 */
+	private static class Group<S> {
+
+		private final String name;
+
+		private final SearchResults<S> results;
+
+		Group(String name, SearchResults<S> results) {
+			this.name = name;
+			this.results = results;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + results.getCount() + ")";
+		}
+	}
+
+	private final DefaultMutableTreeNode root = new DefaultMutableTreeNode();
+
+	private final DefaultTreeModel model = new DefaultTreeModel(root);
+
+	private final JTree tree = new JTree(model);
+
+	private final JLabel status = new JLabel(" ");
+
+	/**
+	 * Creates an empty dialog.
+	 * 
+	 * @param owner
+	 *            the frame from which the dialog is displayed
+	 */
+	public SearchResultsDialog(Frame owner) {
+		super(owner, STRINGS.getString("search-results"), false);
+
+		setLayout(new MigLayout("fill"));
+
+		tree.setRootVisible(false);
+		tree.setShowsRootHandles(true);
+		tree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
+		tree.addTreeSelectionListener(new TreeSelectionListener() {
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public void valueChanged(TreeSelectionEvent e) {
+				TreePath path = e.getNewLeadSelectionPath();
+				if (path == null) {
+					return;
+				}
+
+				DefaultMutableTreeNode node = (DefaultMutableTreeNode) path.getLastPathComponent();
+				if (node.getUserObject() instanceof SearchResult) {
+					Group<S> group = (Group<S>) ((DefaultMutableTreeNode) node.getParent())
+							.getUserObject();
+					resultSelected(group.results.getSource(), (SearchResult) node.getUserObject());
+				}
+			}
+		});
+
+		add(new JScrollPane(tree), "grow, push, wrap");
+		add(status, "growx");
+
+		setPreferredSize(new Dimension(560, 420));
+		pack();
+		setLocationRelativeTo(owner);
+	}
+
+	/**
+	 * Adds the results of a source, unless they're empty.
+	 * 
+	 * @param name
+	 *            the name the source is shown with
+	 * @param results
+	 *            the results of the source
+	 */
+	public void addResults(String name, SearchResults<S> results) {
+		if (results.isEmpty()) {
+			return;
+		}
+
+		DefaultMutableTreeNode groupNode = new DefaultMutableTreeNode(new Group<S>(name, results));
+		for (SearchResult result : results.getResults()) {
+			groupNode.add(new DefaultMutableTreeNode(result, false));
+		}
+		model.insertNodeInto(groupNode, root, root.getChildCount());
+
+		if (root.getChildCount() == 1) {
+			tree.expandPath(new TreePath(groupNode.getPath()));
+		}
+	}
+
+	/**
+	 * Removes every result.
+	 */
+	public void clear() {
+		root.removeAllChildren();
+		model.reload();
+	}
+
+	/**
+	 * Shows a message below the results, like the progress of the search.
+	 * 
+	 * @param text
+	 *            the message
+	 */
+	public void setStatus(String text) {
+		status.setText(text);
+	}
+
+	/**
+	 * Called when a result is selected.
+	 * 
+	 * @param source
+	 *            the source where the result was found
+	 * @param result
+	 *            the result selected
+	 */
+	protected abstract void resultSelected(S source, SearchResult result);
+}
@@ -0,0 +1,220 @@
+package zephyr.file;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares how long reading a file takes, and how much it allocates, through
+ * the bulk path of {@link FileManager#readChars(Path)} and through the
+ * {@link java.io.BufferedReader#readLine()} loop of
+ * {@link FileManager#read(java.io.Reader)}, which files used to be read with.
+ * <p>
+ * The file is generated from a fixed seed, 500 MB by default, or the size
+ * given in MB as the first argument, on the directory given as the second
+ * one, or the temporary one, and deleted afterwards. It's UTF-8 text with
+ * CRLF line separators and a few non-ASCII characters, so both paths decode
+ * it and normalize its separators. Each path reads it a few rounds, the first
+ * one only warming up, and the median of the other rounds is reported. The
+ * bytes allocated are counted by the reading thread, where the virtual
+ * machine supports it, and shown as a multiple of the file's size.
+ * <p>
+ * It's a plain program, not a test: this tree has no build to wire JMH into.
+ * It's run with the classes and resources of Zephyr on the class path; the
+ * heap must hold the text a few times over, so a 500 MB file needs something
+ * like <code>-Xmx4g</code>.
+ *
+ */
+public class FileReadBenchmark {
+
+	private static final int DEFAULT_SIZE = 500;
+
+	/**
+	 * The number of rounds of each path, the first one warming up.
+	 */
+	private static final int ROUNDS = 4;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String[] WORDS = { "the", "quick", "brown", "fox", "jumps", "over",
+			"lazy", "dog", "2013-01-01", "INFO", "ERROR", "0x7fff", "a\u00e7\u00e3o",
+			"na\u00efve", "\u20ac10" };
+
+	/**
+	 * A way of reading a file.
+	 */
+	private interface Reader {
+
+		String getName();
+
+		/**
+		 * Reads the file, returning the number of chars read.
+		 */
+		int read(FileManager fileManager, Path file) throws IOException;
+	}
+
+	private static final Reader BULK = new Reader() {
+
+		@Override
+		public String getName() {
+			return "readChars";
+		}
+
+		@Override
+		public int read(FileManager fileManager, Path file) throws IOException {
+			CharBuffer chars = fileManager.readChars(file);
+			return chars.remaining();
+		}
+	};
+
+	private static final Reader READ_LINE = new Reader() {
+
+		@Override
+		public String getName() {
+			return "readLine";
+		}
+
+		@Override
+		public int read(FileManager fileManager, Path file) throws IOException {
+			String text = fileManager.read(new InputStreamReader(
+					new FileInputStream(file.toFile()), UTF_8));
+			return text.length();
+		}
+	};
+
+	public static void main(String[] args) throws IOException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+		Path dir = Paths.get(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+		Path file = Files.createTempFile(dir, "zephyr-benchmark", ".txt");
+		try {
+			generate(file, (long) size << 20);
+			long fileSize = Files.size(file);
+
+			System.out.printf("%-10s %8s %10s %12s %8s%n", "path", "MB", "time ms",
+					"allocated MB", "x size");
+			long[] times = new long[2];
+			Reader[] readers = { READ_LINE, BULK };
+			for (int i = 0; i < readers.length; i++) {
+				times[i] = run(readers[i], file, fileSize);
+			}
+			System.out.printf("readChars takes %.0f%% of the time of readLine%n",
+					100.0 * times[1] / times[0]);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Writes lines of random words, separated by CRLF, up to the given number
+	 * of bytes.
+	 */
+	private static void generate(Path file, long size) throws IOException {
+		Random random = new Random(42);
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		try {
+			long written = 0;
+			StringBuilder line = new StringBuilder();
+			while (written < size) {
+				line.setLength(0);
+				int words = 1 + random.nextInt(16);
+				for (int w = 0; w < words; w++) {
+					if (w > 0) {
+						line.append(' ');
+					}
+					line.append(WORDS[random.nextInt(WORDS.length)]);
+				}
+				line.append("\r\n");
+				byte[] bytes = line.toString().getBytes(UTF_8);
+				if (buffer.remaining() < bytes.length) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					buffer.clear();
+				}
+				buffer.put(bytes);
+				written += bytes.length;
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads the file a few rounds, printing the medians.
+	 *
+	 * @return the median time, in nanoseconds
+	 */
+	private static long run(Reader reader, Path file, long fileSize) throws IOException {
+		FileManager fileManager = new FileManager();
+		long[] times = new long[ROUNDS];
+		long[] allocations = new long[ROUNDS];
+		int length = -1;
+		for (int round = 0; round < ROUNDS; round++) {
+			collect();
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			int read = reader.read(fileManager, file);
+			times[round] = System.nanoTime() - start;
+			allocations[round] = allocatedBytes() - allocated;
+			if (length != -1 && read != length) {
+				throw new IllegalStateException("Different lengths read");
+			}
+			length = read;
+		}
+
+		long time = median(times);
+		long allocation = allocatedBytes() < 0 ? -1 : median(allocations);
+		System.out.printf("%-10s %8d %10d %12s %8s%n", reader.getName(), fileSize >> 20,
+				time / 1000000, allocation < 0 ? "n/a" : String.valueOf(allocation >> 20),
+				allocation < 0 ? "n/a" : String.format("%.2f", (double) allocation / fileSize));
+		return time;
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread, or -1 if the
+	 * virtual machine can't tell.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+			if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+				return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the median of the rounds, skipping the first one.
+	 */
+	private static long median(long[] rounds) {
+		long[] measured = Arrays.copyOfRange(rounds, 1, rounds.length);
+		Arrays.sort(measured);
+		return measured[measured.length / 2];
+	}
+
+	private static void collect() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+	}
+}
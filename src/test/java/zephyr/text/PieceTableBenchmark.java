@@ -0,0 +1,336 @@
+package zephyr.text;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.GapContent;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Segment;
+
+/**
+ * Compares a {@link TextDocument} backed by a {@link PieceTableContent} with a
+ * {@link PlainDocument}, backed by Swing's {@link GapContent}, on inserts,
+ * removes and reads of documents of 10 MB, 100 MB and 1 GB, or of the sizes
+ * given, in MB, as arguments. The contents are compared on their own as well,
+ * since the documents' edits also update their line elements, which takes
+ * about the same on both.
+ * <p>
+ * The text is generated from a fixed seed, so runs are comparable, as lines
+ * of random words, and the edits are made at random offsets, so the gap of
+ * the {@link GapContent} has to be moved and the piece table is split. Each
+ * operation is repeated a few rounds, the first one only warming up, and the
+ * median time of the other rounds is reported, along with the heap used by
+ * the text once it's built.
+ * <p>
+ * It's a plain program, not a test, run with the classes and resources of
+ * Zephyr on the class path. The heap must hold the text twice, once as the
+ * original given to the piece tables and once more for the copy of the
+ * {@link GapContent}, plus the line elements of the documents, so the 1 GB
+ * run needs something like <code>-Xmx12g</code>. Text that can't be built,
+ * like a {@link GapContent} of more than about 1G chars, whose gap can't
+ * grow past the largest array, is reported as failed.
+ *
+ */
+public class PieceTableBenchmark {
+
+	private static final int[] DEFAULT_SIZES = { 10, 100, 1024 };
+
+	/**
+	 * The number of rounds of each operation, the first one warming up.
+	 */
+	private static final int ROUNDS = 6;
+
+	/**
+	 * The number of inserts, removes and short reads on each round.
+	 */
+	private static final int EDITS = 1000;
+
+	/**
+	 * The length of the short reads.
+	 */
+	private static final int READ_LENGTH = 1024;
+
+	private static final String[] WORDS = { "the", "quick", "brown", "fox", "jumps", "over",
+			"lazy", "dog", "lorem", "ipsum", "dolor", "sit", "amet", "2013-01-01", "INFO",
+			"ERROR", "0x7fff", "{", "}", "=" };
+
+	/**
+	 * The text edited and read, either a document or a bare content.
+	 */
+	private interface Target {
+
+		int length();
+
+		void insert(int offset, String text) throws BadLocationException;
+
+		void remove(int offset, int length) throws BadLocationException;
+
+		void read(int offset, int length, Segment segment) throws BadLocationException;
+
+		String readAll() throws BadLocationException;
+	}
+
+	/**
+	 * Builds the targets compared.
+	 */
+	private interface Factory {
+
+		String getName();
+
+		Target create(char[] text) throws BadLocationException;
+	}
+
+	private static final Factory PIECE_TABLE_DOCUMENT = new Factory() {
+
+		@Override
+		public String getName() {
+			return "TextDocument (piece table)";
+		}
+
+		@Override
+		public Target create(char[] text) {
+			// Like files read by TextDocumentStreamer, straight over the array
+			return document(new TextDocument("benchmark", null, new PieceTableContent(
+					CharBuffer.wrap(text))));
+		}
+	};
+
+	private static final Factory GAP_CONTENT_DOCUMENT = new Factory() {
+
+		@Override
+		public String getName() {
+			return "PlainDocument (gap content)";
+		}
+
+		@Override
+		public Target create(char[] text) throws BadLocationException {
+			PlainDocument doc = new PlainDocument();
+			doc.insertString(0, new String(text), null);
+			return document(doc);
+		}
+	};
+
+	private static final Factory PIECE_TABLE_CONTENT = new Factory() {
+
+		@Override
+		public String getName() {
+			return "PieceTableContent";
+		}
+
+		@Override
+		public Target create(char[] text) {
+			return content(new PieceTableContent(CharBuffer.wrap(text)));
+		}
+	};
+
+	private static final Factory GAP_CONTENT_CONTENT = new Factory() {
+
+		@Override
+		public String getName() {
+			return "GapContent";
+		}
+
+		@Override
+		public Target create(char[] text) throws BadLocationException {
+			GapContent content = new GapContent();
+			content.insertString(0, new String(text));
+			return content(content);
+		}
+	};
+
+	private static Target document(final Document doc) {
+		return new Target() {
+
+			@Override
+			public int length() {
+				return doc.getLength();
+			}
+
+			@Override
+			public void insert(int offset, String text) throws BadLocationException {
+				doc.insertString(offset, text, null);
+			}
+
+			@Override
+			public void remove(int offset, int length) throws BadLocationException {
+				doc.remove(offset, length);
+			}
+
+			@Override
+			public void read(int offset, int length, Segment segment)
+					throws BadLocationException {
+				doc.getText(offset, length, segment);
+			}
+
+			@Override
+			public String readAll() throws BadLocationException {
+				return doc.getText(0, doc.getLength());
+			}
+		};
+	}
+
+	private static Target content(final AbstractDocument.Content content) {
+		return new Target() {
+
+			@Override
+			public int length() {
+				// Without the implied break
+				return content.length() - 1;
+			}
+
+			@Override
+			public void insert(int offset, String text) throws BadLocationException {
+				content.insertString(offset, text);
+			}
+
+			@Override
+			public void remove(int offset, int length) throws BadLocationException {
+				content.remove(offset, length);
+			}
+
+			@Override
+			public void read(int offset, int length, Segment segment)
+					throws BadLocationException {
+				content.getChars(offset, length, segment);
+			}
+
+			@Override
+			public String readAll() throws BadLocationException {
+				return content.getString(0, length());
+			}
+		};
+	}
+
+	public static void main(String[] args) throws BadLocationException {
+		int[] sizes = DEFAULT_SIZES;
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.printf("%-28s %6s %10s %10s %12s %12s %12s %12s%n", "text", "MB",
+				"build ms", "heap MB", "insert us", "remove us", "read us", "getText ms");
+		for (int size : sizes) {
+			char[] text = generate((long) size << 20);
+			for (Factory factory : new Factory[] { PIECE_TABLE_CONTENT, GAP_CONTENT_CONTENT,
+					PIECE_TABLE_DOCUMENT, GAP_CONTENT_DOCUMENT }) {
+				run(factory, text, size);
+			}
+		}
+	}
+
+	/**
+	 * Generates lines of random words, up to the given number of chars.
+	 */
+	private static char[] generate(long size) {
+		char[] text = new char[(int) Math.min(size, Integer.MAX_VALUE - 8)];
+		Random random = new Random(42);
+		int i = 0;
+		while (i < text.length) {
+			int words = 1 + random.nextInt(16);
+			for (int w = 0; w < words && i < text.length; w++) {
+				String word = WORDS[random.nextInt(WORDS.length)];
+				int n = Math.min(word.length(), text.length - i);
+				word.getChars(0, n, text, i);
+				i += n;
+				if (i < text.length) {
+					text[i++] = w == words - 1 ? '\n' : ' ';
+				}
+			}
+		}
+		return text;
+	}
+
+	private static void run(Factory factory, char[] text, int size) throws BadLocationException {
+		Target target;
+		long buildTime;
+		long heap;
+		collect();
+		long before = usedHeap();
+		try {
+			long start = System.nanoTime();
+			target = factory.create(text);
+			buildTime = System.nanoTime() - start;
+			collect();
+			heap = Math.max(0, usedHeap() - before);
+		} catch (OutOfMemoryError e) {
+			System.out.printf("%-28s %6d failed: %s%n", factory.getName(), size, e);
+			return;
+		} catch (RuntimeException e) {
+			System.out.printf("%-28s %6d failed: %s%n", factory.getName(), size, e);
+			return;
+		}
+
+		Random random = new Random(7);
+		long[] inserts = new long[ROUNDS];
+		long[] removes = new long[ROUNDS];
+		long[] reads = new long[ROUNDS];
+		long[] fullReads = new long[ROUNDS];
+		Segment segment = new Segment();
+		boolean fullReadFailed = false;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < EDITS; i++) {
+				target.insert(random.nextInt(target.length() + 1), "inserted text\n");
+			}
+			inserts[round] = (System.nanoTime() - start) / EDITS;
+
+			start = System.nanoTime();
+			for (int i = 0; i < EDITS; i++) {
+				target.remove(random.nextInt(target.length() - 14), 14);
+			}
+			removes[round] = (System.nanoTime() - start) / EDITS;
+
+			start = System.nanoTime();
+			for (int i = 0; i < EDITS; i++) {
+				target.read(random.nextInt(target.length() - READ_LENGTH), READ_LENGTH, segment);
+			}
+			reads[round] = (System.nanoTime() - start) / EDITS;
+
+			if (!fullReadFailed) {
+				try {
+					start = System.nanoTime();
+					String all = target.readAll();
+					fullReads[round] = System.nanoTime() - start;
+					if (all.length() != target.length()) {
+						throw new IllegalStateException("Wrong length read");
+					}
+				} catch (OutOfMemoryError e) {
+					// The whole text doesn't fit on the heap once more
+					fullReadFailed = true;
+				}
+			}
+		}
+
+		System.out.printf("%-28s %6d %10d %10d %12.1f %12.1f %12.1f %12s%n", factory.getName(),
+				size, buildTime / 1000000, heap >> 20, median(inserts) / 1000.0,
+				median(removes) / 1000.0, median(reads) / 1000.0,
+				fullReadFailed ? "out of heap" : String.valueOf(median(fullReads) / 1000000));
+	}
+
+	/**
+	 * Returns the median of the rounds, skipping the first one.
+	 */
+	private static long median(long[] rounds) {
+		long[] measured = Arrays.copyOfRange(rounds, 1, rounds.length);
+		Arrays.sort(measured);
+		return measured[measured.length / 2];
+	}
+
+	private static void collect() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}